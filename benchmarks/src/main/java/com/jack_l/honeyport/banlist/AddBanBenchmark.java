@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.benchmarks.BenchmarkSupport;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bans of new IPs with 1, 8 and 64 threads, as many connections from different IPs being detected at once.
+ * Simulated firewall backend without latency is used, so ban list locking and firewall queueing is measured.
+ * Ban list is created again for each iteration, so ban table size is not carried over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AddBanBenchmark {
+    // IPv6 documentation prefix, every ban gets the next address
+    private static final long ADDRESS_PREFIX = 0x20010db800000000L;
+    private final AtomicLong nextAddress = new AtomicLong();
+    private BanListManager banList;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BenchmarkSupport.silenceConsole();
+        final CachedConfigurationValues configuration = BenchmarkSupport.configuration((byte) 0x0)
+                .firewallBackend(CachedConfigurationValues.FirewallBackendType.SIMULATED)
+                .simulatedLatency(0)
+                .banLength(3600)
+                .build();
+        BenchmarkSupport.apply(configuration);
+        banList = new BanListManager(configuration);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        banList.destroy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addBan1Thread() throws UnknownHostException {
+        banList.addBan(nextAddress(), 3600);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void addBan8Threads() throws UnknownHostException {
+        banList.addBan(nextAddress(), 3600);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void addBan64Threads() throws UnknownHostException {
+        banList.addBan(nextAddress(), 3600);
+    }
+
+    private InetAddress nextAddress() throws UnknownHostException {
+        final long low = nextAddress.getAndIncrement();
+        final byte[] address = new byte[16];
+        for (int index = 0; index < 8; index++) {
+            address[index] = (byte) (ADDRESS_PREFIX >>> (56 - index * 8));
+            address[index + 8] = (byte) (low >>> (56 - index * 8));
+        }
+        return InetAddress.getByAddress(address);
+    }
+}
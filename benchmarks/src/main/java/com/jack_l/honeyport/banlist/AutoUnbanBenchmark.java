@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.banlist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Auto unban pass over 10k, 100k and 1M expired bans. Same steps as the auto unban timer of the ban list:
+ * expired entries are taken from the expiry heap in batches, checked against the ban table and removed from it.
+ * Unban commands and messages are left out, they are measured by the firewall backends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AutoUnbanBenchmark {
+    // Same batch size as the auto unban timer
+    private static final int EXPIRY_BATCH_SIZE = 1024;
+
+    @Param({"10000", "100000", "1000000"})
+    public int banCount;
+
+    private long[] keyHighs;
+    private long[] keyLows;
+    private ExpiryHeap expiryHeap;
+    private BanTable banTable;
+
+    @Setup(Level.Trial)
+    public void createKeys() {
+        final SplittableRandom random = new SplittableRandom(banCount);
+        keyHighs = new long[banCount];
+        keyLows = new long[banCount];
+        for (int index = 0; index < banCount; index++) {
+            keyHighs[index] = random.nextLong();
+            keyLows[index] = random.nextLong();
+        }
+    }
+
+    /**
+     * Bans expired within the last hour in random order
+     */
+    @Setup(Level.Invocation)
+    public void fillBans() {
+        final SplittableRandom random = new SplittableRandom(banCount);
+        final long currentTime = System.currentTimeMillis();
+        expiryHeap = new ExpiryHeap();
+        banTable = new BanTable(banCount);
+        for (int index = 0; index < banCount; index++) {
+            final long expireTime = currentTime - 1 - random.nextLong(TimeUnit.HOURS.toMillis(1));
+            banTable.put(keyHighs[index], keyLows[index], expireTime, IPAddressData.BanState.ACTIVE);
+            expiryHeap.add(keyHighs[index], keyLows[index], expireTime);
+        }
+    }
+
+    @Benchmark
+    public int removeExpiredBans() throws InterruptedException {
+        final long[] expiredBans = new long[EXPIRY_BATCH_SIZE * 3];
+        int removedCount = 0;
+        while (expiryHeap.size() > 0) {
+            final int expiredCount = expiryHeap.takeExpired(expiredBans);
+            for (int index = 0; index < expiredCount; index++) {
+                final int slot = banTable.indexOf(expiredBans[index * 3], expiredBans[index * 3 + 1]);
+                if (slot != BanTable.NOT_FOUND && banTable.getExpireTime(slot) == expiredBans[index * 3 + 2]) {
+                    banTable.removeAt(slot);
+                    removedCount++;
+                }
+            }
+        }
+        return removedCount;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.banlist;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ban table lookups of banned and not banned IPv4 addresses at 10k, 100k and 1M bans, and memory used per ban when filled.
+ * Lookups are the check done for every accepted connection, addresses are picked at random so most lookups miss the CPU cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BanTableBenchmark {
+    // Addresses looked up in turn, power of two so the next one is picked with a mask
+    private static final int LOOKUP_COUNT = 1 << 16;
+
+    @Param({"10000", "100000", "1000000"})
+    public int banCount;
+
+    private long[] keyHighs;
+    private long[] keyLows;
+    private long[] hitKeyHighs;
+    private long[] hitKeyLows;
+    private long[] missKeyHighs;
+    private long[] missKeyLows;
+    private BanTable banTable;
+    private int lookupIndex;
+
+    /**
+     * Memory used by the table arrays after a fill and number of bans in it.
+     * JMH sums counters over iterations, so bytes per ban is tableBytes divided by bans.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long tableBytes;
+        public long bans;
+    }
+
+    @Setup(Level.Trial)
+    public void fillBans() {
+        final SplittableRandom random = new SplittableRandom(banCount);
+        keyHighs = new long[banCount];
+        keyLows = new long[banCount];
+        banTable = new BanTable();
+        for (int index = 0; index < banCount; index++) {
+            long keyLow;
+            do {
+                keyLow = randomIpv4Key(random);
+            } while (banTable.indexOf(0, keyLow) != BanTable.NOT_FOUND);
+            keyLows[index] = keyLow;
+            banTable.put(0, keyLow, Long.MAX_VALUE, IPAddressData.BanState.ACTIVE);
+        }
+
+        hitKeyHighs = new long[LOOKUP_COUNT];
+        hitKeyLows = new long[LOOKUP_COUNT];
+        missKeyHighs = new long[LOOKUP_COUNT];
+        missKeyLows = new long[LOOKUP_COUNT];
+        for (int index = 0; index < LOOKUP_COUNT; index++) {
+            final int bannedIndex = random.nextInt(banCount);
+            hitKeyHighs[index] = keyHighs[bannedIndex];
+            hitKeyLows[index] = keyLows[bannedIndex];
+            long keyLow;
+            do {
+                keyLow = randomIpv4Key(random);
+            } while (banTable.indexOf(0, keyLow) != BanTable.NOT_FOUND);
+            missKeyLows[index] = keyLow;
+        }
+    }
+
+    private static long randomIpv4Key(final SplittableRandom random) {
+        final int address = random.nextInt();
+        return BanTable.keyLow(new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+    }
+
+    @Benchmark
+    public int indexOfHit() {
+        final int index = lookupIndex++ & (LOOKUP_COUNT - 1);
+        return banTable.indexOf(hitKeyHighs[index], hitKeyLows[index]);
+    }
+
+    @Benchmark
+    public int indexOfMiss() {
+        final int index = lookupIndex++ & (LOOKUP_COUNT - 1);
+        return banTable.indexOf(missKeyHighs[index], missKeyLows[index]);
+    }
+
+    /**
+     * Fills a table from its default size, so resizes are included as they happen in the ban list
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public BanTable fill(final Footprint footprint) {
+        final BanTable filledTable = new BanTable();
+        for (int index = 0; index < banCount; index++) {
+            filledTable.put(keyHighs[index], keyLows[index], Long.MAX_VALUE, IPAddressData.BanState.ACTIVE);
+        }
+        footprint.tableBytes = filledTable.getMemoryUsage();
+        footprint.bans = filledTable.size();
+        return filledTable;
+    }
+}
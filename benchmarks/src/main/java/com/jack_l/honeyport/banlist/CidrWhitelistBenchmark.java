@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.banlist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whitelist lookups against 10k networks, half IPv4 and half IPv6 with random prefix lengths.
+ * Looked up addresses alternate between IPv4 and IPv6, hits are inside a random network and misses are outside all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CidrWhitelistBenchmark {
+    // Addresses looked up in turn, power of two so the next one is picked with a mask
+    private static final int LOOKUP_COUNT = 1 << 12;
+
+    @Param({"10000"})
+    public int networkCount;
+
+    private CidrWhitelist whitelist;
+    private byte[][] hitAddresses;
+    private byte[][] missAddresses;
+    private InetAddress[] hitInetAddresses;
+    private InetAddress[] missInetAddresses;
+    private int lookupIndex;
+
+    @Setup(Level.Trial)
+    public void createWhitelist() throws UnknownHostException {
+        final SplittableRandom random = new SplittableRandom(networkCount);
+        whitelist = new CidrWhitelist();
+        final byte[][] networks = new byte[networkCount][];
+        final int[] prefixLengths = new int[networkCount];
+        for (int index = 0; index < networkCount; index++) {
+            final boolean ipv4 = index % 2 == 0;
+            networks[index] = randomAddress(random, ipv4);
+            // IPv4 networks from /16 to single hosts, IPv6 networks from /32 to /128
+            prefixLengths[index] = ipv4 ? 16 + random.nextInt(17) : 32 + random.nextInt(97);
+            whitelist.add(InetAddress.getByAddress(networks[index]).getHostAddress() + "/" + prefixLengths[index]);
+        }
+
+        hitAddresses = new byte[LOOKUP_COUNT][];
+        missAddresses = new byte[LOOKUP_COUNT][];
+        hitInetAddresses = new InetAddress[LOOKUP_COUNT];
+        missInetAddresses = new InetAddress[LOOKUP_COUNT];
+        for (int index = 0; index < LOOKUP_COUNT; index++) {
+            final boolean ipv4 = index % 2 == 0;
+            // Network of the same family, prefix bits kept and host bits random
+            final int network = random.nextInt(networkCount / 2) * 2 + (ipv4 ? 0 : 1);
+            final byte[] hitAddress = randomAddress(random, ipv4);
+            for (int bit = 0; bit < prefixLengths[network]; bit++) {
+                final int mask = 0x80 >>> (bit & 7);
+                hitAddress[bit >>> 3] = (byte) ((hitAddress[bit >>> 3] & ~mask) | (networks[network][bit >>> 3] & mask));
+            }
+            hitAddresses[index] = hitAddress;
+            byte[] missAddress;
+            do {
+                missAddress = randomAddress(random, ipv4);
+            } while (whitelist.contains(missAddress));
+            missAddresses[index] = missAddress;
+            hitInetAddresses[index] = InetAddress.getByAddress(hitAddress);
+            missInetAddresses[index] = InetAddress.getByAddress(missAddress);
+        }
+    }
+
+    private static byte[] randomAddress(final SplittableRandom random, final boolean ipv4) {
+        final byte[] address = new byte[ipv4 ? 4 : 16];
+        for (int index = 0; index < address.length; index++) {
+            address[index] = (byte) random.nextInt(256);
+        }
+        return address;
+    }
+
+    @Benchmark
+    public int longestMatchHit() {
+        return whitelist.longestMatch(hitAddresses[lookupIndex++ & (LOOKUP_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public int longestMatchMiss() {
+        return whitelist.longestMatch(missAddresses[lookupIndex++ & (LOOKUP_COUNT - 1)]);
+    }
+
+    /**
+     * Check done for every accepted connection, includes copying the address bytes
+     */
+    @Benchmark
+    public boolean containsHit() {
+        return whitelist.contains(hitInetAddresses[lookupIndex++ & (LOOKUP_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return whitelist.contains(missInetAddresses[lookupIndex++ & (LOOKUP_COUNT - 1)]);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.benchmarks;
+
+import com.jack_l.honeyport.configuration.SharedRuntimeVariables;
+import org.openjdk.jmh.Main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs benchmarks with JMH, all JMH options are accepted.
+ * Results are written as JSON to results/honeyport-[version].json unless a result format or file is given,
+ * so results of different versions can be compared.
+ */
+public final class BenchmarkMain {
+    private static final String RESULT_DIRECTORY = "results";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf") && !arguments.contains("-rff")) {
+            final File resultFile = new File(RESULT_DIRECTORY, "honeyport-" + SharedRuntimeVariables.version.split(" ")[0] + ".json");
+            if (!resultFile.getParentFile().isDirectory() && !resultFile.getParentFile().mkdirs()) {
+                System.err.println("Failed to create result directory: " + resultFile.getParentFile().getAbsolutePath());
+            }
+            arguments.addAll(0, Arrays.asList("-rf", "json", "-rff", resultFile.getPath()));
+        }
+        Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.benchmarks;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.SharedRuntimeVariables;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Configuration and console helpers shared by benchmarks
+ */
+public final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Configuration builder with log file disabled and console messages dropped instead of waited for when the log writer falls behind
+     */
+    public static CachedConfigurationValues.CachedConfigurationValuesBuilder configuration(final byte debugLevel) {
+        return CachedConfigurationValues.builder()
+                .consoleConfigurations(CachedConfigurationValues.ConsoleConfigurationValues.builder()
+                        .debugLevel(debugLevel)
+                        .logLevel((byte) 0x0)
+                        .logOverflowPolicy(CachedConfigurationValues.LogOverflowPolicy.DROP)
+                        .build());
+    }
+
+    /**
+     * Sets the configuration used by messages, it must be set before Honey Port classes are used
+     */
+    public static void apply(final CachedConfigurationValues configuration) {
+        SharedRuntimeVariables.setCurrentCachedConfiguration(configuration);
+    }
+
+    /**
+     * Messages are still built and queued, but not written to the benchmark output.
+     * Console is not restored, messages might be written by Honey Port threads until the forked VM exits.
+     */
+    public static void silenceConsole() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }));
+    }
+}
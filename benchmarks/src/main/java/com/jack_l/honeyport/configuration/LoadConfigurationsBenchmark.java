@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.configuration;
+
+import com.jack_l.honeyport.benchmarks.BenchmarkSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and validating a configuration file with long specific port and whitelist lists.
+ * Whitelist has IPv4 hosts, IPv4 networks and IPv6 networks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadConfigurationsBenchmark {
+    @Param({"100", "10000"})
+    public int specificPortCount;
+
+    @Param({"100", "10000"})
+    public int whitelistCount;
+
+    private Path configurationFile;
+
+    @Setup(Level.Trial)
+    public void writeConfigurationFile() throws IOException {
+        BenchmarkSupport.silenceConsole();
+        BenchmarkSupport.apply(BenchmarkSupport.configuration((byte) 0x0).build());
+        configurationFile = Files.createTempFile("honeyport-benchmark", ".conf");
+        try (final Writer writer = Files.newBufferedWriter(configurationFile, StandardCharsets.UTF_8)) {
+            writer.write("Program.LogLevel=0\n");
+            writer.write("Program.UseColorCode=false\n");
+            writer.write("Program.Debug=0\n");
+            writer.write("PortRange.Start=-1\n");
+            writer.write("PortRange.End=-1\n");
+            writer.write("FakeServer.Enabled=off\n");
+            writer.write("FakeServer.RandomDelayDisconnectingTime=0\n");
+            writer.write("FakeServer.RandomWelcomeMessageCount=0\n");
+            writer.write("General.BanCommand=OFF\n");
+            writer.write("General.UnbanCommand=OFF\n");
+            writer.write("General.BanLength=3600\n");
+
+            // Ports from 1024 up, every 100th port is excluded
+            writer.write("SpecificPorts=");
+            for (int index = 0; index < specificPortCount; index++) {
+                writer.write(index == 0 ? "" : ", ");
+                writer.write(String.valueOf(1024 + index * 6));
+            }
+            writer.write("\nExcludePorts=");
+            for (int index = 0; index < specificPortCount; index += 100) {
+                writer.write(index == 0 ? "" : ", ");
+                writer.write(String.valueOf(1024 + index * 6));
+            }
+
+            writer.write("\nWhiteListedIPs=");
+            for (int index = 0; index < whitelistCount; index++) {
+                writer.write(index == 0 ? "" : ", ");
+                switch (index % 3) {
+                    case 0:
+                        writer.write("10." + (index >>> 16 & 0xFF) + "." + (index >>> 8 & 0xFF) + "." + (index & 0xFF));
+                        break;
+                    case 1:
+                        writer.write("172." + (16 + (index >>> 16 & 0xF)) + "." + (index >>> 8 & 0xFF) + "." + (index & 0xF0) + "/28");
+                        break;
+                    default:
+                        writer.write("2001:db8:" + Integer.toHexString(index) + "::/48");
+                        break;
+                }
+            }
+            writer.write("\n");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteConfigurationFile() throws IOException {
+        Files.deleteIfExists(configurationFile);
+    }
+
+    @Benchmark
+    public CachedConfigurationValues loadConfigurations() throws ConfigurationExceptions {
+        return ConfigurationFileReader.loadConfigurations(configurationFile.toString());
+    }
+
+    @Benchmark
+    public boolean loadAndValidateConfigurations() throws ConfigurationExceptions {
+        return ConfigurationFileReader.validateSettings(ConfigurationFileReader.loadConfigurations(configurationFile.toString()));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.console;
+
+import com.jack_l.honeyport.benchmarks.BenchmarkSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * A detailed debug message with debug messages enabled and disabled.
+ * Parameterized and supplier messages are only built when enabled, concatenated messages are always built.
+ * When enabled, messages are queued for the log writer and dropped once the queue is full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintMessageBenchmark {
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private InetAddress remoteAddress;
+    private int remotePort = 51234;
+    private int localPort = 22;
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnknownHostException {
+        BenchmarkSupport.silenceConsole();
+        BenchmarkSupport.apply(BenchmarkSupport.configuration(enabled ? (byte) 0x2 : (byte) 0x0).build());
+        remoteAddress = InetAddress.getByName("192.0.2.75");
+    }
+
+    @Benchmark
+    public void parameterized() {
+        printMessage((byte) 0x20, "Connection from '{}:{}' to port {} is closed.", remoteAddress, remotePort, localPort);
+    }
+
+    @Benchmark
+    public void concatenated() {
+        printMessage((byte) 0x20, "Connection from '" + remoteAddress.getHostAddress() + ":" + remotePort + "' to port " + localPort + " is closed.");
+    }
+
+    @Benchmark
+    public void supplier() {
+        printMessage((byte) 0x20, () -> "Connection from '" + remoteAddress.getHostAddress() + ":" + remotePort + "' to port " + localPort + " is closed.");
+    }
+}
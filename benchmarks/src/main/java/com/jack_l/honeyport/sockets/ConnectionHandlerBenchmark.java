@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.sockets;
+
+import com.jack_l.honeyport.banlist.BanListManager;
+import com.jack_l.honeyport.benchmarks.BenchmarkSupport;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.detections.DetectionStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection handler run for a loopback connection, with and without a welcome message.
+ * Connection is made and accepted in the benchmark as well, 'acceptOnly' measures that part alone.
+ * All connections come from 127.0.0.1, so after the first one the ban list only finds the IP is already banned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionHandlerBenchmark {
+    private static final String WELCOME_MESSAGE = "SSH-2.0-OpenSSH_8.2p1 Ubuntu-4ubuntu0.1\r\n";
+
+    @Param({"false", "true"})
+    public boolean welcomeMessage;
+
+    private CachedConfigurationValues configuration;
+    private BanListManager banList;
+    private DetectionStore detectionStore;
+    private DisconnectScheduler disconnectScheduler;
+    private ServerSocketChannel serverChannel;
+    private InetSocketAddress serverAddress;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.silenceConsole();
+        final byte[] encodedMessage = WELCOME_MESSAGE.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer welcomeMessageBuffer = ByteBuffer.allocateDirect(encodedMessage.length);
+        welcomeMessageBuffer.put(encodedMessage).flip();
+        configuration = BenchmarkSupport.configuration((byte) 0x0)
+                .firewallBackend(CachedConfigurationValues.FirewallBackendType.SIMULATED)
+                .simulatedLatency(0)
+                .banLength(3600)
+                .randomWelcomeMessageCount(1)
+                .randomWelcomeMessageType(new String[]{"UTF-8"})
+                .randomWelcomeMessage(new String[]{WELCOME_MESSAGE})
+                .welcomeMessageBuffers(new ByteBuffer[]{welcomeMessageBuffer.asReadOnlyBuffer()})
+                .build();
+        BenchmarkSupport.apply(configuration);
+        banList = new BanListManager(configuration);
+        detectionStore = new DetectionStore(configuration);
+        disconnectScheduler = new DisconnectScheduler();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        serverAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        serverChannel.close();
+        disconnectScheduler.destroy();
+        detectionStore.destroy();
+        banList.destroy();
+    }
+
+    @Benchmark
+    public void acceptOnly() throws IOException {
+        final SocketChannel client = SocketChannel.open(serverAddress);
+        serverChannel.accept().close();
+        reset(client);
+    }
+
+    @Benchmark
+    public void acceptAndHandle() throws IOException {
+        final SocketChannel client = SocketChannel.open(serverAddress);
+        final SocketChannel acceptedConnection = serverChannel.accept();
+        new ConnectionHandler(configuration, banList, detectionStore, disconnectScheduler, acceptedConnection.socket(),
+                0, welcomeMessage ? 0 : -1, System.nanoTime()).run();
+        reset(client);
+    }
+
+    /**
+     * Client side is reset after the handler closed its side, so loopback ports are not left in TIME_WAIT
+     */
+    private static void reset(final SocketChannel client) throws IOException {
+        client.setOption(StandardSocketOptions.SO_LINGER, 0);
+        client.close();
+    }
+}
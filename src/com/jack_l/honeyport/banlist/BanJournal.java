@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.banlist.IPAddressData.BanState;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Append only journal of ban changes, so bans survive restarts.
+ * Changes are appended to a memory mapped log, live bans are written to a snapshot from time to time and older files are deleted.
+ * Files of generation N are "BanJournal-N.snapshot" and "BanJournal-N.log", the snapshot holds the bans when the log was started.
+ * <p>
+ * Every record is 32 bytes: key high, key low, expire time and record type. Type is written last and 0 marks the end of a log,
+ * so a record cut off by a crash is not read.
+ * <p>
+ * Appends do not lock, a record slot is reserved with an atomic counter and written to a mapped chunk of the log.
+ * Chunks are mapped ahead by sync(), so appends normally do not wait on a mapping either.
+ */
+final class BanJournal {
+    static final byte RECORD_BAN = 1;
+    static final byte RECORD_UNBAN = 2;
+    static final byte RECORD_FAILED = 3;
+
+    private static final int MAGIC = 0x48504A31;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+    private static final int CHUNK_RECORDS = 65536;
+    // Log is limited to 2 GB, it is compacted long before that
+    private static final int MAX_CHUNKS = 1024;
+    private static final int BUFFER_RECORDS = 4096;
+    // Logs shorter than this are not worth compacting
+    private static final long MIN_COMPACTION_RECORDS = 65536;
+    private static final String FILE_PREFIX = "BanJournal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Receives records of the journal in the order they were written
+     */
+    interface RecordVisitor {
+        void visit(byte type, long keyHigh, long keyLow, long expireTime);
+    }
+
+    /**
+     * Gives live bans to a snapshot
+     */
+    interface SnapshotSource {
+        void forEachBan(BanTable.EntryVisitor visitor);
+    }
+
+    private final Path directory;
+    private final Object compactionLock = new Object();
+    private long generation;
+    // Log appends go to, null if the journal is closed or failed
+    private volatile Log log;
+    private boolean closed;
+
+    BanJournal(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Reads the newest snapshot and all logs after it. Must be called before compact() opens a new log.
+     * Returns number of records read.
+     */
+    synchronized long replay(final RecordVisitor visitor) throws IOException {
+        final List<Long> snapshotGenerations = new ArrayList<>();
+        final List<Long> logGenerations = new ArrayList<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (final Path file : files) {
+                final String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    // Left by a compaction that did not finish
+                    Files.deleteIfExists(file);
+                } else if (fileName.endsWith(SNAPSHOT_SUFFIX)) {
+                    addGeneration(snapshotGenerations, fileName, SNAPSHOT_SUFFIX);
+                } else if (fileName.endsWith(LOG_SUFFIX)) {
+                    addGeneration(logGenerations, fileName, LOG_SUFFIX);
+                }
+            }
+        }
+
+        long readCount = 0;
+        long firstGeneration = 0;
+        if (!snapshotGenerations.isEmpty()) {
+            firstGeneration = Collections.max(snapshotGenerations);
+            readCount += readFile(snapshotPath(firstGeneration), visitor);
+        }
+        Collections.sort(logGenerations);
+        for (final long logGeneration : logGenerations) {
+            if (logGeneration >= firstGeneration) {
+                readCount += readFile(logPath(logGeneration), visitor);
+            }
+        }
+        generation = Math.max(firstGeneration, logGenerations.isEmpty() ? 0 : logGenerations.get(logGenerations.size() - 1));
+        return readCount;
+    }
+
+    private static void addGeneration(final List<Long> generations, final String fileName, final String suffix) {
+        try {
+            generations.add(Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - suffix.length())));
+        } catch (final NumberFormatException e) {
+            printMessage((byte) 0x10, "Ignored unknown file in ban journal directory: {}", fileName);
+        }
+    }
+
+    /**
+     * Files are read into a heap buffer instead of mapped, so they can be deleted right after on every platform
+     */
+    private static long readFile(final Path file, final RecordVisitor visitor) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            if (!readFully(channel, buffer)) {
+                return 0;
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                printMessage((byte) 0x01, "Ignored ban journal file with unknown format: {}", file);
+                return 0;
+            }
+            long readCount = 0;
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                buffer.clear();
+                endOfFile = !readFully(channel, buffer);
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    final long keyHigh = buffer.getLong();
+                    final long keyLow = buffer.getLong();
+                    final long expireTime = buffer.getLong();
+                    final long type = buffer.getLong();
+                    if (type == 0) {
+                        // End of log, rest of the file is preallocated
+                        return readCount;
+                    }
+                    visitor.visit((byte) type, keyHigh, keyLow, expireTime);
+                    readCount++;
+                }
+            }
+            return readCount;
+        }
+    }
+
+    /**
+     * Reads until the buffer is full, returns false if the end of the file was reached first
+     */
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a record, called while the segment of the IP is locked so records of one IP are in order.
+     * Appends of different IPs do not wait for each other.
+     */
+    void append(final byte type, final long keyHigh, final long keyLow, final long expireTime) {
+        final Log currentLog = log;
+        if (currentLog == null) {
+            return;
+        }
+        try {
+            currentLog.append(type, keyHigh, keyLow, expireTime);
+        } catch (final ClosedChannelException e) {
+            // Log was replaced by compaction while appending, the change is in the snapshot of the new log
+        } catch (final IOException e) {
+            synchronized (this) {
+                if (log == currentLog) {
+                    printMessage((byte) 0x01, "Failed to write ban journal, ban changes are no longer saved. (Exception: {})", e);
+                    log = null;
+                    currentLog.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the log has grown past the live bans enough to be compacted
+     */
+    boolean needsCompaction(final long liveCount) {
+        final Log currentLog = log;
+        if (currentLog == null) {
+            return false;
+        }
+        final long recordCount = currentLog.recordCount.get();
+        return recordCount >= MIN_COMPACTION_RECORDS && recordCount > liveCount;
+    }
+
+    /**
+     * Starts a new log and writes live bans to a snapshot, then deletes older files.
+     * Records appended while the snapshot is written go to the new log, replaying them after the snapshot gives the same bans.
+     * Files that cannot be deleted yet, e.g. still mapped on Windows, are deleted by the next compaction.
+     */
+    void compact(final SnapshotSource source) throws IOException {
+        synchronized (compactionLock) {
+            final long newGeneration;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                newGeneration = generation + 1;
+                final Log oldLog = log;
+                log = new Log(logPath(newGeneration), newGeneration);
+                generation = newGeneration;
+                if (oldLog != null) {
+                    oldLog.close();
+                }
+            }
+            writeSnapshot(newGeneration, source);
+
+            try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+                for (final Path file : files) {
+                    final String fileName = file.getFileName().toString();
+                    final String suffix = fileName.endsWith(LOG_SUFFIX) ? LOG_SUFFIX : fileName.endsWith(SNAPSHOT_SUFFIX) ? SNAPSHOT_SUFFIX : null;
+                    if (suffix == null) {
+                        continue;
+                    }
+                    try {
+                        if (Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - suffix.length())) < newGeneration) {
+                            Files.deleteIfExists(file);
+                        }
+                    } catch (final NumberFormatException e) {
+                        // Not a journal file, leave it
+                    } catch (final IOException e) {
+                        printMessage((byte) 0x10, "Failed to delete old ban journal file: {}, it will be deleted on next compaction. (Exception: {})", fileName, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshot is written to a temporary file and moved in place once it is complete
+     */
+    private void writeSnapshot(final long snapshotGeneration, final SnapshotSource source) throws IOException {
+        final Path tempFile = directory.resolve(FILE_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX + TEMP_SUFFIX);
+        try (final FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotGeneration);
+            try {
+                source.forEachBan((keyHigh, keyLow, expireTime, state) -> {
+                    putRecord(channel, buffer, RECORD_BAN, keyHigh, keyLow, expireTime);
+                    if (state == BanState.FAILED) {
+                        putRecord(channel, buffer, RECORD_FAILED, keyHigh, keyLow, expireTime);
+                    }
+                });
+            } catch (final UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotPath(snapshotGeneration), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putRecord(final FileChannel channel, final ByteBuffer buffer, final byte type, final long keyHigh, final long keyLow, final long expireTime) {
+        if (buffer.remaining() < RECORD_SIZE) {
+            try {
+                writeFully(channel, buffer);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        buffer.putLong(keyHigh).putLong(keyLow).putLong(expireTime).putLong(type);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes appended records to disk, they are otherwise written when the system decides to.
+     * Next chunk of the log is mapped here, so appends do not have to.
+     */
+    void sync() {
+        final Log currentLog = log;
+        if (currentLog != null) {
+            currentLog.force();
+            try {
+                currentLog.mapNextChunk();
+            } catch (final IOException e) {
+                // Tried again by the append that needs it
+            }
+        }
+    }
+
+    /**
+     * Number of records in the current log
+     */
+    long getRecordCount() {
+        final Log currentLog = log;
+        return currentLog == null ? 0 : currentLog.recordCount.get();
+    }
+
+    /**
+     * Closes the journal, records appended afterwards are ignored
+     */
+    synchronized void close() {
+        closed = true;
+        final Log oldLog = log;
+        log = null;
+        if (oldLog != null) {
+            oldLog.close();
+        }
+    }
+
+    private Path logPath(final long logGeneration) {
+        return directory.resolve(FILE_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private Path snapshotPath(final long snapshotGeneration) {
+        return directory.resolve(FILE_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * One log file, mapped in chunks of 65536 records after the header
+     */
+    private static final class Log {
+        private final FileChannel channel;
+        private final AtomicReferenceArray<MappedByteBuffer> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+        // Reserved records, a reserved record might not be written yet
+        private final AtomicLong recordCount = new AtomicLong();
+
+        private Log(final Path file, final long logGeneration) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(logGeneration);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                chunk(0);
+            } catch (final IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void append(final byte type, final long keyHigh, final long keyLow, final long expireTime) throws IOException {
+            final long record = recordCount.getAndIncrement();
+            if (record >= (long) MAX_CHUNKS * CHUNK_RECORDS) {
+                throw new IOException("Ban journal log is full");
+            }
+            final MappedByteBuffer chunk = chunk((int) (record / CHUNK_RECORDS));
+            final int position = (int) (record % CHUNK_RECORDS) * RECORD_SIZE;
+            chunk.putLong(position, keyHigh);
+            chunk.putLong(position + 8, keyLow);
+            chunk.putLong(position + 16, expireTime);
+            chunk.putLong(position + 24, type);
+        }
+
+        /**
+         * Returns a chunk, maps it if it is not mapped yet. Mapping extends the file.
+         */
+        private MappedByteBuffer chunk(final int index) throws IOException {
+            MappedByteBuffer chunk = chunks.get(index);
+            if (chunk == null) {
+                synchronized (this) {
+                    chunk = chunks.get(index);
+                    if (chunk == null) {
+                        chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) index * CHUNK_RECORDS * RECORD_SIZE, (long) CHUNK_RECORDS * RECORD_SIZE);
+                        chunks.set(index, chunk);
+                    }
+                }
+            }
+            return chunk;
+        }
+
+        private void mapNextChunk() throws IOException {
+            final long nextChunk = recordCount.get() / CHUNK_RECORDS + 1;
+            if (nextChunk < MAX_CHUNKS) {
+                chunk((int) nextChunk);
+            }
+        }
+
+        private void force() {
+            for (int index = 0; index < MAX_CHUNKS; index++) {
+                final MappedByteBuffer chunk = chunks.get(index);
+                if (chunk != null) {
+                    chunk.force();
+                }
+            }
+        }
+
+        /**
+         * Flushes and closes the file, chunks are dropped so their mappings can be released
+         */
+        private void close() {
+            synchronized (this) {
+                force();
+                for (int index = 0; index < MAX_CHUNKS; index++) {
+                    chunks.set(index, null);
+                }
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    printMessage((byte) 0x10, "Failed to close ban journal log. (Exception: {})", e);
+                }
+            }
+        }
+    }
+}
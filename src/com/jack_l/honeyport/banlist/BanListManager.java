@@ -17,43 +17,76 @@
 
 package com.jack_l.honeyport.banlist;
 
+import com.jack_l.honeyport.banlist.IPAddressData.BanState;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.ConfigurationDiff;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
 
 import javax.security.auth.Destroyable;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
 /**
- * Manages ban list, ban, unban operations should all go through here
+ * Manages ban list, ban, unban operations should all go through here.
+ * Firewall is updated by the firewall pipeline in background, ban table segment locks are only held to update the table.
  */
 public class BanListManager implements Destroyable {
-    private final CachedConfigurationValues configuration;
-    private volatile Map<String, IPAddressData> bannedIps;
-    private final Object dataSafetyLock = new Object();
+    private volatile CachedConfigurationValues configuration;
+    private static final int EXPIRY_BATCH_SIZE = 1024;
+    private static final int SEGMENT_COUNT_BITS = 6;
+    private static final int SEGMENT_EXPECTED_SIZE = 64;
+    private static final long JOURNAL_CHECK_INTERVAL = 60;
+    private static final BanState[] BAN_STATES = BanState.values();
+    // Ban table is split into segments by IP, each segment is its own lock
+    private volatile BanTable[] bannedIps;
+    private final ExpiryHeap expiryHeap = new ExpiryHeap();
     private final Thread unbanTimerThread;
+    private final FirewallBackend firewallBackend;
+    private final FirewallPipeline firewallPipeline;
+    private final BanJournal banJournal;
+    private final ScheduledThreadPoolExecutor journalScheduler;
 
     /**
      * Constructor
      */
     public BanListManager(final CachedConfigurationValues configuration) {
+        this(configuration, createFirewallBackend(configuration));
+    }
+
+    /**
+     * Constructor with a given firewall backend, the ban list takes ownership of the backend
+     */
+    public BanListManager(final CachedConfigurationValues configuration, final FirewallBackend firewallBackend) {
         this.configuration = configuration;
+        this.firewallBackend = firewallBackend;
+        firewallPipeline = new FirewallPipeline(firewallBackend, configuration);
         final boolean isBanCmdAvailable = isBanCmdAvailable();
         final boolean isUnbanCmdAvailable = isUnbanCmdAvailable();
 
         if (isBanCmdAvailable && isUnbanCmdAvailable) {
-            bannedIps = new LinkedHashMap<>();
-            if (configuration.getBanLength() > 0) {
-                unbanTimerThread = createAutoUnbanTimer();
-                unbanTimerThread.start();
+            bannedIps = createSegments();
+            banJournal = openBanJournal(configuration);
+            if (banJournal != null) {
+                restoreBans(bannedIps);
+                journalScheduler = createJournalScheduler();
             } else {
-                unbanTimerThread = null;
+                journalScheduler = null;
             }
+            unbanTimerThread = createAutoUnbanTimer();
+            unbanTimerThread.start();
         } else {
             bannedIps = null;
+            banJournal = null;
+            journalScheduler = null;
             unbanTimerThread = null;
         }
 
@@ -64,105 +97,427 @@ public class BanListManager implements Destroyable {
         } else {
             printMessage((byte) 0x00, "Ban list successfully initialized.");
         }
+        MetricsRegistry.registerGauge("honeyport_banned_ips", "Banned IPs", () -> getBanTableUsage()[0]);
+    }
+
+    private static FirewallBackend createFirewallBackend(final CachedConfigurationValues configuration) {
+        switch (configuration.getFirewallBackend()) {
+            case PERSISTENT:
+                return new PersistentProcessFirewallBackend(configuration);
+            case SIMULATED:
+                return new SimulatedFirewallBackend(configuration);
+            default:
+                return new ShellTemplateFirewallBackend(configuration);
+        }
+    }
+
+    private static BanJournal openBanJournal(final CachedConfigurationValues configuration) {
+        if (configuration.getBanJournal().equalsIgnoreCase("OFF")) {
+            return null;
+        }
+        try {
+            return new BanJournal(Paths.get(configuration.getBanJournal()));
+        } catch (final IOException | RuntimeException e) {
+            printMessage((byte) 0x01, "Failed to open ban journal, bans will not be saved. (Exception: {})", e);
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the ban table from the journal in one pass, then applies the bans again unless firewall rules were kept.
+     * Called before the ban list is used, so segments are not locked while they are filled.
+     */
+    private void restoreBans(final BanTable[] segments) {
+        final long startTime = System.currentTimeMillis();
+        final long recordCount;
+        try {
+            recordCount = banJournal.replay((type, keyHigh, keyLow, expireTime) -> {
+                final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+                if (type == BanJournal.RECORD_BAN) {
+                    segment.put(keyHigh, keyLow, expireTime, BanState.ACTIVE);
+                } else if (type == BanJournal.RECORD_UNBAN) {
+                    segment.remove(keyHigh, keyLow);
+                } else if (type == BanJournal.RECORD_FAILED) {
+                    final int slot = segment.indexOf(keyHigh, keyLow);
+                    if (slot != BanTable.NOT_FOUND && segment.getExpireTime(slot) == expireTime) {
+                        segment.setState(slot, BanState.FAILED);
+                    }
+                }
+            });
+        } catch (final IOException | RuntimeException e) {
+            // No new log is started, so files are left for next start
+            printMessage((byte) 0x01, "Failed to read ban journal, bans are not restored or saved. (Exception: {})", e);
+            for (final BanTable segment : segments) {
+                segment.clear();
+            }
+            return;
+        }
+
+        // Expired and whitelisted bans are dropped, their rules only exist if firewall rules were kept
+        final boolean keepFirewallRules = configuration.isKeepFirewallRules();
+        final long currentTime = System.currentTimeMillis();
+        int restoredCount = 0;
+        int droppedCount = 0;
+        for (final BanTable segment : segments) {
+            final long[] entries = copyEntries(segment);
+            for (int index = 0; index < entries.length; index += 4) {
+                final long keyHigh = entries[index];
+                final long keyLow = entries[index + 1];
+                final long expireTime = entries[index + 2];
+                final InetAddress inetAddress = BanTable.toInetAddress(keyHigh, keyLow);
+                final int slot = segment.indexOf(keyHigh, keyLow);
+                if (expireTime <= currentTime || configuration.getIpWhiteList().contains(inetAddress)) {
+                    if (keepFirewallRules) {
+                        removeBan(segment, keyHigh, keyLow, inetAddress.getHostAddress(), slot);
+                    } else {
+                        segment.removeAt(slot);
+                    }
+                    droppedCount++;
+                    continue;
+                }
+                if (!keepFirewallRules || BAN_STATES[(int) entries[index + 3]] == BanState.FAILED) {
+                    segment.setState(slot, BanState.PENDING);
+                }
+                if (expireTime != Long.MAX_VALUE) {
+                    expiryHeap.add(keyHigh, keyLow, expireTime);
+                }
+                restoredCount++;
+            }
+        }
+
+        // New log is started before bans are applied, so their results are recorded
+        compactBanJournal(segments);
+        for (final BanTable segment : segments) {
+            synchronized (segment) {
+                final long[] entries = copyEntries(segment);
+                for (int index = 0; index < entries.length; index += 4) {
+                    if (BAN_STATES[(int) entries[index + 3]] == BanState.PENDING) {
+                        submitBan(BanTable.toInetAddress(entries[index], entries[index + 1]).getHostAddress(), entries[index], entries[index + 1], entries[index + 2], 0);
+                    }
+                }
+            }
+        }
+        printMessage((byte) 0x00, "Restored {} bans from ban journal in {} ms. ({} records read, {} expired or whitelisted bans dropped)", restoredCount, System.currentTimeMillis() - startTime, recordCount, droppedCount);
+    }
+
+    /**
+     * Journal is flushed and compacted on its own thread
+     */
+    private ScheduledThreadPoolExecutor createJournalScheduler() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "HoneyPort-BanJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            banJournal.sync();
+            final BanTable[] segments = bannedIps;
+            if (segments != null && banJournal.needsCompaction(getBanTableUsage()[0])) {
+                compactBanJournal(segments);
+            }
+        }, JOURNAL_CHECK_INTERVAL, JOURNAL_CHECK_INTERVAL, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    private void compactBanJournal(final BanTable[] segments) {
+        final long startTime = System.currentTimeMillis();
+        final long recordCount = banJournal.getRecordCount();
+        try {
+            banJournal.compact(visitor -> {
+                for (final BanTable segment : segments) {
+                    final long[] entries;
+                    synchronized (segment) {
+                        entries = copyEntries(segment);
+                    }
+                    for (int index = 0; index < entries.length; index += 4) {
+                        visitor.visit(entries[index], entries[index + 1], entries[index + 2], BAN_STATES[(int) entries[index + 3]]);
+                    }
+                }
+            });
+            printMessage((byte) 0x10, "Ban journal compacted in {} ms. ({} log records replaced by a snapshot)", System.currentTimeMillis() - startTime, recordCount);
+        } catch (final IOException | RuntimeException e) {
+            printMessage((byte) 0x01, "Failed to compact ban journal. (Exception: {})", e);
+        }
+    }
+
+    /**
+     * Copies entries of a segment as key high, key low, expire time and state ordinal, caller must hold the segment lock
+     */
+    private static long[] copyEntries(final BanTable segment) {
+        final long[] entries = new long[segment.size() * 4];
+        final int[] index = {0};
+        segment.forEach((keyHigh, keyLow, expireTime, state) -> {
+            entries[index[0]++] = keyHigh;
+            entries[index[0]++] = keyLow;
+            entries[index[0]++] = expireTime;
+            entries[index[0]++] = state.ordinal();
+        });
+        return entries;
+    }
+
+    private static BanTable[] createSegments() {
+        final BanTable[] segments = new BanTable[1 << SEGMENT_COUNT_BITS];
+        for (int index = 0; index < segments.length; index++) {
+            segments[index] = new BanTable(SEGMENT_EXPECTED_SIZE);
+        }
+        return segments;
+    }
+
+    /**
+     * Picks the segment of an IP from the top bits of a hash, the table itself uses the low bits of another hash
+     */
+    private static BanTable segmentOf(final BanTable[] segments, final long keyHigh, final long keyLow) {
+        return segments[(int) (((keyLow ^ (keyHigh * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L) >>> (64 - SEGMENT_COUNT_BITS))];
     }
 
     private boolean isBanCmdAvailable() {
-        return configuration.getBanCmd() != null && !configuration.getBanCmd().isEmpty() && !configuration.getBanCmd().equalsIgnoreCase("OFF");
+        return firewallBackend.isBanSupported();
     }
 
     private boolean isUnbanCmdAvailable() {
-        return configuration.getUnbanCmd() != null && !configuration.getUnbanCmd().isEmpty() && !configuration.getUnbanCmd().equalsIgnoreCase("OFF");
+        return firewallBackend.isUnbanSupported();
     }
 
+    /**
+     * Auto unban waits on the expiry heap, it sleeps until the earliest ban expires and parks when there are no bans.
+     * Bans that expire together are removed in one pass.
+     */
     private Thread createAutoUnbanTimer() {
         return new Thread(() -> {
+            final long[] expiredBans = new long[EXPIRY_BATCH_SIZE * 3];
             try {
                 while (bannedIps != null) {
-                    long nextAwakeTime = 3000;
-                    synchronized (dataSafetyLock) {
-                        if (!bannedIps.isEmpty()) {
-                            // Use peak to check if exp
-                            final IPAddressData[] ipData = bannedIps.values().toArray(new IPAddressData[0]);
-                            if (ipData[0].getExpireTime() <= System.currentTimeMillis()) {
-                                printMessage((byte) 0x00, "IP '" + ipData[0].getIpAddress().getHostAddress() + "' ban time has expired.");
-                                removeBan(ipData[0], true);
-                                if (ipData.length > 1) {
-                                    nextAwakeTime = ipData[1].getExpireTime() - System.currentTimeMillis();
-                                }
-                            } else {
-                                // This works as long as the user cannot alter ban length
-                                // If the first IP in the list is removed, the expiry time of the next IP in the list is always later than the removed one.
-                                nextAwakeTime = ipData[0].getExpireTime() - System.currentTimeMillis();
+                    final int expiredCount = expiryHeap.takeExpired(expiredBans);
+                    final BanTable[] segments = bannedIps;
+                    int removedCount = 0;
+                    for (int index = 0; segments != null && index < expiredCount; index++) {
+                        final long keyHigh = expiredBans[index * 3];
+                        final long keyLow = expiredBans[index * 3 + 1];
+                        final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+                        synchronized (segment) {
+                            // Skip bans that were removed or banned again since they were queued
+                            final int slot = segment.indexOf(keyHigh, keyLow);
+                            if (slot != BanTable.NOT_FOUND && segment.getExpireTime(slot) == expiredBans[index * 3 + 2]) {
+                                final String ipAddress = BanTable.toInetAddress(keyHigh, keyLow).getHostAddress();
+                                printMessage((byte) 0x00, "IP '{}' ban time has expired.", ipAddress);
+                                removeBan(segment, keyHigh, keyLow, ipAddress, slot);
+                                removedCount++;
                             }
                         }
                     }
-                    if (nextAwakeTime > 0) {
-                        printMessage((byte) 0x20, "Auto unban finished an execution and it is sleeping for: " + nextAwakeTime + "ms.");
-                        Thread.sleep(nextAwakeTime);
-                    } else {
-                        printMessage((byte) 0x20, "Auto unban finished an execution and it will execute the next one immediately. Time difference: " + nextAwakeTime + "ms.");
-                    }
+                    printMessage((byte) 0x20, "Auto unban removed {} expired bans, {} bans are waiting to expire.", removedCount, expiryHeap.size());
                 }
             } catch (final InterruptedException e) {
                 printMessage((byte) 0x10, "Auto unban timer is shutting down.");
             } catch (final Exception e) {
-                printMessage((byte) 0x01, "Auto unban timer failed, auto unban will no longer work. (Exception: " + e + ")");
+                printMessage((byte) 0x01, "Auto unban timer failed, auto unban will no longer work. (Exception: {})", e);
             }
-        });
+        }, "HoneyPort-AutoUnban");
     }
 
     /**
-     * Return an array of banned IPs
+     * Return an array of banned IPs. Segments are copied one at a time, bans made meanwhile might be left out.
      */
     public String[] getIpList() {
-        synchronized (dataSafetyLock) {
-            if (bannedIps != null) {
-                return bannedIps.keySet().toArray(new String[0]);
+        final List<String> ipList = new ArrayList<>();
+        final BanTable[] segments = bannedIps;
+        if (segments != null) {
+            for (final BanTable segment : segments) {
+                synchronized (segment) {
+                    segment.forEach((keyHigh, keyLow, expireTime, state) -> ipList.add(BanTable.toInetAddress(keyHigh, keyLow).getHostAddress()));
+                }
             }
         }
-        return new String[0];
+        return ipList.toArray(new String[0]);
     }
 
     /**
-     * Adds a new ban, only when ban command is applied
+     * Return banned IPs with their firewall rule states, ordered by expire time
      */
-    public void addBan(final InetAddress inetRemoteAddress) {
-        final String remoteIp = inetRemoteAddress.getHostAddress();
+    public IPAddressData[] getBannedIpData() {
+        final List<IPAddressData> ipDataList = new ArrayList<>();
+        final BanTable[] segments = bannedIps;
+        if (segments != null) {
+            for (final BanTable segment : segments) {
+                synchronized (segment) {
+                    segment.forEach((keyHigh, keyLow, expireTime, state) -> ipDataList.add(new IPAddressData(BanTable.toInetAddress(keyHigh, keyLow), expireTime, state)));
+                }
+            }
+        }
+        ipDataList.sort(Comparator.comparingLong(IPAddressData::getExpireTime));
+        return ipDataList.toArray(new IPAddressData[0]);
+    }
+
+    /**
+     * Number of banned IPs and approximate memory used by the ban table in bytes
+     */
+    public long[] getBanTableUsage() {
+        final long[] usage = new long[2];
+        final BanTable[] segments = bannedIps;
+        if (segments != null) {
+            for (final BanTable segment : segments) {
+                synchronized (segment) {
+                    usage[0] += segment.size();
+                    usage[1] += segment.getMemoryUsage();
+                }
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Checks if an IP is banned or its ban is being applied. IPs with failed bans are not banned, so they can be banned again.
+     */
+    public boolean isBanned(final InetAddress inetAddress) {
+        final BanTable[] segments = bannedIps;
+        if (segments == null) {
+            return false;
+        }
+        final byte[] address = inetAddress.getAddress();
+        final long keyHigh = BanTable.keyHigh(address);
+        final long keyLow = BanTable.keyLow(address);
+        final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+        synchronized (segment) {
+            final int slot = segment.indexOf(keyHigh, keyLow);
+            return slot != BanTable.NOT_FOUND && segment.getState(slot) != BanState.FAILED;
+        }
+    }
+
+    /**
+     * Adds a new ban of a detected connection with ban length from configuration.
+     * Accept time is from System.nanoTime() when the connection was accepted, it is used for accept to ban latency.
+     */
+    public void addDetectedBan(final InetAddress inetRemoteAddress, final long acceptTime) {
+        addBan(inetRemoteAddress, configuration.getBanLength(), acceptTime);
+    }
+
+    /**
+     * Adds a new ban, only when ban command is applied. Returns immediately, command is executed in background.
+     * Ban length is in seconds, 0 bans the IP permanently.
+     * Only the segment of the IP is locked, bans of unrelated IPs do not wait for each other.
+     */
+    public void addBan(final InetAddress inetRemoteAddress, final long banLength) {
+        addBan(inetRemoteAddress, banLength, 0);
+    }
+
+    private void addBan(final InetAddress inetRemoteAddress, final long banLength, final long acceptTime) {
         if (!isBanCmdAvailable()) {
             return;
         }
 
-        // Check whitelist
-        if (configuration.getIpWhiteList().contains(inetRemoteAddress)) {
-            printMessage((byte) 0x04, "IP: '" + remoteIp + "' is in the whitelist, ignored.");
+        // Check whitelist, connections are normally checked at accept time already
+        final byte[] address = inetRemoteAddress.getAddress();
+        if (configuration.getIpWhiteList().contains(address)) {
+            printMessage((byte) 0x04, "IP: '{}' is in the whitelist, ignored.", inetRemoteAddress);
             return; // No need this thread anymore. Exit immediately
         }
 
-        // Replacing %ip with actual detected IP address
-        final String exeCmd = configuration.getBanCmd().replaceAll("%ip", remoteIp);
+        final long keyHigh = BanTable.keyHigh(address);
+        final long keyLow = BanTable.keyLow(address);
+        final long expireTime = banLength > 0 ? System.currentTimeMillis() + banLength * 1000L : Long.MAX_VALUE;
+        final BanTable[] segments = bannedIps;
+        if (segments == null) {
+            // Ban list is not used without unban command, every detection is banned again
+            submitBan(inetRemoteAddress.getHostAddress(), keyHigh, keyLow, expireTime, acceptTime);
+            return;
+        }
 
-        // Prepare to execute command, only one execution at a time
-        try {
-            // Check banlist, make sure no duplicate bans
-            synchronized (dataSafetyLock) {
-                if (bannedIps != null && bannedIps.get(remoteIp) != null) {
-                    printMessage((byte) 0x20, "IP '" + remoteIp + "' is already in the banned list.");
-                    return;
+        // Check banlist, make sure no duplicate bans. A failed ban is attempted again.
+        final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+        synchronized (segment) {
+            final int slot = segment.indexOf(keyHigh, keyLow);
+            if (slot != BanTable.NOT_FOUND && segment.getState(slot) != BanState.FAILED) {
+                printMessage((byte) 0x20, "IP '{}' is already in the banned list.", inetRemoteAddress);
+                return;
+            }
+            segment.put(keyHigh, keyLow, expireTime, BanState.PENDING);
+            appendJournal(BanJournal.RECORD_BAN, keyHigh, keyLow, expireTime);
+            // Submitted while holding the segment lock, so a ban and an unban of the same IP reach the firewall in order
+            submitBan(inetRemoteAddress.getHostAddress(), keyHigh, keyLow, expireTime, acceptTime);
+        }
+        if (banLength > 0) {
+            expiryHeap.add(keyHigh, keyLow, expireTime);
+        }
+    }
+
+    /**
+     * Firewall is updated on its own thread, state is updated once it is done. Accept time is 0 if the ban is not from a detection.
+     */
+    private void submitBan(final String remoteIp, final long keyHigh, final long keyLow, final long expireTime, final long acceptTime) {
+        firewallPipeline.submitBan(remoteIp, succeeded -> {
+            updateBanState(keyHigh, keyLow, expireTime, succeeded ? BanState.ACTIVE : BanState.FAILED);
+            if (succeeded) {
+                if (acceptTime != 0) {
+                    MetricsRegistry.ACCEPT_TO_BAN_LATENCY.record(System.nanoTime() - acceptTime);
                 }
+                printMessage((byte) 0x05, "Banned IP: {}", remoteIp);
+            } else {
+                printMessage((byte) 0x01, "Failed to ban IP: {}. It will be banned again on next connection.", remoteIp);
+            }
+        });
+    }
 
-                // Executing cmd here.
-                printMessage((byte) 0x10, "Executing cmd: " + exeCmd);
-                Runtime.getRuntime().exec(exeCmd);
-                printMessage((byte) 0x05, "Banned IP: " + remoteIp);
+    /**
+     * Updates state of a ban, unless it was removed or banned again in the meantime
+     */
+    private void updateBanState(final long keyHigh, final long keyLow, final long expireTime, final BanState state) {
+        final BanTable[] segments = bannedIps;
+        if (segments != null) {
+            final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+            synchronized (segment) {
+                final int slot = segment.indexOf(keyHigh, keyLow);
+                if (slot != BanTable.NOT_FOUND && segment.getExpireTime(slot) == expireTime) {
+                    segment.setState(slot, state);
+                    if (state == BanState.FAILED) {
+                        appendJournal(BanJournal.RECORD_FAILED, keyHigh, keyLow, expireTime);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a ban change, caller must hold the segment lock of the IP
+     */
+    private void appendJournal(final byte type, final long keyHigh, final long keyLow, final long expireTime) {
+        if (banJournal != null) {
+            banJournal.append(type, keyHigh, keyLow, expireTime);
+        }
+    }
 
-                if (bannedIps != null) {
-                    final IPAddressData newBannedIp = new IPAddressData(inetRemoteAddress, System.currentTimeMillis() + configuration.getBanLength() * 1000L);
-                    bannedIps.put(remoteIp, newBannedIp);
+    /**
+     * Applies a reloaded configuration in place, bans are kept. New ban length is used for new bans,
+     * banned IPs that are now whitelisted are unbanned.
+     */
+    public void applyConfiguration(final CachedConfigurationValues newConfiguration, final ConfigurationDiff diff) {
+        configuration = newConfiguration;
+        final BanTable[] segments = bannedIps;
+        if (!diff.isWhitelistChanged() || segments == null) {
+            return;
+        }
+        int removedCount = 0;
+        for (final BanTable segment : segments) {
+            synchronized (segment) {
+                final long[] entries = copyEntries(segment);
+                for (int index = 0; index < entries.length; index += 4) {
+                    final InetAddress inetAddress = BanTable.toInetAddress(entries[index], entries[index + 1]);
+                    if (newConfiguration.getIpWhiteList().contains(inetAddress)) {
+                        removeBan(segment, entries[index], entries[index + 1], inetAddress.getHostAddress(), segment.indexOf(entries[index], entries[index + 1]));
+                        removedCount++;
+                    }
                 }
             }
-        } catch (Exception e) {
-            printMessage((byte) 0x01, "Failed to execute command: " + exeCmd + ". (Exception: " + e + ")");
         }
+        if (removedCount > 0) {
+            printMessage((byte) 0x05, "Removed {} whitelisted IPs from ban list.", removedCount);
+        }
+    }
+
+    /**
+     * Returns statistics of the firewall backend and its batches
+     */
+    public String[] getFirewallStatistics() {
+        return firewallPipeline.getStatistics();
     }
 
     @Override
@@ -170,73 +525,103 @@ public class BanListManager implements Destroyable {
         if (unbanTimerThread != null) {
             unbanTimerThread.interrupt();
         }
+        if (journalScheduler != null) {
+            journalScheduler.shutdownNow();
+            try {
+                journalScheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                // Does not care about exception
+            }
+        }
 
-        if (bannedIps != null) {
-            removeAllBans();
-            bannedIps.clear();
+        final BanTable[] segments = bannedIps;
+        if (segments != null && banJournal != null && configuration.isKeepFirewallRules()) {
+            // Queued bans are applied first, so failed bans are still recorded
+            firewallPipeline.destroy();
+            banJournal.close();
+            printMessage((byte) 0x05, "Firewall rules of {} bans are kept, they will be restored on next start.", getBanTableUsage()[0]);
             bannedIps = null;
+        } else {
+            // Journal is closed first, bans removed below are restored on next start
+            if (banJournal != null) {
+                banJournal.close();
+            }
+            // Pipeline keeps submission order, unbans below are applied after queued bans
+            if (segments != null) {
+                removeAllBans(segments);
+                bannedIps = null;
+            }
+            firewallPipeline.destroy();
         }
+        expiryHeap.clear();
+        firewallBackend.destroy();
     }
 
-    private void removeAllBans() {
-        synchronized (dataSafetyLock) {
-            if (bannedIps != null) {
-                //Must use a different array here, otherwise could cause concurrent modification exception
-                for (final IPAddressData ipData : bannedIps.values().toArray(new IPAddressData[0])) {
-                    removeBan(ipData, false);
-                }
-                if (bannedIps.size() <= 0) {
-                    printMessage((byte) 0x05, "All bans are removed.");
-                } else {
-                    printMessage((byte) 0x01, "Failed to remove " + bannedIps.size() + " IPs from ban list.");
+    private void removeAllBans(final BanTable[] segments) {
+        int remainingCount = 0;
+        for (final BanTable segment : segments) {
+            synchronized (segment) {
+                // Entries are copied first, removing entries moves other entries in the table
+                final long[] entries = copyEntries(segment);
+                for (int index = 0; index < entries.length; index += 4) {
+                    removeBan(segment, entries[index], entries[index + 1], BanTable.toInetAddress(entries[index], entries[index + 1]).getHostAddress(), segment.indexOf(entries[index], entries[index + 1]));
                 }
+                remainingCount += segment.size();
             }
         }
+        if (remainingCount <= 0) {
+            printMessage((byte) 0x05, "All bans are removed from ban list.");
+        } else {
+            printMessage((byte) 0x01, "Failed to remove {} IPs from ban list.", remainingCount);
+        }
     }
 
     /**
      * Removes a ban with IP address, only when ban and unband commands are applied
      */
     public void removeBan(final String ipAddress) {
-        synchronized (dataSafetyLock) {
-            try {
-                if (bannedIps != null) {
-                    final InetAddress inetIpAddress = InetAddress.getByName(ipAddress);
-                    final IPAddressData ipData = bannedIps.get(inetIpAddress.getHostAddress());
-                    if (ipData != null) {
-                        removeBan(ipData, false);
-                    } else {
-                        printMessage((byte) 0x01, "Failed to unban IP: " + ipAddress + ". (No such IP in ban list)");
-                    }
+        final BanTable[] segments = bannedIps;
+        if (segments == null) {
+            printMessage((byte) 0x01, "Failed to unban IP. (Ban list did not initialized)");
+            return;
+        }
+        try {
+            final InetAddress inetIpAddress = InetAddress.getByName(ipAddress);
+            final byte[] address = inetIpAddress.getAddress();
+            final long keyHigh = BanTable.keyHigh(address);
+            final long keyLow = BanTable.keyLow(address);
+            final BanTable segment = segmentOf(segments, keyHigh, keyLow);
+            synchronized (segment) {
+                final int slot = segment.indexOf(keyHigh, keyLow);
+                if (slot != BanTable.NOT_FOUND) {
+                    removeBan(segment, keyHigh, keyLow, inetIpAddress.getHostAddress(), slot);
                 } else {
-                    printMessage((byte) 0x01, "Failed to unban IP. (Ban list did not initialized)");
+                    printMessage((byte) 0x01, "Failed to unban IP: {}. (No such IP in ban list)", ipAddress);
                 }
-            } catch (UnknownHostException e) {
-                printMessage((byte) 0x01, "Failed to unban IP: " + ipAddress + ". (Invalid IP address)");
-            }
-        }
-    }
-
-    private void removeBan(final IPAddressData ipData, final boolean isRequestedFromAutoBan) {
-        synchronized (dataSafetyLock) {
-            if (bannedIps != null) {
-                String exeCmd = configuration.getUnbanCmd().replaceAll("%ip", ipData.getInetAddress().getHostAddress());
-                try {
-                    printMessage((byte) 0x10, "Executing cmd: " + exeCmd);
-                    Runtime.getRuntime().exec(exeCmd);
-                    bannedIps.remove(ipData.getIpAddress().getHostAddress());
-                    printMessage((byte) 0x05, "Unbanned IP: " + ipData.getIpAddress().getHostAddress());
-                } catch (Exception e) {
-                    printMessage((byte) 0x01, "Failed to execute command: " + exeCmd + ". (Exception: " + e + ")");
-                } finally {
-                    // If the request is from auto ban, remove the IP from the list regardless, otherwise this will end up in an infinite loop
-                    if (isRequestedFromAutoBan) {
-                        bannedIps.remove(ipData.getIpAddress().getHostAddress());
-                    }
-                }
-            } else {
-                printMessage((byte) 0x01, "Failed to unban IP. (Ban list did not initialized)");
             }
+        } catch (UnknownHostException e) {
+            printMessage((byte) 0x01, "Failed to unban IP: {}. (Invalid IP address)", ipAddress);
         }
     }
+
+    /**
+     * Removes the ban in a table slot, caller must hold the segment lock
+     */
+    private void removeBan(final BanTable segment, final long keyHigh, final long keyLow, final String ipAddress, final int slot) {
+        // Removed from the list right away, unban command runs in background
+        final BanState state = segment.getState(slot);
+        appendJournal(BanJournal.RECORD_UNBAN, keyHigh, keyLow, segment.getExpireTime(slot));
+        segment.removeAt(slot);
+        if (state == BanState.FAILED) {
+            printMessage((byte) 0x05, "Removed IP: {} from ban list. (Ban was not applied)", ipAddress);
+            return;
+        }
+        firewallPipeline.submitUnban(ipAddress, succeeded -> {
+            if (succeeded) {
+                printMessage((byte) 0x05, "Unbanned IP: {}", ipAddress);
+            } else {
+                printMessage((byte) 0x01, "Failed to unban IP: {}. Firewall rule might still exist.", ipAddress);
+            }
+        });
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.banlist.IPAddressData.BanState;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Open addressing hash table of banned IPs, stored in parallel primitive arrays instead of one object per ban.
+ * IPs are keyed by two longs: IPv6 addresses as they are, IPv4 addresses as IPv4-mapped IPv6 (::ffff:a.b.c.d).
+ * Every slot takes 25 bytes (key, expire time and state), no objects are created for lookups.
+ * Not thread safe, callers must synchronize.
+ */
+public final class BanTable {
+    public static final int NOT_FOUND = -1;
+    private static final byte EMPTY = 0;
+    private static final int DEFAULT_EXPECTED_SIZE = 1024;
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+    // values() copies the array on every call
+    private static final BanState[] STATES = BanState.values();
+
+    private final int initialCapacity;
+    private long[] keyHighs;
+    private long[] keyLows;
+    private long[] expireTimes;
+    private byte[] states;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * Receives entries of the table
+     */
+    public interface EntryVisitor {
+        void visit(long keyHigh, long keyLow, long expireTime, BanState state);
+    }
+
+    public BanTable() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    public BanTable(final int expectedSize) {
+        initialCapacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 16) - 1) << 1;
+        allocate(initialCapacity);
+    }
+
+    private void allocate(final int capacity) {
+        keyHighs = new long[capacity];
+        keyLows = new long[capacity];
+        expireTimes = new long[capacity];
+        states = new byte[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * High 64 bits of the key for a 4 or 16 bytes address
+     */
+    public static long keyHigh(final byte[] address) {
+        return address.length == 4 ? 0 : readLong(address, 0);
+    }
+
+    /**
+     * Low 64 bits of the key for a 4 or 16 bytes address
+     */
+    public static long keyLow(final byte[] address) {
+        if (address.length == 4) {
+            return IPV4_MAPPED_PREFIX | ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFFL) << 16) | ((address[2] & 0xFFL) << 8) | (address[3] & 0xFFL);
+        }
+        return readLong(address, 8);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int index = offset; index < offset + 8; index++) {
+            value = (value << 8) | (bytes[index] & 0xFFL);
+        }
+        return value;
+    }
+
+    /**
+     * Converts a key back to an address, IPv4-mapped keys are returned as IPv4 addresses
+     */
+    public static InetAddress toInetAddress(final long keyHigh, final long keyLow) {
+        final byte[] address;
+        if (keyHigh == 0 && (keyLow & 0xFFFFFFFF00000000L) == IPV4_MAPPED_PREFIX) {
+            address = new byte[4];
+            for (int index = 0; index < 4; index++) {
+                address[index] = (byte) (keyLow >>> (24 - index * 8));
+            }
+        } else {
+            address = new byte[16];
+            for (int index = 0; index < 8; index++) {
+                address[index] = (byte) (keyHigh >>> (56 - index * 8));
+                address[index + 8] = (byte) (keyLow >>> (56 - index * 8));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (final UnknownHostException e) {
+            // Only thrown for illegal address length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int homeSlot(final long keyHigh, final long keyLow) {
+        long hash = keyLow * 0x9E3779B97F4A7C15L + keyHigh * 0xC2B2AE3D27D4EB4FL;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 32;
+        return (int) hash & mask;
+    }
+
+    /**
+     * Returns slot of the IP, or NOT_FOUND
+     */
+    public int indexOf(final long keyHigh, final long keyLow) {
+        for (int slot = homeSlot(keyHigh, keyLow); states[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keyLows[slot] == keyLow && keyHighs[slot] == keyHigh) {
+                return slot;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    public long getExpireTime(final int slot) {
+        return expireTimes[slot];
+    }
+
+    public BanState getState(final int slot) {
+        return toBanState(states[slot]);
+    }
+
+    public void setState(final int slot, final BanState state) {
+        states[slot] = toStateCode(state);
+    }
+
+    /**
+     * Adds an IP, or replaces expire time and state if it exists
+     */
+    public void put(final long keyHigh, final long keyLow, final long expireTime, final BanState state) {
+        int slot = homeSlot(keyHigh, keyLow);
+        while (states[slot] != EMPTY) {
+            if (keyLows[slot] == keyLow && keyHighs[slot] == keyHigh) {
+                expireTimes[slot] = expireTime;
+                states[slot] = toStateCode(state);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keyHighs[slot] = keyHigh;
+        keyLows[slot] = keyLow;
+        expireTimes[slot] = expireTime;
+        states[slot] = toStateCode(state);
+        if (++size > resizeThreshold) {
+            resize(states.length << 1);
+        }
+    }
+
+    /**
+     * Removes an IP, returns false if it is not in the table
+     */
+    public boolean remove(final long keyHigh, final long keyLow) {
+        final int slot = indexOf(keyHigh, keyLow);
+        if (slot == NOT_FOUND) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    /**
+     * Removes the entry in a slot. Following entries are shifted back, so lookups never need tombstones.
+     */
+    public void removeAt(final int slot) {
+        int gap = slot;
+        for (int index = (slot + 1) & mask; states[index] != EMPTY; index = (index + 1) & mask) {
+            // Entry can fill the gap if the gap is between its home slot and where it is now
+            final int home = homeSlot(keyHighs[index], keyLows[index]);
+            if (((index - home) & mask) >= ((index - gap) & mask)) {
+                keyHighs[gap] = keyHighs[index];
+                keyLows[gap] = keyLows[index];
+                expireTimes[gap] = expireTimes[index];
+                states[gap] = states[index];
+                gap = index;
+            }
+        }
+        states[gap] = EMPTY;
+        size--;
+    }
+
+    private void resize(final int newCapacity) {
+        final long[] oldKeyHighs = keyHighs;
+        final long[] oldKeyLows = keyLows;
+        final long[] oldExpireTimes = expireTimes;
+        final byte[] oldStates = states;
+        allocate(newCapacity);
+        for (int index = 0; index < oldStates.length; index++) {
+            if (oldStates[index] != EMPTY) {
+                int slot = homeSlot(oldKeyHighs[index], oldKeyLows[index]);
+                while (states[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keyHighs[slot] = oldKeyHighs[index];
+                keyLows[slot] = oldKeyLows[index];
+                expireTimes[slot] = oldExpireTimes[index];
+                states[slot] = oldStates[index];
+            }
+        }
+    }
+
+    public void forEach(final EntryVisitor visitor) {
+        for (int index = 0; index < states.length; index++) {
+            if (states[index] != EMPTY) {
+                visitor.visit(keyHighs[index], keyLows[index], expireTimes[index], toBanState(states[index]));
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        allocate(initialCapacity);
+        size = 0;
+    }
+
+    /**
+     * Approximate memory used by the table arrays in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) states.length * (Long.BYTES * 3 + 1);
+    }
+
+    private static byte toStateCode(final BanState state) {
+        return (byte) (state.ordinal() + 1);
+    }
+
+    private static BanState toBanState(final byte stateCode) {
+        return STATES[stateCode - 1];
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import lombok.EqualsAndHashCode;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Whitelist of IPv4 and IPv6 networks in CIDR notation (for example 192.168.1.0/24 or 2001:db8::/48).
+ * Single addresses are networks of one address (/32 or /128).
+ * Networks are compiled into one path compressed binary trie per address family, stored in flat arrays.
+ * Lookups walk the trie on the address bytes and do not allocate.
+ */
+@EqualsAndHashCode(of = "entries")
+public final class CidrWhitelist {
+    private static final int NO_CHILD = 0;
+    private final Set<String> entries = new TreeSet<>();
+    private final Trie ipv4Trie = new Trie(4);
+    private final Trie ipv6Trie = new Trie(16);
+
+    /**
+     * Adds a network like '10.0.0.0/8', or a single address. Host bits after the prefix are ignored.
+     */
+    public void add(final String network) throws UnknownHostException {
+        final int separator = network.indexOf('/');
+        final InetAddress address = InetAddress.getByName(separator == -1 ? network : network.substring(0, separator));
+        final byte[] addressBytes = address.getAddress();
+        final int maxLength = addressBytes.length * 8;
+        final int prefixLength;
+        if (separator == -1) {
+            prefixLength = maxLength;
+        } else {
+            try {
+                prefixLength = Integer.parseInt(network.substring(separator + 1));
+            } catch (final NumberFormatException e) {
+                throw new UnknownHostException("Invalid prefix length: " + network);
+            }
+            if (prefixLength < 0 || prefixLength > maxLength) {
+                throw new UnknownHostException("Invalid prefix length: " + network);
+            }
+        }
+        clearHostBits(addressBytes, prefixLength);
+        (address instanceof Inet4Address ? ipv4Trie : ipv6Trie).insert(addressBytes, prefixLength);
+        entries.add(InetAddress.getByAddress(addressBytes).getHostAddress() + (prefixLength == maxLength ? "" : "/" + prefixLength));
+    }
+
+    private static void clearHostBits(final byte[] address, final int prefixLength) {
+        for (int bit = prefixLength; bit < address.length * 8; bit++) {
+            address[bit >>> 3] &= ~(0x80 >>> (bit & 7));
+        }
+    }
+
+    public boolean contains(final InetAddress address) {
+        return contains(address.getAddress());
+    }
+
+    /**
+     * Checks a 4 bytes (IPv4) or 16 bytes (IPv6) address
+     */
+    public boolean contains(final byte[] address) {
+        return longestMatch(address) != -1;
+    }
+
+    /**
+     * Returns prefix length of the longest whitelisted network that contains the address, -1 if there is none
+     */
+    public int longestMatch(final byte[] address) {
+        return (address.length == 4 ? ipv4Trie : ipv6Trie).longestMatch(address);
+    }
+
+    /**
+     * Whitelisted networks in CIDR notation, sorted
+     */
+    public String[] getEntries() {
+        return entries.toArray(new String[0]);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return entries.toString();
+    }
+
+    /**
+     * Path compressed binary trie. Node 0 is the root, an empty prefix. Every node keeps its full prefix,
+     * so a lookup compares the address with the node prefix and follows one child per step.
+     */
+    private static final class Trie {
+        private final int addressLength;
+        private byte[] prefixes;
+        private int[] prefixLengths;
+        private int[] children;
+        private boolean[] terminal;
+        private int nodeCount;
+
+        private Trie(final int addressLength) {
+            this.addressLength = addressLength;
+            prefixes = new byte[16 * addressLength];
+            prefixLengths = new int[16];
+            children = new int[32];
+            terminal = new boolean[16];
+            nodeCount = 1;
+        }
+
+        private int newNode(final byte[] address, final int prefixLength, final boolean isTerminal) {
+            if (nodeCount == prefixLengths.length) {
+                final int capacity = nodeCount << 1;
+                prefixes = Arrays.copyOf(prefixes, capacity * addressLength);
+                prefixLengths = Arrays.copyOf(prefixLengths, capacity);
+                children = Arrays.copyOf(children, capacity * 2);
+                terminal = Arrays.copyOf(terminal, capacity);
+            }
+            final int node = nodeCount++;
+            System.arraycopy(address, 0, prefixes, node * addressLength, addressLength);
+            clearHostBits(prefixes, node * addressLength, prefixLength);
+            prefixLengths[node] = prefixLength;
+            terminal[node] = isTerminal;
+            return node;
+        }
+
+        private void clearHostBits(final byte[] bytes, final int offset, final int prefixLength) {
+            for (int bit = prefixLength; bit < addressLength * 8; bit++) {
+                bytes[offset + (bit >>> 3)] &= ~(0x80 >>> (bit & 7));
+            }
+        }
+
+        private static int bitAt(final byte[] bytes, final int offset, final int bit) {
+            return (bytes[offset + (bit >>> 3)] >>> (7 - (bit & 7))) & 1;
+        }
+
+        /**
+         * Number of leading bits the address has in common with the node prefix, up to limit
+         */
+        private int commonLength(final byte[] address, final int node, final int limit) {
+            final int offset = node * addressLength;
+            int bit = 0;
+            while (bit < limit) {
+                final int difference = (address[bit >>> 3] ^ prefixes[offset + (bit >>> 3)]) & 0xFF;
+                if (difference != 0) {
+                    return Math.min(limit, (bit & ~7) + Integer.numberOfLeadingZeros(difference) - 24);
+                }
+                bit = (bit & ~7) + 8;
+            }
+            return limit;
+        }
+
+        private void insert(final byte[] address, final int prefixLength) {
+            int node = 0;
+            while (true) {
+                if (prefixLengths[node] == prefixLength) {
+                    terminal[node] = true;
+                    return;
+                }
+                final int branch = node * 2 + bitAt(address, 0, prefixLengths[node]);
+                final int child = children[branch];
+                if (child == NO_CHILD) {
+                    final int leaf = newNode(address, prefixLength, true);
+                    children[branch] = leaf;
+                    return;
+                }
+                final int common = commonLength(address, child, Math.min(prefixLength, prefixLengths[child]));
+                if (common == prefixLengths[child]) {
+                    node = child;
+                    continue;
+                }
+                // Split the edge to the child with a node for the common prefix
+                final int middle = newNode(address, common, common == prefixLength);
+                children[branch] = middle;
+                children[middle * 2 + bitAt(prefixes, child * addressLength, common)] = child;
+                if (common < prefixLength) {
+                    final int leaf = newNode(address, prefixLength, true);
+                    children[middle * 2 + bitAt(address, 0, common)] = leaf;
+                }
+                return;
+            }
+        }
+
+        private int longestMatch(final byte[] address) {
+            int match = terminal[0] ? 0 : -1;
+            int node = 0;
+            while (prefixLengths[node] < addressLength * 8) {
+                node = children[node * 2 + bitAt(address, 0, prefixLengths[node])];
+                if (node == NO_CHILD || commonLength(address, node, prefixLengths[node]) < prefixLengths[node]) {
+                    break;
+                }
+                if (terminal[node]) {
+                    match = prefixLengths[node];
+                }
+            }
+            return match;
+        }
+    }
+}
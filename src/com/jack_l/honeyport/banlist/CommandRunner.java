@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs firewall commands, waits for exit code and captures output (stderr is merged into stdout)
+ */
+final class CommandRunner {
+    // Output kept per command, the rest is read and discarded
+    private static final int MAX_OUTPUT_SIZE = 4096;
+    // How long to wait for the rest of the output after the process exited
+    private static final long OUTPUT_WAIT = 1000;
+
+    @AllArgsConstructor
+    @Getter
+    static class Result {
+        private final boolean succeeded;
+        private final String output;
+    }
+
+    private CommandRunner() {
+    }
+
+    /**
+     * Runs a command and waits for it. Input lines are written to its standard input, can be null.
+     */
+    static Result run(final String command, final List<String> inputLines, final long timeoutSeconds) {
+        final Process process;
+        try {
+            process = new ProcessBuilder(splitCommand(command)).redirectErrorStream(true).start();
+        } catch (final IOException e) {
+            return new Result(false, e.toString());
+        }
+        // Output is read while input is written and the process runs, so it never blocks on a full pipe
+        final OutputCapture outputCapture = new OutputCapture(process.getInputStream());
+        final Thread outputThread = new Thread(outputCapture, "HoneyPort-CommandOutput");
+        outputThread.setDaemon(true);
+        outputThread.start();
+        try {
+            try (final Writer stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+                if (inputLines != null) {
+                    for (final String line : inputLines) {
+                        stdin.write(line);
+                        stdin.write('\n');
+                    }
+                }
+            }
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                return new Result(false, "Timed out after " + timeoutSeconds + " seconds.");
+            }
+            outputThread.join(OUTPUT_WAIT);
+            final String output = outputCapture.getOutput().trim();
+            return new Result(process.exitValue() == 0, process.exitValue() == 0 ? output : "Exit code " + process.exitValue() + ": " + output);
+        } catch (final IOException e) {
+            return new Result(false, e.toString());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(false, e.toString());
+        } finally {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Splits command the same way as Runtime.exec(String)
+     */
+    private static String[] splitCommand(final String command) {
+        final StringTokenizer tokenizer = new StringTokenizer(command);
+        final String[] commandArray = new String[tokenizer.countTokens()];
+        for (int index = 0; tokenizer.hasMoreTokens(); index++) {
+            commandArray[index] = tokenizer.nextToken();
+        }
+        return commandArray;
+    }
+
+    /**
+     * Reads output of a process until it is closed, only the first MAX_OUTPUT_SIZE bytes are kept
+     */
+    private static final class OutputCapture implements Runnable {
+        private final InputStream stream;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private boolean truncated = false;
+
+        private OutputCapture(final InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[1024];
+            try {
+                int length;
+                while ((length = stream.read(buffer)) != -1) {
+                    synchronized (this) {
+                        final int keptLength = Math.min(length, MAX_OUTPUT_SIZE - output.size());
+                        output.write(buffer, 0, keptLength);
+                        truncated |= keptLength < length;
+                    }
+                }
+            } catch (final IOException e) {
+                // Stream is closed when the process is destroyed
+            }
+        }
+
+        private synchronized String getOutput() {
+            final String capturedOutput = new String(output.toByteArray(), StandardCharsets.UTF_8);
+            return truncated ? capturedOutput + "... (output truncated)" : capturedOutput;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+/**
+ * Command or line template with %ip placeholders, split once so rendering is plain concatenation
+ */
+final class CommandTemplate {
+    private static final String IP_PLACEHOLDER = "%ip";
+    private final String[] parts;
+
+    CommandTemplate(final String template) {
+        parts = template.split(IP_PLACEHOLDER, -1);
+    }
+
+    String render(final String ipAddress) {
+        final StringBuilder rendered = new StringBuilder(64);
+        rendered.append(parts[0]);
+        for (int index = 1; index < parts.length; index++) {
+            rendered.append(ipAddress).append(parts[index]);
+        }
+        return rendered.toString();
+    }
+
+    /**
+     * Returns null for empty or 'OFF' templates
+     */
+    static CommandTemplate parse(final String template) {
+        if (template == null || template.isEmpty() || template.equalsIgnoreCase("OFF")) {
+            return null;
+        }
+        return new CommandTemplate(template);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of ban expire times, kept in primitive arrays next to the ban table.
+ * Entries are not removed when a ban is removed early, the ban table is checked when they expire instead.
+ */
+final class ExpiryHeap {
+    private static final int INITIAL_CAPACITY = 1024;
+    private long[] expireTimes = new long[INITIAL_CAPACITY];
+    private long[] keyHighs = new long[INITIAL_CAPACITY];
+    private long[] keyLows = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Adds an expire time, wakes up the waiting thread if it expires before all others
+     */
+    synchronized void add(final long keyHigh, final long keyLow, final long expireTime) {
+        if (size == expireTimes.length) {
+            expireTimes = Arrays.copyOf(expireTimes, size << 1);
+            keyHighs = Arrays.copyOf(keyHighs, size << 1);
+            keyLows = Arrays.copyOf(keyLows, size << 1);
+        }
+        int index = size++;
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (expireTimes[parent] <= expireTime) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        set(index, keyHigh, keyLow, expireTime);
+        if (index == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until at least one entry expired, then removes expired entries up to the buffer size.
+     * Buffer is filled with key high, key low and expire time of each entry, returns number of entries.
+     */
+    synchronized int takeExpired(final long[] buffer) throws InterruptedException {
+        while (true) {
+            if (size == 0) {
+                wait();
+                continue;
+            }
+            final long delay = expireTimes[0] - System.currentTimeMillis();
+            if (delay > 0) {
+                wait(delay);
+                continue;
+            }
+            int count = 0;
+            final long now = System.currentTimeMillis();
+            while (size > 0 && expireTimes[0] <= now && (count + 1) * 3 <= buffer.length) {
+                buffer[count * 3] = keyHighs[0];
+                buffer[count * 3 + 1] = keyLows[0];
+                buffer[count * 3 + 2] = expireTimes[0];
+                count++;
+                removeFirst();
+            }
+            return count;
+        }
+    }
+
+    private void removeFirst() {
+        final int last = --size;
+        if (last == 0) {
+            return;
+        }
+        final long expireTime = expireTimes[last];
+        final long keyHigh = keyHighs[last];
+        final long keyLow = keyLows[last];
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && expireTimes[child + 1] < expireTimes[child]) {
+                child++;
+            }
+            if (expireTimes[child] >= expireTime) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, keyHigh, keyLow, expireTime);
+    }
+
+    private void move(final int from, final int to) {
+        expireTimes[to] = expireTimes[from];
+        keyHighs[to] = keyHighs[from];
+        keyLows[to] = keyLows[from];
+    }
+
+    private void set(final int index, final long keyHigh, final long keyLow, final long expireTime) {
+        expireTimes[index] = expireTime;
+        keyHighs[index] = keyHigh;
+        keyLows[index] = keyLow;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        size = 0;
+    }
+}
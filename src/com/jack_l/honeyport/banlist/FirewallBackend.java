@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import javax.security.auth.Destroyable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies bans and unbans to a firewall. Methods are called from the firewall pipeline thread only
+ * and may block until the firewall is updated.
+ */
+public interface FirewallBackend extends Destroyable {
+
+    /**
+     * Name of this backend for console output
+     */
+    String getName();
+
+    boolean isBanSupported();
+
+    boolean isUnbanSupported();
+
+    /**
+     * Returns true if the firewall was updated successfully
+     */
+    boolean ban(String ipAddress);
+
+    /**
+     * Returns true if the firewall was updated successfully
+     */
+    boolean unban(String ipAddress);
+
+    /**
+     * Bans many IPs at once and returns the IPs that failed, backends with a faster bulk path should override this
+     */
+    default List<String> banAll(final List<String> ipAddresses) {
+        final List<String> failedIps = new ArrayList<>();
+        for (final String ipAddress : ipAddresses) {
+            if (!ban(ipAddress)) {
+                failedIps.add(ipAddress);
+            }
+        }
+        return failedIps;
+    }
+
+    /**
+     * Unbans many IPs at once and returns the IPs that failed, backends with a faster bulk path should override this
+     */
+    default List<String> unbanAll(final List<String> ipAddresses) {
+        final List<String> failedIps = new ArrayList<>();
+        for (final String ipAddress : ipAddresses) {
+            if (!unban(ipAddress)) {
+                failedIps.add(ipAddress);
+            }
+        }
+        return failedIps;
+    }
+
+    /**
+     * Releases resources held by the backend, firewall rules are not touched
+     */
+    @Override
+    void destroy();
+}
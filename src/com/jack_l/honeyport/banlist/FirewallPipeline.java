@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import lombok.AllArgsConstructor;
+
+import javax.security.auth.Destroyable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Applies bans and unbans through a firewall backend on a dedicated thread, so callers never wait for the firewall.
+ * Operations are collected for a short window and applied in submission order, consecutive operations of the same type
+ * are handed to the backend as one bulk call.
+ */
+public class FirewallPipeline implements Runnable, Destroyable {
+    private static final long SHUTDOWN_WAIT_SECONDS = 60;
+    private final FirewallBackend backend;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final int retries;
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    private final Statistics banStatistics = new Statistics("ban");
+    private final Statistics unbanStatistics = new Statistics("unban");
+    private final Thread thread;
+
+    @AllArgsConstructor
+    private static class Operation {
+        private final boolean ban;
+        private final String ipAddress;
+        private final long queuedTime;
+        private final Consumer<Boolean> onComplete;
+    }
+
+    private static final Operation SHUTDOWN_SIGNAL = new Operation(false, null, 0, null);
+
+    public FirewallPipeline(final FirewallBackend backend, final CachedConfigurationValues configuration) {
+        this.backend = backend;
+        this.windowMillis = configuration.getBatchWindow();
+        this.maxBatchSize = configuration.getBatchSize();
+        this.retries = configuration.getCommandRetries();
+        this.thread = new Thread(this, "HoneyPort-Firewall");
+        this.thread.start();
+    }
+
+    /**
+     * Queues a ban, onComplete is called by the firewall thread with the result
+     */
+    public void submitBan(final String ipAddress, final Consumer<Boolean> onComplete) {
+        MetricsRegistry.BANS_ISSUED.increment();
+        queue.add(new Operation(true, ipAddress, System.currentTimeMillis(), onComplete));
+    }
+
+    /**
+     * Queues an unban, onComplete is called by the firewall thread with the result
+     */
+    public void submitUnban(final String ipAddress, final Consumer<Boolean> onComplete) {
+        MetricsRegistry.UNBANS_ISSUED.increment();
+        queue.add(new Operation(false, ipAddress, System.currentTimeMillis(), onComplete));
+    }
+
+    @Override
+    public void run() {
+        final List<Operation> batch = new ArrayList<>();
+        boolean running = true;
+        try {
+            while (running) {
+                // Wait for the first operation of a batch, then collect until window ends or batch is full
+                final Operation first = queue.take();
+                if (first == SHUTDOWN_SIGNAL) {
+                    break;
+                }
+                batch.add(first);
+                final long flushTime = System.currentTimeMillis() + windowMillis;
+                long remaining = windowMillis;
+                while (batch.size() < maxBatchSize && remaining > 0) {
+                    final Operation next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    } else if (next == SHUTDOWN_SIGNAL) {
+                        running = false;
+                        break;
+                    }
+                    batch.add(next);
+                    remaining = flushTime - System.currentTimeMillis();
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (final InterruptedException e) {
+            printMessage((byte) 0x10, "Firewall thread is interrupted.");
+        }
+
+        // Apply everything left before exit
+        queue.drainTo(batch);
+        batch.remove(SHUTDOWN_SIGNAL);
+        while (!batch.isEmpty()) {
+            final List<Operation> subBatch = batch.subList(0, Math.min(maxBatchSize, batch.size()));
+            flush(subBatch);
+            subBatch.clear();
+        }
+        printMessage((byte) 0x10, "Firewall thread is shutting down.");
+    }
+
+    /**
+     * Splits batch into runs of the same operation type, so the order of bans and unbans is kept
+     */
+    private void flush(final List<Operation> batch) {
+        int runStart = 0;
+        for (int index = 1; index <= batch.size(); index++) {
+            if (index == batch.size() || batch.get(index).ban != batch.get(runStart).ban) {
+                apply(batch.subList(runStart, index));
+                runStart = index;
+            }
+        }
+    }
+
+    private void apply(final List<Operation> run) {
+        final boolean ban = run.get(0).ban;
+        final long startTime = System.currentTimeMillis();
+        final long flushLatency = startTime - run.get(0).queuedTime;
+        final List<String> ipAddresses = new ArrayList<>(run.size());
+        for (final Operation operation : run) {
+            ipAddresses.add(operation.ipAddress);
+        }
+
+        // Failed IPs are retried on their own
+        List<String> failedIps = ipAddresses;
+        for (int attempt = 0; attempt <= retries && !failedIps.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                printMessage((byte) 0x10, "Retrying firewall {} of {} IPs. (Attempt {} of {})", ban ? "ban" : "unban", failedIps.size(), attempt + 1, retries + 1);
+            }
+            final long commandStartTime = System.nanoTime();
+            try {
+                failedIps = ban ? backend.banAll(failedIps) : backend.unbanAll(failedIps);
+            } catch (final RuntimeException e) {
+                printMessage((byte) 0x01, "Firewall backend '{}' failed. (Exception: {})", backend.getName(), e);
+            }
+            MetricsRegistry.FIREWALL_COMMAND_LATENCY.record(System.nanoTime() - commandStartTime);
+        }
+        final long executionTime = System.currentTimeMillis() - startTime;
+
+        (ban ? banStatistics : unbanStatistics).record(run.size(), failedIps.size(), flushLatency, executionTime);
+        (ban ? MetricsRegistry.BANS_SUCCEEDED : MetricsRegistry.UNBANS_SUCCEEDED).add(run.size() - failedIps.size());
+        (ban ? MetricsRegistry.BANS_FAILED : MetricsRegistry.UNBANS_FAILED).add(failedIps.size());
+        printMessage((byte) 0x20, "Firewall {} of {} IPs finished, {} failed. Waited {}ms, executed in {}ms.", ban ? "ban" : "unban", run.size(), failedIps.size(), flushLatency, executionTime);
+        final Set<String> failedIpSet = failedIps.isEmpty() ? Collections.emptySet() : new HashSet<>(failedIps);
+        for (final Operation operation : run) {
+            operation.onComplete.accept(!failedIpSet.contains(operation.ipAddress));
+        }
+    }
+
+    /**
+     * Returns statistics for console output
+     */
+    public String[] getStatistics() {
+        return new String[]{
+                "Firewall backend: " + backend.getName() + ", queued: " + queue.size(),
+                banStatistics.toString(),
+                unbanStatistics.toString()
+        };
+    }
+
+    /**
+     * Applies all queued operations and stops the firewall thread
+     */
+    @Override
+    public void destroy() {
+        queue.add(SHUTDOWN_SIGNAL);
+        try {
+            thread.join(SHUTDOWN_WAIT_SECONDS * 1000L);
+            if (thread.isAlive()) {
+                printMessage((byte) 0x01, "Firewall commands did not finish in time, some firewall rules might be left behind.");
+                thread.interrupt();
+            }
+        } catch (final InterruptedException e) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Statistics of one operation type, only written by firewall thread
+     */
+    private static class Statistics {
+        private final String name;
+        private volatile long batchCount = 0;
+        private volatile long ipCount = 0;
+        private volatile long largestBatchSize = 0;
+        private volatile long totalFlushLatency = 0;
+        private volatile long maxFlushLatency = 0;
+        private volatile long totalExecutionTime = 0;
+        private volatile long maxExecutionTime = 0;
+        private volatile long failedIpCount = 0;
+
+        private Statistics(final String name) {
+            this.name = name;
+        }
+
+        private void record(final int batchSize, final int failedIps, final long flushLatency, final long executionTime) {
+            batchCount++;
+            ipCount += batchSize;
+            largestBatchSize = Math.max(largestBatchSize, batchSize);
+            totalFlushLatency += flushLatency;
+            maxFlushLatency = Math.max(maxFlushLatency, flushLatency);
+            totalExecutionTime += executionTime;
+            maxExecutionTime = Math.max(maxExecutionTime, executionTime);
+            failedIpCount += failedIps;
+        }
+
+        @Override
+        public String toString() {
+            final long batches = batchCount;
+            return "Firewall " + name + " batches: " + batches + ", IPs: " + ipCount + ", failed IPs: " + failedIpCount
+                    + "\r\n\t\tBatch size (avg/max): " + (batches > 0 ? ipCount / batches : 0) + "/" + largestBatchSize
+                    + "\r\n\t\tFlush latency (avg/max): " + (batches > 0 ? totalFlushLatency / batches : 0) + "ms/" + maxFlushLatency + "ms"
+                    + "\r\n\t\tExecution time (avg/max): " + (batches > 0 ? totalExecutionTime / batches : 0) + "ms/" + maxExecutionTime + "ms";
+        }
+    }
+}
@@ -24,7 +24,8 @@ import lombok.Getter;
 import java.net.InetAddress;
 
 /**
- * Data structure that holds an IP address and an expire timer
+ * Data structure that holds an IP address, an expire timer and state of the firewall rule.
+ * Bans are stored in the ban table, this is a snapshot of one entry for display.
  */
 @Getter
 @AllArgsConstructor
@@ -32,6 +33,17 @@ import java.net.InetAddress;
 public class IPAddressData {
     private final InetAddress ipAddress;
     private final long expireTime;
+    private final BanState state;
+
+    /**
+     * State of the firewall rule for a banned IP
+     * PENDING - Ban command is queued or running
+     * ACTIVE - Ban command succeeded
+     * FAILED - Ban command failed, ban will be attempted again on next connection
+     */
+    public enum BanState {
+        PENDING, ACTIVE, FAILED
+    }
 
     public InetAddress getInetAddress() {
         return ipAddress;
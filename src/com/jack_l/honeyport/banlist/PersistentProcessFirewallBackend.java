@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Keeps one shell process open ('General.PersistentCommand', for example /bin/sh) and writes rendered
+ * 'General.BanCommand' / 'General.UnbanCommand' lines to it, so no process is created by Java for each ban.
+ * Every command is followed by an echo of its exit status, which is read back to know if it succeeded.
+ * The shell is restarted if it exits or does not answer within 'General.CommandTimeout'.
+ */
+public class PersistentProcessFirewallBackend implements FirewallBackend {
+    private static final String STATUS_MARKER = "HONEYPORT_STATUS";
+    private final String shellCommand;
+    private final CommandTemplate banCommand;
+    private final CommandTemplate unbanCommand;
+    private final long timeoutSeconds;
+    private Process process;
+    private Writer processInput;
+    private BlockingQueue<Integer> exitStatuses;
+
+    public PersistentProcessFirewallBackend(final CachedConfigurationValues configuration) {
+        shellCommand = configuration.getPersistentCommand();
+        banCommand = CommandTemplate.parse(configuration.getBanCmd());
+        unbanCommand = CommandTemplate.parse(configuration.getUnbanCmd());
+        timeoutSeconds = configuration.getCommandTimeout();
+    }
+
+    @Override
+    public String getName() {
+        return "persistent";
+    }
+
+    @Override
+    public boolean isBanSupported() {
+        return banCommand != null;
+    }
+
+    @Override
+    public boolean isUnbanSupported() {
+        return unbanCommand != null;
+    }
+
+    @Override
+    public boolean ban(final String ipAddress) {
+        return banAll(Collections.singletonList(ipAddress)).isEmpty();
+    }
+
+    @Override
+    public boolean unban(final String ipAddress) {
+        return unbanAll(Collections.singletonList(ipAddress)).isEmpty();
+    }
+
+    @Override
+    public List<String> banAll(final List<String> ipAddresses) {
+        return runCommands(banCommand, ipAddresses);
+    }
+
+    @Override
+    public List<String> unbanAll(final List<String> ipAddresses) {
+        return runCommands(unbanCommand, ipAddresses);
+    }
+
+    /**
+     * Writes all commands first, then waits for one exit status per command. Returns IPs whose command failed.
+     */
+    private synchronized List<String> runCommands(final CommandTemplate template, final List<String> ipAddresses) {
+        final String[] commands = new String[ipAddresses.size()];
+        final List<String> failedIps = new ArrayList<>();
+        int completed = 0;
+        try {
+            startProcessIfNeeded();
+            for (int index = 0; index < commands.length; index++) {
+                commands[index] = template.render(ipAddresses.get(index));
+                printMessage((byte) 0x10, "Executing cmd: {}", commands[index]);
+                processInput.write(commands[index] + "; echo \"" + STATUS_MARKER + " $?\"\n");
+            }
+            processInput.flush();
+
+            final long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+            for (; completed < commands.length; completed++) {
+                final Integer exitStatus = exitStatuses.poll(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                if (exitStatus == null) {
+                    printMessage((byte) 0x01, "Persistent firewall process did not respond within {} seconds, restarting it.", timeoutSeconds);
+                    stopProcess();
+                    break;
+                } else if (exitStatus != 0) {
+                    printMessage((byte) 0x01, "Failed to execute command: {}. (Exit code {})", commands[completed], exitStatus);
+                    failedIps.add(ipAddresses.get(completed));
+                }
+            }
+        } catch (final IOException e) {
+            printMessage((byte) 0x01, "Persistent firewall process failed, restarting it. (Exception: {})", e);
+            stopProcess();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Commands without an exit status are counted as failed
+        failedIps.addAll(ipAddresses.subList(completed, ipAddresses.size()));
+        return failedIps;
+    }
+
+    private void startProcessIfNeeded() throws IOException {
+        if (process != null && process.isAlive()) {
+            return;
+        }
+        stopProcess();
+        final StringTokenizer tokenizer = new StringTokenizer(shellCommand);
+        final List<String> commandArray = new ArrayList<>();
+        while (tokenizer.hasMoreTokens()) {
+            commandArray.add(tokenizer.nextToken());
+        }
+        printMessage((byte) 0x10, "Starting persistent firewall process: {}", shellCommand);
+        process = new ProcessBuilder(commandArray).redirectErrorStream(true).start();
+        processInput = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        exitStatuses = new LinkedBlockingQueue<>();
+
+        // Output reader, passes exit statuses back and prints everything else as debug message
+        final BlockingQueue<Integer> statusQueue = exitStatuses;
+        final BufferedReader processOutput = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        final Thread outputReader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = processOutput.readLine()) != null) {
+                    if (line.startsWith(STATUS_MARKER + " ")) {
+                        statusQueue.add(Integer.parseInt(line.substring(STATUS_MARKER.length() + 1).trim()));
+                    } else {
+                        printMessage((byte) 0x20, "Persistent firewall process output: {}", line);
+                    }
+                }
+            } catch (final IOException | NumberFormatException e) {
+                printMessage((byte) 0x20, "Persistent firewall process output closed. (Exception: {})", e);
+            }
+        }, "HoneyPort-FirewallProcessReader");
+        outputReader.setDaemon(true);
+        outputReader.start();
+    }
+
+    private void stopProcess() {
+        if (process != null) {
+            try {
+                processInput.close();
+            } catch (final IOException e) {
+                // Process is gone already
+            }
+            process.destroyForcibly();
+            process = null;
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        stopProcess();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Runs a command for each ban/unban from 'General.BanCommand' and 'General.UnbanCommand' templates.
+ * If batch commands are set, bulk bans/unbans run one command with one line per IP written to its standard input.
+ */
+public class ShellTemplateFirewallBackend implements FirewallBackend {
+    private final CommandTemplate banCommand;
+    private final CommandTemplate unbanCommand;
+    private final String batchBanCommand;
+    private final CommandTemplate batchBanLine;
+    private final String batchUnbanCommand;
+    private final CommandTemplate batchUnbanLine;
+    private final long timeoutSeconds;
+
+    public ShellTemplateFirewallBackend(final CachedConfigurationValues configuration) {
+        banCommand = CommandTemplate.parse(configuration.getBanCmd());
+        unbanCommand = CommandTemplate.parse(configuration.getUnbanCmd());
+        batchBanLine = CommandTemplate.parse(configuration.getBatchBanLine());
+        batchBanCommand = batchBanLine != null && CommandTemplate.parse(configuration.getBatchBanCmd()) != null ? configuration.getBatchBanCmd() : null;
+        batchUnbanLine = CommandTemplate.parse(configuration.getBatchUnbanLine());
+        batchUnbanCommand = batchUnbanLine != null && CommandTemplate.parse(configuration.getBatchUnbanCmd()) != null ? configuration.getBatchUnbanCmd() : null;
+        timeoutSeconds = configuration.getCommandTimeout();
+    }
+
+    @Override
+    public String getName() {
+        return "shell";
+    }
+
+    @Override
+    public boolean isBanSupported() {
+        return banCommand != null || batchBanCommand != null;
+    }
+
+    @Override
+    public boolean isUnbanSupported() {
+        return unbanCommand != null || batchUnbanCommand != null;
+    }
+
+    @Override
+    public boolean ban(final String ipAddress) {
+        if (banCommand == null) {
+            return banAll(Collections.singletonList(ipAddress)).isEmpty();
+        }
+        return runCommand(banCommand.render(ipAddress));
+    }
+
+    @Override
+    public boolean unban(final String ipAddress) {
+        if (unbanCommand == null) {
+            return unbanAll(Collections.singletonList(ipAddress)).isEmpty();
+        }
+        return runCommand(unbanCommand.render(ipAddress));
+    }
+
+    @Override
+    public List<String> banAll(final List<String> ipAddresses) {
+        if (batchBanCommand == null) {
+            return FirewallBackend.super.banAll(ipAddresses);
+        }
+        return runBatchCommand(batchBanCommand, batchBanLine, ipAddresses);
+    }
+
+    @Override
+    public List<String> unbanAll(final List<String> ipAddresses) {
+        if (batchUnbanCommand == null) {
+            return FirewallBackend.super.unbanAll(ipAddresses);
+        }
+        return runBatchCommand(batchUnbanCommand, batchUnbanLine, ipAddresses);
+    }
+
+    private boolean runCommand(final String command) {
+        printMessage((byte) 0x10, "Executing cmd: {}", command);
+        final CommandRunner.Result result = CommandRunner.run(command, null, timeoutSeconds);
+        if (!result.isSucceeded()) {
+            printMessage((byte) 0x01, "Failed to execute command: {}. (Output: {})", command, result.getOutput());
+        }
+        return result.isSucceeded();
+    }
+
+    /**
+     * One command applies the whole batch, so either all IPs succeed or all fail
+     */
+    private List<String> runBatchCommand(final String command, final CommandTemplate lineTemplate, final List<String> ipAddresses) {
+        final List<String> lines = new ArrayList<>(ipAddresses.size());
+        for (final String ipAddress : ipAddresses) {
+            lines.add(lineTemplate.render(ipAddress));
+        }
+        printMessage((byte) 0x10, "Executing batch cmd: {} ({} lines)", command, lines.size());
+        final CommandRunner.Result result = CommandRunner.run(command, lines, timeoutSeconds);
+        if (!result.isSucceeded()) {
+            printMessage((byte) 0x01, "Failed to execute batch command: {}. (Output: {})", command, result.getOutput());
+            return ipAddresses;
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void destroy() {
+        // Nothing is kept open
+    }
+}
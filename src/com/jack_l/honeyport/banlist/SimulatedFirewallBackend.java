@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.banlist;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Keeps bans in memory instead of a real firewall, for measuring ban throughput on a machine without root or a firewall.
+ * Every call waits 'General.SimulatedLatency' milliseconds, a bulk call waits once for the whole batch.
+ */
+public class SimulatedFirewallBackend implements FirewallBackend {
+    private final long latencyMillis;
+    private final Set<String> bannedIps = ConcurrentHashMap.newKeySet();
+    private final AtomicLong banCount = new AtomicLong();
+    private final AtomicLong unbanCount = new AtomicLong();
+    private final AtomicLong callCount = new AtomicLong();
+
+    public SimulatedFirewallBackend(final CachedConfigurationValues configuration) {
+        this(configuration.getSimulatedLatency());
+    }
+
+    public SimulatedFirewallBackend(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        printMessage((byte) 0x01, "Simulated firewall backend is in use, IPs are not blocked.");
+    }
+
+    @Override
+    public String getName() {
+        return "simulated";
+    }
+
+    @Override
+    public boolean isBanSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isUnbanSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean ban(final String ipAddress) {
+        simulateLatency();
+        bannedIps.add(ipAddress);
+        banCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean unban(final String ipAddress) {
+        simulateLatency();
+        bannedIps.remove(ipAddress);
+        unbanCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public List<String> banAll(final List<String> ipAddresses) {
+        simulateLatency();
+        bannedIps.addAll(ipAddresses);
+        banCount.addAndGet(ipAddresses.size());
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> unbanAll(final List<String> ipAddresses) {
+        simulateLatency();
+        bannedIps.removeAll(ipAddresses);
+        unbanCount.addAndGet(ipAddresses.size());
+        return Collections.emptyList();
+    }
+
+    private void simulateLatency() {
+        callCount.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isBanned(final String ipAddress) {
+        return bannedIps.contains(ipAddress);
+    }
+
+    public int getBannedCount() {
+        return bannedIps.size();
+    }
+
+    public long getBanCount() {
+        return banCount.get();
+    }
+
+    public long getUnbanCount() {
+        return unbanCount.get();
+    }
+
+    /**
+     * Number of backend calls, a bulk call counts as one
+     */
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    @Override
+    public void destroy() {
+        bannedIps.clear();
+    }
+}
@@ -17,22 +17,99 @@
 
 package com.jack_l.honeyport.configuration;
 
+import com.jack_l.honeyport.banlist.CidrWhitelist;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
 
-import java.net.InetAddress;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
-@Builder
+@Builder(toBuilder = true)
 @Getter
 @EqualsAndHashCode
 @ToString
 public class CachedConfigurationValues {
     private ConsoleConfigurationValues consoleConfigurations;
 
+    /**
+     * Variable: AcceptorThreads - Number of selector threads accepting connections for all ports
+     * Use 0 to use number of available processors
+     */
+    @Builder.Default
+    private int acceptorThreadCount = 0;
+
+    /**
+     * Variable: ExecutionMode - How connection handlers are executed
+     */
+    @Builder.Default
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    /**
+     * Variable: ConnectionWorkers - Number of threads used by 'pool' execution mode
+     */
+    @Builder.Default
+    private int connectionWorkerCount = 64;
+
+    /**
+     * Variable: ConnectionQueueSize - Number of connections waiting for a worker in 'pool' execution mode
+     */
+    @Builder.Default
+    private int connectionQueueSize = 1024;
+
+    /**
+     * Variable: MaxConnections - Number of connections handled at a time in 'virtual' and 'platform' execution mode
+     * Use 0 for unlimited
+     */
+    @Builder.Default
+    private int maxConnections = 4096;
+
+    /**
+     * Variable: OverloadPolicy - What to do with connections over the limits above
+     */
+    @Builder.Default
+    private OverloadPolicy overloadPolicy = OverloadPolicy.RESET;
+
+    /**
+     * Variable: WatchSettings - Reload configuration when the configuration file is changed
+     */
+    @Builder.Default
+    private boolean watchSettings = false;
+
+    /**
+     * Variable: CoalesceWindow - Time in milliseconds further connections from a detected IP are only counted
+     * Use 0 to handle every connection
+     */
+    @Builder.Default
+    private long coalesceWindow = 5000;
+
+    /**
+     * Variable: MetricsPort - Port metrics are served on localhost in Prometheus text format
+     * Use -1 to disable
+     */
+    @Builder.Default
+    private int metricsPort = -1;
+
+    /**
+     * Variable: FirewallBackend - How bans and unbans are applied to the firewall
+     */
+    @Builder.Default
+    private FirewallBackendType firewallBackend = FirewallBackendType.SHELL;
+
+    /**
+     * Variable: PersistentCommand - Shell kept open by the 'persistent' firewall backend
+     */
+    @Builder.Default
+    private String persistentCommand = "/bin/sh";
+
+    /**
+     * Variable: SimulatedLatency - Time in milliseconds each call of the 'simulated' firewall backend takes
+     */
+    @Builder.Default
+    private long simulatedLatency = 5;
+
     /**
      * Variable: BanCmd - Command to execute during a detection Use OFF to
      * disable ban feature
@@ -47,6 +124,78 @@ public class CachedConfigurationValues {
     @Builder.Default
     private String unbanCmd = "OFF";
 
+    /**
+     * Variable: BatchBanCmd - Command that applies many bans at once, one BatchBanLine per IP is written to its input
+     * Use OFF to run BanCmd for every IP
+     */
+    @Builder.Default
+    private String batchBanCmd = "OFF";
+    private String batchBanLine;
+
+    /**
+     * Variable: BatchUnbanCmd - Command that removes many bans at once, one BatchUnbanLine per IP is written to its input
+     * Use OFF to run UnbanCmd for every IP
+     */
+    @Builder.Default
+    private String batchUnbanCmd = "OFF";
+    private String batchUnbanLine;
+
+    /**
+     * Variable: BatchWindow - Time in milliseconds to collect IPs before running a batch command
+     */
+    @Builder.Default
+    private long batchWindow = 100;
+
+    /**
+     * Variable: BatchSize - Maximum IPs in one batch command
+     */
+    @Builder.Default
+    private int batchSize = 500;
+
+    /**
+     * Variable: CommandTimeout - Time in seconds to wait for a ban/unban command before killing it
+     */
+    @Builder.Default
+    private long commandTimeout = 10;
+
+    /**
+     * Variable: CommandRetries - How many more times to run a failed ban/unban command
+     */
+    @Builder.Default
+    private int commandRetries = 2;
+
+    /**
+     * Variable: BanJournal - Directory to save bans in, so they are restored on next start
+     * Use OFF to disable
+     */
+    @Builder.Default
+    private String banJournal = "OFF";
+
+    /**
+     * Variable: KeepFirewallRules - Leave firewall rules in place on exit, restored bans are not applied again
+     */
+    @Builder.Default
+    private boolean keepFirewallRules = false;
+
+    /**
+     * Variable: DetectionStore - Directory to record detections in, so they can be queried with '!l'
+     * Use OFF to disable
+     */
+    @Builder.Default
+    private String detectionStore = "OFF";
+
+    /**
+     * Variable: DetectionRetention - Days to keep recorded detections
+     */
+    @Builder.Default
+    private int detectionRetention = 30;
+
+    /**
+     * Variable: DetectionMaxSize - Disk space in MB recorded detections may use, oldest are deleted first
+     */
+    @Builder.Default
+    private long detectionMaxSize = 1024;
+
     /**
      * Variable: BanLength - Time in seconds to keep the IP banned Use 0 to ban
      * permanently
@@ -65,23 +214,60 @@ public class CachedConfigurationValues {
     private String[] randomWelcomeMessage;
 
     /**
-     * Port Range settings, see read me file for detail
+     * Welcome messages encoded at load time, read-only direct buffers indexed by message id.
+     * Use duplicate() before writing, these buffers are shared by all connections.
+     */
+    @ToString.Exclude
+    private ByteBuffer[] welcomeMessageBuffers;
+
+    /**
+     * Variable: Ports - Ports to listen on, made of port range, specific ports and port list, excluded ports are left out
      */
     @Builder.Default
-    private int portRangeStart = -1;
+    private PortPlan ports = PortPlan.EMPTY;
+
+    /**
+     * Variable: SpecificPorts - Ports listed in SpecificPorts, they use SpecificPorts.Backlog
+     */
     @Builder.Default
-    private int portRangeEnd = 0;
+    private PortPlan specificPorts = PortPlan.EMPTY;
 
+    /**
+     * Variable: ShardedPorts - Number of SO_REUSEPORT listeners of a port, ports not in the map have one listener
+     */
     @Builder.Default
-    private Integer[] specificPorts = new Integer[0];
+    private Map<Integer, Integer> shardedPorts = new HashMap<>();
 
+    /**
+     * Variable: PortRange.Backlog and SpecificPorts.Backlog - Accept queue length of each listener of specific ports and all other ports
+     */
+    @Builder.Default
+    private int portRangeBacklog = 50;
     @Builder.Default
-    private Set<Integer> excludedPorts = new HashSet<>();
+    private int specificPortsBacklog = 50;
 
+    /**
+     * Whitelisted networks, compiled into a trie when configuration is loaded
+     */
     @Builder.Default
-    private Set<InetAddress> ipWhiteList = new HashSet<>();
+    private CidrWhitelist ipWhiteList = new CidrWhitelist();
+
+    /**
+     * Number of listeners of a port
+     */
+    public int getShardCount(final int port) {
+        final Integer shardCount = shardedPorts.get(port);
+        return shardCount == null ? 1 : shardCount;
+    }
 
-    @Builder
+    /**
+     * Accept queue length of a port, specific ports use their own backlog
+     */
+    public int getListenBacklog(final int port) {
+        return specificPorts.contains(port) ? specificPortsBacklog : portRangeBacklog;
+    }
+
+    @Builder(toBuilder = true)
     @Getter
     @EqualsAndHashCode
     @ToString
@@ -104,6 +290,50 @@ public class CachedConfigurationValues {
          */
         @Builder.Default
         private Byte logLevel = 0x0; //Default must be off
+
+        /**
+         * Variable: LogOverflowPolicy - What to do with messages when the log writer falls behind
+         */
+        @Builder.Default
+        private LogOverflowPolicy logOverflowPolicy = LogOverflowPolicy.BLOCK;
+    }
+
+    /**
+     * Execution modes for connection handlers
+     * VIRTUAL - One virtual thread per connection, falls back to PLATFORM if not supported
+     * PLATFORM - One platform thread per connection
+     * POOL - Fixed size pool of platform threads
+     */
+    public enum ExecutionMode {
+        VIRTUAL, PLATFORM, POOL
+    }
+
+    /**
+     * Overload policies for connection handlers
+     * RESET - Close the connection immediately with RST, no detection
+     * DETECT - Record detection and ban the IP, no welcome message or delay
+     */
+    public enum OverloadPolicy {
+        RESET, DETECT
+    }
+
+    /**
+     * Policies for messages that do not fit in the log writer queue
+     * BLOCK - Wait until the log writer catches up
+     * DROP - Drop the message and count it
+     */
+    public enum LogOverflowPolicy {
+        BLOCK, DROP
+    }
+
+    /**
+     * Firewall backends
+     * SHELL - Run ban/unban (or batch) commands for each operation
+     * PERSISTENT - Write ban/unban commands to one shell process that is kept open
+     * SIMULATED - Keep bans in memory only, for testing and benchmarking
+     */
+    public enum FirewallBackendType {
+        SHELL, PERSISTENT, SIMULATED
     }
 
     public boolean isThisCurrentlyActiveConfiguration() {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.configuration;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Differences between the running configuration and a reloaded one.
+ * Ports, whitelist, welcome messages, ban length and console settings are applied in place, other settings need a restart.
+ */
+@Getter
+public class ConfigurationDiff {
+    private final PortPlan addedPorts;
+    private final PortPlan removedPorts;
+    private final boolean whitelistChanged;
+    private final boolean fakeServerChanged;
+    // Names of changed settings that cannot be applied in place
+    private final List<String> restartRequiredSettings = new ArrayList<>();
+
+    public ConfigurationDiff(final CachedConfigurationValues runningConfiguration, final CachedConfigurationValues newConfiguration) {
+        addedPorts = newConfiguration.getPorts().without(runningConfiguration.getPorts());
+        removedPorts = runningConfiguration.getPorts().without(newConfiguration.getPorts());
+        whitelistChanged = !runningConfiguration.getIpWhiteList().equals(newConfiguration.getIpWhiteList());
+        fakeServerChanged = runningConfiguration.getFakeServerRandomDelayDisconnectingTime() != newConfiguration.getFakeServerRandomDelayDisconnectingTime()
+                || runningConfiguration.getRandomWelcomeMessageCount() != newConfiguration.getRandomWelcomeMessageCount();
+
+        // Connection handlers and acceptors
+        checkRestartRequired("Program.AcceptorThreads", runningConfiguration.getAcceptorThreadCount(), newConfiguration.getAcceptorThreadCount());
+        checkRestartRequired("Program.ExecutionMode", runningConfiguration.getExecutionMode(), newConfiguration.getExecutionMode());
+        checkRestartRequired("Program.ConnectionWorkers", runningConfiguration.getConnectionWorkerCount(), newConfiguration.getConnectionWorkerCount());
+        checkRestartRequired("Program.ConnectionQueueSize", runningConfiguration.getConnectionQueueSize(), newConfiguration.getConnectionQueueSize());
+        checkRestartRequired("Program.MaxConnections", runningConfiguration.getMaxConnections(), newConfiguration.getMaxConnections());
+        checkRestartRequired("Program.OverloadPolicy", runningConfiguration.getOverloadPolicy(), newConfiguration.getOverloadPolicy());
+        checkRestartRequired("Program.CoalesceWindow", runningConfiguration.getCoalesceWindow(), newConfiguration.getCoalesceWindow());
+        checkRestartRequired("Program.MetricsPort", runningConfiguration.getMetricsPort(), newConfiguration.getMetricsPort());
+
+        // Listeners already bound keep their shards and backlog
+        checkRestartRequired("ShardedPorts", runningConfiguration.getShardedPorts(), newConfiguration.getShardedPorts());
+        checkRestartRequired("PortRange.Backlog", runningConfiguration.getPortRangeBacklog(), newConfiguration.getPortRangeBacklog());
+        checkRestartRequired("SpecificPorts.Backlog", runningConfiguration.getSpecificPortsBacklog(), newConfiguration.getSpecificPortsBacklog());
+
+        // Firewall backend and ban list
+        checkRestartRequired("General.FirewallBackend", runningConfiguration.getFirewallBackend(), newConfiguration.getFirewallBackend());
+        checkRestartRequired("General.PersistentCommand", runningConfiguration.getPersistentCommand(), newConfiguration.getPersistentCommand());
+        checkRestartRequired("General.SimulatedLatency", runningConfiguration.getSimulatedLatency(), newConfiguration.getSimulatedLatency());
+        checkRestartRequired("General.BanCommand", runningConfiguration.getBanCmd(), newConfiguration.getBanCmd());
+        checkRestartRequired("General.UnbanCommand", runningConfiguration.getUnbanCmd(), newConfiguration.getUnbanCmd());
+        checkRestartRequired("General.BatchBanCommand", runningConfiguration.getBatchBanCmd(), newConfiguration.getBatchBanCmd());
+        checkRestartRequired("General.BatchBanLine", runningConfiguration.getBatchBanLine(), newConfiguration.getBatchBanLine());
+        checkRestartRequired("General.BatchUnbanCommand", runningConfiguration.getBatchUnbanCmd(), newConfiguration.getBatchUnbanCmd());
+        checkRestartRequired("General.BatchUnbanLine", runningConfiguration.getBatchUnbanLine(), newConfiguration.getBatchUnbanLine());
+        checkRestartRequired("General.BatchWindow", runningConfiguration.getBatchWindow(), newConfiguration.getBatchWindow());
+        checkRestartRequired("General.BatchSize", runningConfiguration.getBatchSize(), newConfiguration.getBatchSize());
+        checkRestartRequired("General.CommandTimeout", runningConfiguration.getCommandTimeout(), newConfiguration.getCommandTimeout());
+        checkRestartRequired("General.CommandRetries", runningConfiguration.getCommandRetries(), newConfiguration.getCommandRetries());
+        checkRestartRequired("General.BanJournal", runningConfiguration.getBanJournal(), newConfiguration.getBanJournal());
+        checkRestartRequired("General.KeepFirewallRules", runningConfiguration.isKeepFirewallRules(), newConfiguration.isKeepFirewallRules());
+
+        // Detection store
+        checkRestartRequired("General.DetectionStore", runningConfiguration.getDetectionStore(), newConfiguration.getDetectionStore());
+        checkRestartRequired("General.DetectionRetention", runningConfiguration.getDetectionRetention(), newConfiguration.getDetectionRetention());
+        checkRestartRequired("General.DetectionMaxSize", runningConfiguration.getDetectionMaxSize(), newConfiguration.getDetectionMaxSize());
+    }
+
+    private void checkRestartRequired(final String settingName, final Object runningValue, final Object newValue) {
+        if (!Objects.equals(runningValue, newValue)) {
+            restartRequiredSettings.add(settingName);
+        }
+    }
+
+    public boolean isRestartRequired() {
+        return !restartRequiredSettings.isEmpty();
+    }
+}
@@ -17,15 +17,19 @@
 
 package com.jack_l.honeyport.configuration;
 
+import com.jack_l.honeyport.banlist.CidrWhitelist;
+
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
@@ -33,15 +37,26 @@ import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
  * Handles reading configuration file and validation
  */
 public class ConfigurationFileReader {
+    public static final String CONFIGURATION_FILE_NAME = "Settings.conf";
+    // Welcome message ids are stored in one byte of a detection record, where -1 means no welcome message was sent
+    private static final int MAX_WELCOME_MESSAGE_COUNT = 255;
+    // Most SO_REUSEPORT listeners of one port
+    private static final int MAX_PORT_SHARDS = 64;
 
     /**
      * Reads the file and cache into configuration object
      */
     public static CachedConfigurationValues loadConfigurations() throws ConfigurationExceptions {
+        return loadConfigurations(CONFIGURATION_FILE_NAME);
+    }
+
+    /**
+     * Reads the given file and cache into configuration object
+     */
+    public static CachedConfigurationValues loadConfigurations(final String configurationFileName) throws ConfigurationExceptions {
         final String readFileErrorMessage = "Failed to read configuration file. (%s)";
         final CachedConfigurationValues.CachedConfigurationValuesBuilder configurationCacheBuilder = CachedConfigurationValues.builder();
         final CachedConfigurationValues.ConsoleConfigurationValues.ConsoleConfigurationValuesBuilder consoleConfigurationCacheBuilder = CachedConfigurationValues.ConsoleConfigurationValues.builder();
-        final String configurationFileName = "Settings.conf"; // Setting file location and name
         printMessage((byte) 0x00, "Reading configuration from " + configurationFileName + "...", consoleConfigurationCacheBuilder.build());
         final Properties configurationFilePropertyReader = new Properties();
 
@@ -69,6 +84,18 @@ public class ConfigurationFileReader {
             final byte debugLevel = (Byte.parseByte(configurationFilePropertyReader.getProperty("Program.Debug"), 16));
             consoleConfigurationCacheBuilder.debugLevel(debugLevel);
 
+            // Log overflow policy, optional
+            final String logOverflowPolicy = readOptionalProperty(configurationFilePropertyReader, "Program.LogOverflowPolicy");
+            if (logOverflowPolicy != null) {
+                try {
+                    consoleConfigurationCacheBuilder.logOverflowPolicy(CachedConfigurationValues.LogOverflowPolicy.valueOf(logOverflowPolicy.toUpperCase()));
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'LogOverflowPolicy' input: " + logOverflowPolicy + ". Valid values are block or drop.");
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
+                }
+            }
+
             // Apply console setting to configuration object
             final CachedConfigurationValues.ConsoleConfigurationValues consoleConfigurationCache = consoleConfigurationCacheBuilder.build();
             configurationCacheBuilder.consoleConfigurations(consoleConfigurationCache);
@@ -80,14 +107,131 @@ public class ConfigurationFileReader {
                 printMessage((byte) 0x10, "Console settings successfully applied.", consoleConfigurationToUseWhileLoading);
             }
 
+            // Acceptor threads, optional
+            final String acceptorThreads = readOptionalProperty(configurationFilePropertyReader, "Program.AcceptorThreads");
+            if (acceptorThreads != null) {
+                configurationCacheBuilder.acceptorThreadCount(Integer.parseInt(acceptorThreads));
+            }
+
+            // Execution mode, optional
+            final String executionMode = readOptionalProperty(configurationFilePropertyReader, "Program.ExecutionMode");
+            if (executionMode != null) {
+                try {
+                    configurationCacheBuilder.executionMode(CachedConfigurationValues.ExecutionMode.valueOf(executionMode.toUpperCase()));
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'ExecutionMode' input: " + executionMode + ". Valid values are virtual, platform or pool.");
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
+                }
+            }
+            final String connectionWorkers = readOptionalProperty(configurationFilePropertyReader, "Program.ConnectionWorkers");
+            if (connectionWorkers != null) {
+                configurationCacheBuilder.connectionWorkerCount(Integer.parseInt(connectionWorkers));
+            }
+            final String connectionQueueSize = readOptionalProperty(configurationFilePropertyReader, "Program.ConnectionQueueSize");
+            if (connectionQueueSize != null) {
+                configurationCacheBuilder.connectionQueueSize(Integer.parseInt(connectionQueueSize));
+            }
+            final String maxConnections = readOptionalProperty(configurationFilePropertyReader, "Program.MaxConnections");
+            if (maxConnections != null) {
+                configurationCacheBuilder.maxConnections(Integer.parseInt(maxConnections));
+            }
+            final String overloadPolicy = readOptionalProperty(configurationFilePropertyReader, "Program.OverloadPolicy");
+            if (overloadPolicy != null) {
+                try {
+                    configurationCacheBuilder.overloadPolicy(CachedConfigurationValues.OverloadPolicy.valueOf(overloadPolicy.toUpperCase()));
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'OverloadPolicy' input: " + overloadPolicy + ". Valid values are reset or detect.");
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
+                }
+            }
+
+            final String watchSettings = readOptionalProperty(configurationFilePropertyReader, "Program.WatchSettings");
+            if (watchSettings != null) {
+                configurationCacheBuilder.watchSettings(Boolean.parseBoolean(watchSettings));
+            }
+
+            final String coalesceWindow = readOptionalProperty(configurationFilePropertyReader, "Program.CoalesceWindow");
+            if (coalesceWindow != null) {
+                configurationCacheBuilder.coalesceWindow(Long.parseLong(coalesceWindow));
+            }
+
+            final String metricsPort = readOptionalProperty(configurationFilePropertyReader, "Program.MetricsPort");
+            if (metricsPort != null) {
+                configurationCacheBuilder.metricsPort(Integer.parseInt(metricsPort));
+            }
+
             // Other settings
+            final String firewallBackend = readOptionalProperty(configurationFilePropertyReader, "General.FirewallBackend");
+            if (firewallBackend != null) {
+                try {
+                    configurationCacheBuilder.firewallBackend(CachedConfigurationValues.FirewallBackendType.valueOf(firewallBackend.toUpperCase()));
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'FirewallBackend' input: " + firewallBackend + ". Valid values are shell, persistent or simulated.");
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
+                }
+            }
+            final String persistentCommand = readOptionalProperty(configurationFilePropertyReader, "General.PersistentCommand");
+            if (persistentCommand != null) {
+                configurationCacheBuilder.persistentCommand(persistentCommand);
+            }
+            final String simulatedLatency = readOptionalProperty(configurationFilePropertyReader, "General.SimulatedLatency");
+            if (simulatedLatency != null) {
+                configurationCacheBuilder.simulatedLatency(Long.parseLong(simulatedLatency));
+            }
             final String banCmd = configurationFilePropertyReader.getProperty("General.BanCommand");
             configurationCacheBuilder.banCmd(banCmd);
             final String unbanCmd = configurationFilePropertyReader.getProperty("General.UnbanCommand");
             configurationCacheBuilder.unbanCmd(unbanCmd);
+            final String batchBanCmd = readOptionalProperty(configurationFilePropertyReader, "General.BatchBanCommand");
+            if (batchBanCmd != null) {
+                configurationCacheBuilder.batchBanCmd(batchBanCmd);
+                configurationCacheBuilder.batchBanLine(readOptionalProperty(configurationFilePropertyReader, "General.BatchBanLine"));
+            }
+            final String batchUnbanCmd = readOptionalProperty(configurationFilePropertyReader, "General.BatchUnbanCommand");
+            if (batchUnbanCmd != null) {
+                configurationCacheBuilder.batchUnbanCmd(batchUnbanCmd);
+                configurationCacheBuilder.batchUnbanLine(readOptionalProperty(configurationFilePropertyReader, "General.BatchUnbanLine"));
+            }
+            final String batchWindow = readOptionalProperty(configurationFilePropertyReader, "General.BatchWindow");
+            if (batchWindow != null) {
+                configurationCacheBuilder.batchWindow(Long.parseLong(batchWindow));
+            }
+            final String batchSize = readOptionalProperty(configurationFilePropertyReader, "General.BatchSize");
+            if (batchSize != null) {
+                configurationCacheBuilder.batchSize(Integer.parseInt(batchSize));
+            }
+            final String commandTimeout = readOptionalProperty(configurationFilePropertyReader, "General.CommandTimeout");
+            if (commandTimeout != null) {
+                configurationCacheBuilder.commandTimeout(Long.parseLong(commandTimeout));
+            }
+            final String commandRetries = readOptionalProperty(configurationFilePropertyReader, "General.CommandRetries");
+            if (commandRetries != null) {
+                configurationCacheBuilder.commandRetries(Integer.parseInt(commandRetries));
+            }
+            final String banJournal = readOptionalProperty(configurationFilePropertyReader, "General.BanJournal");
+            if (banJournal != null) {
+                configurationCacheBuilder.banJournal(banJournal);
+            }
+            final String keepFirewallRules = readOptionalProperty(configurationFilePropertyReader, "General.KeepFirewallRules");
+            if (keepFirewallRules != null) {
+                configurationCacheBuilder.keepFirewallRules(Boolean.parseBoolean(keepFirewallRules));
+            }
+            final String detectionStore = readOptionalProperty(configurationFilePropertyReader, "General.DetectionStore");
+            if (detectionStore != null) {
+                configurationCacheBuilder.detectionStore(detectionStore);
+            }
+            final String detectionRetention = readOptionalProperty(configurationFilePropertyReader, "General.DetectionRetention");
+            if (detectionRetention != null) {
+                configurationCacheBuilder.detectionRetention(Integer.parseInt(detectionRetention));
+            }
+            final String detectionMaxSize = readOptionalProperty(configurationFilePropertyReader, "General.DetectionMaxSize");
+            if (detectionMaxSize != null) {
+                configurationCacheBuilder.detectionMaxSize(Long.parseLong(detectionMaxSize));
+            }
             configurationCacheBuilder.banLength(Long.parseLong(configurationFilePropertyReader.getProperty("General.BanLength")));
-            configurationCacheBuilder.portRangeStart(Integer.parseInt(configurationFilePropertyReader.getProperty("PortRange.Start")));
-            configurationCacheBuilder.portRangeEnd(Integer.parseInt(configurationFilePropertyReader.getProperty("PortRange.End")));
 
             // Random fake srv welcome message settings
             if (configurationFilePropertyReader.getProperty("FakeServer.Enabled").equalsIgnoreCase("on")) {
@@ -99,62 +243,118 @@ public class ConfigurationFileReader {
                 if (randomWelcomeMessageCount > 0) {
                     final String[] randomWelcomeMessageType = new String[randomWelcomeMessageCount];
                     final String[] randomWelcomeMessage = new String[randomWelcomeMessageCount];
+                    final ByteBuffer[] welcomeMessageBuffers = new ByteBuffer[randomWelcomeMessageCount];
                     //Reading contents
                     for (int count = 0; count < randomWelcomeMessageCount; count++) {
                         randomWelcomeMessageType[count] = configurationFilePropertyReader.getProperty("FakeServer.RandomWelcomeMessage." + (count + 1) + ".Type");
                         randomWelcomeMessage[count] = configurationFilePropertyReader.getProperty("FakeServer.RandomWelcomeMessage." + (count + 1) + ".Content");
+                        try {
+                            welcomeMessageBuffers[count] = encodeWelcomeMessage(randomWelcomeMessageType[count], randomWelcomeMessage[count]);
+                        } catch (final IllegalArgumentException e) {
+                            final String errorMessage = String.format(readFileErrorMessage, "'FakeServer.RandomWelcomeMessage." + (count + 1) + "' cannot be encoded with type '" + randomWelcomeMessageType[count] + "'. (Exception: " + e + ")");
+                            printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                            throw new ConfigurationExceptions(errorMessage, e);
+                        }
                     }
                     configurationCacheBuilder.randomWelcomeMessageType(randomWelcomeMessageType);
                     configurationCacheBuilder.randomWelcomeMessage(randomWelcomeMessage);
+                    configurationCacheBuilder.welcomeMessageBuffers(welcomeMessageBuffers);
+                }
+            }
+
+            // Ports to listen on, made of port range, specific ports and port list. Excluded ports are left out.
+            final PortPlan.Builder portPlanBuilder = PortPlan.builder();
+            final int portRangeStart = Integer.parseInt(configurationFilePropertyReader.getProperty("PortRange.Start"));
+            if (portRangeStart != -1) {
+                try {
+                    portPlanBuilder.addRange(portRangeStart, Integer.parseInt(configurationFilePropertyReader.getProperty("PortRange.End")));
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'PortRange.Start' or 'PortRange.End' value(s). Valid range is 1-65535 and start must not be after end. Set 'PortRange.Start' to -1 to disable this feature.");
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
                 }
             }
 
             // Specific ports
-            final String specificPortsString = configurationFilePropertyReader.getProperty("SpecificPorts");
-            if (specificPortsString != null && !specificPortsString.isEmpty()) {
-                final String[] specificPortsArray = specificPortsString.replaceAll(" ", "").split(",");
-                final Integer[] specificPorts = new Integer[specificPortsArray.length];
-                int arrayIndex = 0;
+            final String specificPortsString = readOptionalProperty(configurationFilePropertyReader, "SpecificPorts");
+            if (specificPortsString != null) {
                 try {
-                    for (final String port : specificPortsArray) {
-                        specificPorts[arrayIndex++] = Integer.parseInt(port);
-                    }
-                } catch (final NumberFormatException e) {
-                    final String errorMessage = String.format(readFileErrorMessage, "'SpecificPorts' contains non integer value on index " + arrayIndex + ".");
+                    final PortPlan specificPorts = PortPlan.parse(specificPortsString);
+                    portPlanBuilder.add(specificPorts);
+                    configurationCacheBuilder.specificPorts(specificPorts);
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'SpecificPorts' value. " + e.getMessage());
+                    printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                    throw new ConfigurationExceptions(errorMessage, e);
+                }
+            }
+
+            // Port list, optional
+            final String portsString = readOptionalProperty(configurationFilePropertyReader, "Ports");
+            if (portsString != null) {
+                try {
+                    portPlanBuilder.add(portsString);
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'Ports' value. " + e.getMessage());
                     printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
                     throw new ConfigurationExceptions(errorMessage, e);
                 }
-                configurationCacheBuilder.specificPorts(specificPorts);
             }
 
             // Excluded ports
-            final String excludedPortsString = configurationFilePropertyReader.getProperty("ExcludePorts");
-            if (excludedPortsString != null && !excludedPortsString.isEmpty()) {
-                final String[] excludedPortsArray = excludedPortsString.replaceAll(" ", "").split(",");
-                final Set<Integer> excludedPorts = new HashSet<>();
+            final String excludedPortsString = readOptionalProperty(configurationFilePropertyReader, "ExcludePorts");
+            if (excludedPortsString != null) {
                 try {
-                    for (final String port : excludedPortsArray) {
-                        excludedPorts.add(Integer.parseInt(port));
-                    }
-                } catch (final NumberFormatException e) {
-                    final String errorMessage = String.format(readFileErrorMessage, "'ExcludedPorts' contains non integer value(s).");
+                    portPlanBuilder.exclude(excludedPortsString);
+                } catch (final IllegalArgumentException e) {
+                    final String errorMessage = String.format(readFileErrorMessage, "Invalid 'ExcludePorts' value. " + e.getMessage());
                     printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
                     throw new ConfigurationExceptions(errorMessage, e);
                 }
-                configurationCacheBuilder.excludedPorts(excludedPorts);
+            }
+            configurationCacheBuilder.ports(portPlanBuilder.build());
+
+            // Sharded ports, optional
+            final String shardedPortsString = readOptionalProperty(configurationFilePropertyReader, "ShardedPorts");
+            if (shardedPortsString != null) {
+                final Map<Integer, Integer> shardedPorts = new HashMap<>();
+                for (final String shardedPort : shardedPortsString.replaceAll(" ", "").split(",")) {
+                    final String[] portAndShards = shardedPort.split(":");
+                    try {
+                        if (portAndShards.length != 2) {
+                            throw new NumberFormatException(shardedPort);
+                        }
+                        shardedPorts.put(Integer.parseInt(portAndShards[0]), Integer.parseInt(portAndShards[1]));
+                    } catch (final NumberFormatException e) {
+                        final String errorMessage = String.format(readFileErrorMessage, "'ShardedPorts' value: " + shardedPort + " is not in port:shards format.");
+                        printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
+                        throw new ConfigurationExceptions(errorMessage, e);
+                    }
+                }
+                configurationCacheBuilder.shardedPorts(shardedPorts);
+            }
+
+            // Listen backlogs, optional
+            final String portRangeBacklog = readOptionalProperty(configurationFilePropertyReader, "PortRange.Backlog");
+            if (portRangeBacklog != null) {
+                configurationCacheBuilder.portRangeBacklog(Integer.parseInt(portRangeBacklog));
+            }
+            final String specificPortsBacklog = readOptionalProperty(configurationFilePropertyReader, "SpecificPorts.Backlog");
+            if (specificPortsBacklog != null) {
+                configurationCacheBuilder.specificPortsBacklog(Integer.parseInt(specificPortsBacklog));
             }
 
             // Whitelisted IPs
             final String whiteListedIPsString = configurationFilePropertyReader.getProperty("WhiteListedIPs");
             if (whiteListedIPsString != null && !whiteListedIPsString.isEmpty()) {
                 final String[] whiteListedIPsArray = whiteListedIPsString.replaceAll(" ", "").split(",");
-                final Set<InetAddress> whiteListedIps = new HashSet<>();
+                final CidrWhitelist whiteListedIps = new CidrWhitelist();
                 try {
                     for (final String ip : whiteListedIPsArray) {
-                        whiteListedIps.add(InetAddress.getByName(ip));
+                        whiteListedIps.add(ip);
                     }
                 } catch (final UnknownHostException e) {
-                    final String errorMessage = String.format(readFileErrorMessage, "'WhiteListedIPs' contains invalid IP address(es).");
+                    final String errorMessage = String.format(readFileErrorMessage, "'WhiteListedIPs' contains invalid IP address(es) or network(s). (" + e.getMessage() + ")");
                     printMessage((byte) 0x02, errorMessage, defaultConsoleConfiguration);
                     throw new ConfigurationExceptions(errorMessage, e);
                 }
@@ -190,7 +390,7 @@ public class ConfigurationFileReader {
     /**
      * Validates if everything inside a configuration object is valid
      */
-    private static boolean validateSettings(final CachedConfigurationValues configuration) {
+    public static boolean validateSettings(final CachedConfigurationValues configuration) {
         final CachedConfigurationValues.ConsoleConfigurationValues consoleConfiguration = getConsoleConfigurationToUseWhileLoadingConfigurationFile(configuration);
         printMessage((byte) 0x00, "Validating configurations...", consoleConfiguration);
         if (configuration.getConsoleConfigurations().getDebugLevel() >= 0x3 || configuration.getConsoleConfigurations().getDebugLevel() < 0x0) {
@@ -199,35 +399,105 @@ public class ConfigurationFileReader {
         } else if (configuration.getFakeServerRandomDelayDisconnectingTime() < 0 || configuration.getFakeServerRandomDelayDisconnectingTime() > 60) {
             printMessage((byte) 0x02, "Invalid 'RandomDelayDisconnectingTimer' input. Valid range is 0-60 seconds.", consoleConfiguration);
             return false;
+        } else if (configuration.getRandomWelcomeMessageCount() < 0 || configuration.getRandomWelcomeMessageCount() > MAX_WELCOME_MESSAGE_COUNT) {
+            printMessage((byte) 0x02, "Invalid 'RandomWelcomeMessageCount' input. Valid range is 0-" + MAX_WELCOME_MESSAGE_COUNT + ".", consoleConfiguration);
+            return false;
+        } else if (configuration.getAcceptorThreadCount() < 0) {
+            printMessage((byte) 0x02, "Invalid 'AcceptorThreads' input. Valid range is 0 or above. Use 0 to use number of available processors.", consoleConfiguration);
+            return false;
+        } else if (configuration.getConnectionWorkerCount() < 1) {
+            printMessage((byte) 0x02, "Invalid 'ConnectionWorkers' input. Valid range is 1 or above.", consoleConfiguration);
+            return false;
+        } else if (configuration.getConnectionQueueSize() < 1) {
+            printMessage((byte) 0x02, "Invalid 'ConnectionQueueSize' input. Valid range is 1 or above.", consoleConfiguration);
+            return false;
+        } else if (configuration.getMaxConnections() < 0) {
+            printMessage((byte) 0x02, "Invalid 'MaxConnections' input. Valid range is 0 or above. Use 0 for unlimited.", consoleConfiguration);
+            return false;
+        } else if (configuration.getCoalesceWindow() < 0) {
+            printMessage((byte) 0x02, "Invalid 'CoalesceWindow' input. Valid range is 0 or above. Use 0 to disable.", consoleConfiguration);
+            return false;
+        } else if (configuration.getMetricsPort() != -1 && !validatePortNum(configuration.getMetricsPort())) {
+            printMessage((byte) 0x02, "Invalid 'MetricsPort' input. Valid range is 1-65535. Use -1 to disable.", consoleConfiguration);
+            return false;
+        } else if (!configuration.getBatchBanCmd().equalsIgnoreCase("OFF") && configuration.getBatchBanLine() == null) {
+            printMessage((byte) 0x02, "'BatchBanLine' must be set when 'BatchBanCommand' is used.", consoleConfiguration);
+            return false;
+        } else if (!configuration.getBatchUnbanCmd().equalsIgnoreCase("OFF") && configuration.getBatchUnbanLine() == null) {
+            printMessage((byte) 0x02, "'BatchUnbanLine' must be set when 'BatchUnbanCommand' is used.", consoleConfiguration);
+            return false;
+        } else if (configuration.getBatchWindow() < 0 || configuration.getBatchSize() < 1) {
+            printMessage((byte) 0x02, "Invalid 'BatchWindow' or 'BatchSize' input. 'BatchWindow' must be 0 or above and 'BatchSize' must be 1 or above.", consoleConfiguration);
+            return false;
+        } else if (configuration.getCommandTimeout() < 1 || configuration.getCommandRetries() < 0) {
+            printMessage((byte) 0x02, "Invalid 'CommandTimeout' or 'CommandRetries' input. 'CommandTimeout' must be 1 or above and 'CommandRetries' must be 0 or above.", consoleConfiguration);
+            return false;
+        } else if (configuration.getSimulatedLatency() < 0) {
+            printMessage((byte) 0x02, "Invalid 'SimulatedLatency' input. Valid range is 0 or above.", consoleConfiguration);
+            return false;
+        } else if (configuration.isKeepFirewallRules() && configuration.getBanJournal().equalsIgnoreCase("OFF")) {
+            printMessage((byte) 0x02, "Invalid 'KeepFirewallRules' input. Kept firewall rules can only be restored with 'BanJournal' enabled.", consoleConfiguration);
+            return false;
+        } else if (configuration.getDetectionRetention() < 1 || configuration.getDetectionMaxSize() < 16) {
+            printMessage((byte) 0x02, "Invalid 'DetectionRetention' or 'DetectionMaxSize' input. 'DetectionRetention' must be 1 or above and 'DetectionMaxSize' must be 16 or above.", consoleConfiguration);
+            return false;
         } else if (configuration.getBanLength() < 0) {
             printMessage((byte) 0x02, "Invalid 'BanLength'. Valid range is 0-" + Long.MAX_VALUE + "seconds. Use 0 to disable unban feature.", consoleConfiguration);
-        } else if (configuration.getPortRangeStart() != -1 && (!validatePortNum(configuration.getPortRangeStart()) || !validatePortNum(configuration.getPortRangeEnd()))) {
-            printMessage((byte) 0x02, "Invalid 'PortRangeStart' or 'PortRangeEnd' value(s). Valid range is 1-65535. Set 'PortRangeStart' to -1 to disable this feature.", consoleConfiguration);
+        } else if (configuration.getPortRangeBacklog() < 1 || configuration.getSpecificPortsBacklog() < 1) {
+            printMessage((byte) 0x02, "Invalid 'PortRange.Backlog' or 'SpecificPorts.Backlog' input. Valid range is 1 or above.", consoleConfiguration);
             return false;
         }
 
-        // Verify each input for specific ports
-        for (final int port : configuration.getSpecificPorts()) {
-            if (!validatePortNum(port)) {
-                printMessage((byte) 0x02, "Invalid 'SpecificPorts' value: " + port + ". Valid range is 1-65535. Set 'SpecificPortsCount' to -1 to disable this feature.", consoleConfiguration);
+        // Verify each sharded port is listened
+        final PortPlan listeningPorts = configuration.getPorts();
+        for (final Map.Entry<Integer, Integer> shardedPort : configuration.getShardedPorts().entrySet()) {
+            if (!listeningPorts.contains(shardedPort.getKey())) {
+                printMessage((byte) 0x02, "'ShardedPorts' value: " + shardedPort.getKey() + " is not a listening port.", consoleConfiguration);
                 return false;
-            } else if (configuration.getPortRangeStart() != -1 && configuration.getPortRangeStart() != -1 && (port - configuration.getPortRangeStart() >= 0 && port - configuration.getPortRangeEnd() <= 0)) {
-                // Make sure specific ports not included in the range specification
-                printMessage((byte) 0x02, "'SpecificPorts' value: " + port + " is already included in the port range configuration.", consoleConfiguration);
+            } else if (shardedPort.getValue() < 1 || shardedPort.getValue() > MAX_PORT_SHARDS) {
+                printMessage((byte) 0x02, "Invalid 'ShardedPorts' shards of port " + shardedPort.getKey() + ": " + shardedPort.getValue() + ". Valid range is 1-" + MAX_PORT_SHARDS + ".", consoleConfiguration);
                 return false;
             }
         }
 
-        // Verify each input for excluded ports
-        for (final Integer port : configuration.getExcludedPorts()) {
-            if (!validatePortNum(port)) {
-                printMessage((byte) 0x02, "Invalid 'ExcludedPorts' value: " + port + ". Valid range is 1-65535. Set 'ExcludedPortsCount' to -1 to disable this feature.", consoleConfiguration);
-                return false;
-            }
+        // Metrics port must not be one of the honey ports
+        if (configuration.getMetricsPort() != -1 && listeningPorts.contains(configuration.getMetricsPort())) {
+            printMessage((byte) 0x02, "'MetricsPort' value: " + configuration.getMetricsPort() + " is also a listening port. Exclude it or use another port.", consoleConfiguration);
+            return false;
         }
         return true;
     }
 
+    /**
+     * Encodes a welcome message once, so connections only need to write the bytes.
+     * Throws IllegalArgumentException for invalid base64 content or unknown charset name.
+     */
+    private static ByteBuffer encodeWelcomeMessage(final String type, final String content) {
+        final byte[] encodedMessage;
+        if (type.equalsIgnoreCase("Base64")) {
+            encodedMessage = Base64.getDecoder().decode(content);
+        } else {
+            // Using non-ascii encoding might cause some problem here...
+            // Depends on file encoding, Java charset etc. etc. Use base64 encoding if needed
+            encodedMessage = content.getBytes(Charset.forName(type));
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(encodedMessage.length);
+        buffer.put(encodedMessage);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a property that might not exist in older configuration files, returns null if not set
+     */
+    private static String readOptionalProperty(final Properties configurationFilePropertyReader, final String propertyName) {
+        final String value = configurationFilePropertyReader.getProperty(propertyName);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
     /**
      * Checks valid port range
      */
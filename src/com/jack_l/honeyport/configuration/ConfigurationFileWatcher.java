@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.configuration;
+
+import javax.security.auth.Destroyable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Watches the configuration file and runs a callback when it is changed
+ */
+public class ConfigurationFileWatcher implements Destroyable {
+    // Editors might write the file more than once, changes are applied once the file is left alone for this long
+    private static final long SETTLE_TIME = 500;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    public ConfigurationFileWatcher(final Runnable changeListener) throws IOException {
+        final Path configurationFile = Paths.get(ConfigurationFileReader.CONFIGURATION_FILE_NAME).toAbsolutePath();
+        final Path directory = configurationFile.getParent();
+        watchService = directory.getFileSystem().newWatchService();
+        // Directory is watched, the file might be replaced instead of written in place
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watcherThread = new Thread(() -> {
+            try {
+                while (true) {
+                    if (!isFileChanged(watchService.take(), configurationFile.getFileName())) {
+                        continue;
+                    }
+                    Thread.sleep(SETTLE_TIME);
+                    WatchKey pendingKey;
+                    while ((pendingKey = watchService.poll()) != null) {
+                        pendingKey.pollEvents();
+                        pendingKey.reset();
+                    }
+                    printMessage((byte) 0x00, "Configuration file change detected, reloading configuration...");
+                    try {
+                        changeListener.run();
+                    } catch (final RuntimeException e) {
+                        printMessage((byte) 0x01, "Failed to reload configuration. (Exception: {})", e);
+                    }
+                }
+            } catch (final InterruptedException | ClosedWatchServiceException e) {
+                printMessage((byte) 0x10, "Configuration file watcher is shutting down.");
+            }
+        }, "HoneyPort-SettingsWatcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        printMessage((byte) 0x10, "Watching {} for changes.", configurationFile);
+    }
+
+    private static boolean isFileChanged(final WatchKey watchKey, final Path fileName) {
+        boolean changed = false;
+        for (final WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                changed = true;
+            }
+        }
+        watchKey.reset();
+        return changed;
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            watchService.close();
+        } catch (final IOException e) {
+            printMessage((byte) 0x10, "Failed to close configuration file watcher. (Exception: {})", e);
+        }
+        watcherThread.interrupt();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.configuration;
+
+import lombok.EqualsAndHashCode;
+
+import java.util.BitSet;
+
+/**
+ * Set of ports kept as one bit per port, membership checks and differences do not box ports.
+ * Written and read as a list of ports and ranges, entries starting with ! are excluded. For example: 1000-2000,30000-40000,!30022
+ */
+@EqualsAndHashCode(of = "ports")
+public final class PortPlan {
+    public static final int MAX_PORT = 65535;
+    public static final PortPlan EMPTY = new PortPlan(new BitSet());
+
+    private final BitSet ports;
+    private final int size;
+
+    private PortPlan(final BitSet ports) {
+        this.ports = ports;
+        this.size = ports.cardinality();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Reads a list of ports and ranges. Throws IllegalArgumentException for invalid entries.
+     */
+    public static PortPlan parse(final String portList) {
+        return builder().add(portList).build();
+    }
+
+    public boolean contains(final int port) {
+        return port >= 1 && port <= MAX_PORT && ports.get(port);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * First port of this plan at or after given port, -1 if there is none
+     */
+    public int nextPort(final int fromPort) {
+        return fromPort > MAX_PORT ? -1 : ports.nextSetBit(fromPort);
+    }
+
+    /**
+     * Ports of this plan that are not in the other plan
+     */
+    public PortPlan without(final PortPlan other) {
+        final BitSet difference = (BitSet) ports.clone();
+        difference.andNot(other.ports);
+        return new PortPlan(difference);
+    }
+
+    public int[] toArray() {
+        final int[] portArray = new int[size];
+        int index = 0;
+        for (int port = ports.nextSetBit(0); port >= 0; port = ports.nextSetBit(port + 1)) {
+            portArray[index++] = port;
+        }
+        return portArray;
+    }
+
+    /**
+     * Ports and ranges of this plan in ascending order, for example: 22, 1000-2000
+     */
+    public String[] toRanges() {
+        int rangeCount = 0;
+        for (int start = ports.nextSetBit(0); start >= 0; start = ports.nextSetBit(ports.nextClearBit(start))) {
+            rangeCount++;
+        }
+        final String[] ranges = new String[rangeCount];
+        int index = 0;
+        for (int start = ports.nextSetBit(0); start >= 0; start = ports.nextSetBit(ports.nextClearBit(start))) {
+            final int end = ports.nextClearBit(start) - 1;
+            ranges[index++] = start == end ? String.valueOf(start) : start + "-" + end;
+        }
+        return ranges;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", toRanges());
+    }
+
+    /**
+     * Collects ports to add and to exclude, excluded ports are left out no matter in which order they are given
+     */
+    public static final class Builder {
+        private final BitSet addedPorts = new BitSet();
+        private final BitSet excludedPorts = new BitSet();
+
+        private Builder() {
+        }
+
+        public Builder add(final int port) {
+            return addRange(port, port);
+        }
+
+        public Builder addRange(final int start, final int end) {
+            validateRange(start, end);
+            addedPorts.set(start, end + 1);
+            return this;
+        }
+
+        public Builder add(final PortPlan plan) {
+            addedPorts.or(plan.ports);
+            return this;
+        }
+
+        /**
+         * Adds a list of ports and ranges, entries starting with ! are excluded
+         */
+        public Builder add(final String portList) {
+            for (final String entry : splitEntries(portList)) {
+                if (entry.startsWith("!")) {
+                    parseEntry(entry.substring(1), excludedPorts);
+                } else {
+                    parseEntry(entry, addedPorts);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Excludes every port and range of a list
+         */
+        public Builder exclude(final String portList) {
+            for (final String entry : splitEntries(portList)) {
+                parseEntry(entry.startsWith("!") ? entry.substring(1) : entry, excludedPorts);
+            }
+            return this;
+        }
+
+        public PortPlan build() {
+            final BitSet plannedPorts = (BitSet) addedPorts.clone();
+            plannedPorts.andNot(excludedPorts);
+            return new PortPlan(plannedPorts);
+        }
+
+        private static String[] splitEntries(final String portList) {
+            final String trimmedList = portList.replaceAll("\\s", "");
+            return trimmedList.isEmpty() ? new String[0] : trimmedList.split(",");
+        }
+
+        private static void parseEntry(final String entry, final BitSet target) {
+            final int separator = entry.indexOf('-', 1);
+            final int start;
+            final int end;
+            try {
+                start = Integer.parseInt(separator == -1 ? entry : entry.substring(0, separator));
+                end = separator == -1 ? start : Integer.parseInt(entry.substring(separator + 1));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("'" + entry + "' is not a port or a range of ports.", e);
+            }
+            validateRange(start, end);
+            target.set(start, end + 1);
+        }
+
+        private static void validateRange(final int start, final int end) {
+            if (start < 1 || end > MAX_PORT || start > end) {
+                throw new IllegalArgumentException(start == end ? "Port " + start + " is not in range 1-" + MAX_PORT + "." : "Range " + start + "-" + end + " is not within 1-" + MAX_PORT + " or starts after it ends.");
+            }
+        }
+    }
+}
@@ -17,16 +17,12 @@
 
 package com.jack_l.honeyport.configuration;
 
-import java.text.SimpleDateFormat;
-
 public class SharedRuntimeVariables {
     // Constants
     public final static String version = "1.0.4 [Development Build]";
-    public final static SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-
-    private static CachedConfigurationValues currentCachedConfigurationData = null;
 
-    private static int detectionCount = 0;
+    // Replaced by the configuration watcher thread, read by every other thread
+    private static volatile CachedConfigurationValues currentCachedConfigurationData = null;
 
     public static void setCurrentCachedConfiguration(final CachedConfigurationValues settings) {
         currentCachedConfigurationData = settings;
@@ -35,12 +31,4 @@ public class SharedRuntimeVariables {
     public static CachedConfigurationValues getCurrentCachedConfiguration() {
         return currentCachedConfigurationData;
     }
-
-    public static void addDetection() {
-        detectionCount++;
-    }
-
-    public static int getDetectionCount() {
-        return detectionCount;
-    }
 }
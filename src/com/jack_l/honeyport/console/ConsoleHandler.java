@@ -20,18 +20,19 @@ package com.jack_l.honeyport.console;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
 import com.jack_l.honeyport.configuration.SharedRuntimeVariables;
 
-import java.util.Date;
+import java.net.InetAddress;
+import java.util.function.Supplier;
 
-import static com.jack_l.honeyport.console.LoggingHandler.writeLog;
+import static com.jack_l.honeyport.console.LoggingHandler.writeMessage;
 
 /**
- * Handles output to console
+ * Handles output to console, messages are written by the log writer
  */
 public class ConsoleHandler {
     /*
      * Console color codes, some colors are commented out because no usage currently. Reserved for future usage.
      */
-    private static final String C_RESET = "\u001B[0m";
+    static final String C_RESET = "\u001B[0m";
     //private static final String C_BLACK = "\u001B[30m";
     private static final String C_RED = "\u001B[31m";
     //private static final String C_GREEN = "\u001B[32m";
@@ -41,6 +42,22 @@ public class ConsoleHandler {
     private static final String C_CYAN = "\u001B[36m";
     //private static final String C_WHITE = "\u001B[37m";
 
+    private static final String[] DEBUG_LABELS = {null, "DEBUG1    ", "DEBUG2    ", "DEBUG3    "};
+
+    /**
+     * Checks if a message type would be printed with system current setting, used before building a message that is expensive to build
+     */
+    public static boolean isMessageEnabled(final byte messageType) {
+        return isMessageEnabled(messageType, SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations());
+    }
+
+    private static boolean isMessageEnabled(final byte messageType, final CachedConfigurationValues.ConsoleConfigurationValues configurations) {
+        if ((messageType >> 4) != 0x0) {
+            return (messageType >> 4) <= configurations.getDebugLevel();
+        }
+        return messageType == 0x0 || messageType == 0x1 || messageType == 0x2 || messageType == 0x4 || messageType == 0x5;
+    }
+
     /**
      * Print message by using system current setting
      */
@@ -49,6 +66,87 @@ public class ConsoleHandler {
         printMessage(messageType, message, configurations);
     }
 
+    /**
+     * Print message by using system current setting, each '{}' in pattern is replaced by an argument.
+     * Message is only built if it would be printed, so disabled debug messages cost no string building.
+     * InetAddress arguments are printed as IP addresses.
+     */
+    public static void printMessage(final byte messageType, final String pattern, final Object argument) {
+        final CachedConfigurationValues.ConsoleConfigurationValues configurations = SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations();
+        if (isMessageEnabled(messageType, configurations)) {
+            printMessage(messageType, formatMessage(pattern, argument, null, null, 1), configurations);
+        }
+    }
+
+    public static void printMessage(final byte messageType, final String pattern, final Object argument1, final Object argument2) {
+        final CachedConfigurationValues.ConsoleConfigurationValues configurations = SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations();
+        if (isMessageEnabled(messageType, configurations)) {
+            printMessage(messageType, formatMessage(pattern, argument1, argument2, null, 2), configurations);
+        }
+    }
+
+    public static void printMessage(final byte messageType, final String pattern, final Object argument1, final Object argument2, final Object argument3) {
+        final CachedConfigurationValues.ConsoleConfigurationValues configurations = SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations();
+        if (isMessageEnabled(messageType, configurations)) {
+            printMessage(messageType, formatMessage(pattern, argument1, argument2, argument3, 3), configurations);
+        }
+    }
+
+    /**
+     * Same as above for more than three arguments, argument array is created by caller even if message is not printed
+     */
+    public static void printMessage(final byte messageType, final String pattern, final Object... arguments) {
+        final CachedConfigurationValues.ConsoleConfigurationValues configurations = SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations();
+        if (isMessageEnabled(messageType, configurations)) {
+            final StringBuilder message = new StringBuilder(pattern.length() + 16 * arguments.length);
+            int start = 0;
+            for (final Object argument : arguments) {
+                start = appendUntilArgument(message, pattern, start, argument);
+            }
+            printMessage(messageType, message.append(pattern, start, pattern.length()).toString(), configurations);
+        }
+    }
+
+    /**
+     * Print message by using system current setting, message is only built if it would be printed
+     */
+    public static void printMessage(final byte messageType, final Supplier<String> messageSupplier) {
+        final CachedConfigurationValues.ConsoleConfigurationValues configurations = SharedRuntimeVariables.getCurrentCachedConfiguration().getConsoleConfigurations();
+        if (isMessageEnabled(messageType, configurations)) {
+            printMessage(messageType, messageSupplier.get(), configurations);
+        }
+    }
+
+    private static String formatMessage(final String pattern, final Object argument1, final Object argument2, final Object argument3, final int argumentCount) {
+        final StringBuilder message = new StringBuilder(pattern.length() + 16 * argumentCount);
+        int start = appendUntilArgument(message, pattern, 0, argument1);
+        if (argumentCount > 1) {
+            start = appendUntilArgument(message, pattern, start, argument2);
+        }
+        if (argumentCount > 2) {
+            start = appendUntilArgument(message, pattern, start, argument3);
+        }
+        return message.append(pattern, start, pattern.length()).toString();
+    }
+
+    /**
+     * Appends pattern from start to the next '{}' and the argument in place of it, returns where the rest of the pattern starts
+     */
+    private static int appendUntilArgument(final StringBuilder message, final String pattern, final int start, final Object argument) {
+        final int placeholder = pattern.indexOf("{}", start);
+        if (placeholder == -1) {
+            // More arguments than placeholders
+            return start;
+        }
+        message.append(pattern, start, placeholder);
+        if (argument instanceof InetAddress) {
+            message.append(((InetAddress) argument).getHostAddress());
+        } else {
+            message.append(argument);
+        }
+        return placeholder + 2;
+    }
+
     /**
      * Function: printMessage - Display message to user console
      *
@@ -59,103 +157,48 @@ public class ConsoleHandler {
      * 0001_0000 (0x10) - 0011_0000 (0x30) - Debug Message, corresponding to level
      */
     public static void printMessage(final byte messageType, final String message, final CachedConfigurationValues.ConsoleConfigurationValues configurations) {
-        // Get and format current date & time
-        String formattedMessage;
         final byte debugLevel = configurations.getDebugLevel();
         final byte logLevel = configurations.getLogLevel();
-        final boolean useColorCode = configurations.isUseColorCode();
+        final String label;
+        final String color;
+        final int logFlag;
 
         if ((messageType >> 4) <= debugLevel && (messageType >> 4) != 0x0) {
             // Debug Message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " DEBUG" + (messageType >> 4) + "    ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x8) == 0x8) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Add color
-            if (useColorCode) {
-                formattedMessage = C_PURPLE + formattedMessage + C_RESET;
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = DEBUG_LABELS[messageType >> 4];
+            color = C_PURPLE;
+            logFlag = 0x8;
         } else if (messageType == 0x0) {
             // Normal Message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " INFO      ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x1) == 0x1) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = "INFO      ";
+            color = null;
+            logFlag = 0x1;
         } else if (messageType == 0x1) {
             // Warning Message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " WARNING   ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x2) == 0x2) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Add color
-            if (useColorCode) {
-                formattedMessage = C_YELLOW + formattedMessage + C_RESET;
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = "WARNING   ";
+            color = C_YELLOW;
+            logFlag = 0x2;
         } else if (messageType == 0x2) {
             // Error Message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " ERROR     ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x4) == 0x4) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Add color
-            if (useColorCode) {
-                formattedMessage = C_RED + formattedMessage + C_RESET;
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = "ERROR     ";
+            color = C_RED;
+            logFlag = 0x4;
         } else if (messageType == 0x4) {
             // Detection Message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " DETECTION ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x10) == 0x10) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Add color
-            if (useColorCode) {
-                formattedMessage = C_CYAN + formattedMessage + C_RESET;
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = "DETECTION ";
+            color = C_CYAN;
+            logFlag = 0x10;
         } else if (messageType == 0x5) {
             // Banned message
-            formattedMessage = "[" + SharedRuntimeVariables.dateTimeFormat.format(new Date()) + " BAN/UNBAN ]: " + message;
-
-            // Check if logging is required
-            if ((logLevel & 0x20) == 0x20) {
-                writeLog(formattedMessage, configurations);
-            }
-
-            // Add color
-            if (useColorCode) {
-                formattedMessage = C_PURPLE + formattedMessage + C_RESET;
-            }
-
-            // Print
-            System.out.println(formattedMessage);
+            label = "BAN/UNBAN ";
+            color = C_PURPLE;
+            logFlag = 0x20;
+        } else {
+            return;
         }
+
+        // Time is taken now, message is formatted and printed by the log writer
+        writeMessage(new LoggingHandler.LogEntry(System.currentTimeMillis(), label, message, configurations.isUseColorCode() ? color : null, (logLevel & logFlag) == logFlag),
+                configurations.getLogOverflowPolicy());
     }
 }
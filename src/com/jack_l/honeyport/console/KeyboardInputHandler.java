@@ -18,15 +18,33 @@
 package com.jack_l.honeyport.console;
 
 import com.jack_l.honeyport.banlist.BanListManager;
-import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.banlist.IPAddressData;
 import com.jack_l.honeyport.configuration.ConfigurationFileReader;
+import com.jack_l.honeyport.configuration.PortPlan;
 import com.jack_l.honeyport.configuration.SharedRuntimeVariables;
+import com.jack_l.honeyport.detections.DetectionQuery;
+import com.jack_l.honeyport.detections.DetectionQueryResult;
+import com.jack_l.honeyport.detections.DetectionRecord;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import com.jack_l.honeyport.sockets.ConnectionExecutor;
 import com.jack_l.honeyport.sockets.SocketManager;
 import lombok.AllArgsConstructor;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
@@ -36,8 +54,10 @@ import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 @AllArgsConstructor
 public class KeyboardInputHandler {
     private static final Scanner keyboardScanner = new Scanner(System.in);
-    private final CachedConfigurationValues configuration;
+    private static final DateTimeFormatter DETECTION_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int MAX_LISTED_PORTS = 64;
     private final BanListManager banList;
+    private final DetectionStore detectionStore;
     private final SocketManager socketManager;
 
     /**
@@ -57,10 +77,10 @@ public class KeyboardInputHandler {
             try {
                 keyboardInputString = keyboardScanner.nextLine();
             } catch (final NoSuchElementException e) {
-                printMessage((byte) 0x01, "Keyboard handler failed. (Exception: " + e + ")");
+                printMessage((byte) 0x01, "Keyboard handler failed. (Exception: {})", e);
                 return false;
             }
-            printMessage((byte) 0x10, "Key '" + keyboardInputString + "' detected.");
+            printMessage((byte) 0x10, "Key '{}' detected.", keyboardInputString);
 
             if (keyboardInputString.length() >= 2) {
                 if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!h")) {
@@ -85,6 +105,15 @@ public class KeyboardInputHandler {
                 } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!b")) {
                     // !b command
                     listBannedIpAddresses();
+                } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!f")) {
+                    // !f command
+                    printFirewallStatistics();
+                } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!t")) {
+                    // !t command
+                    printConnectionStatistics();
+                } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!m")) {
+                    // !m command
+                    printMetrics();
                 } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!u")) {
                     // !u command
                     try {
@@ -92,6 +121,13 @@ public class KeyboardInputHandler {
                     } catch (Exception e) {
                         printMessage((byte) 0x01, "Incorrect command format. Example: !u 192.168.126.75");
                     }
+                } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!l")) {
+                    // !l command
+                    try {
+                        queryDetections(keyboardInputString.length() > 2 ? keyboardInputString.substring(3).trim() : "");
+                    } catch (Exception e) {
+                        printMessage((byte) 0x01, "Incorrect command format. Example: !l ip=192.168.126.75 port=22 last=7d limit=50");
+                    }
                 } else if (keyboardInputString.substring(0, 2).equalsIgnoreCase("!r")) {
                     // !r command
                     return true;
@@ -99,12 +135,12 @@ public class KeyboardInputHandler {
                     // !q command
                     return false;
                 } else {
-                    printMessage((byte) 0x01, "Unknown command: " + keyboardInputString);
+                    printMessage((byte) 0x01, "Unknown command: {}", keyboardInputString);
                 }
             } else if (keyboardInputString == "!EXCEPTION") {
                 // Ignore
             } else {
-                printMessage((byte) 0x01, "Unknown command: " + keyboardInputString);
+                printMessage((byte) 0x01, "Unknown command: {}", keyboardInputString);
             }
         } while (true);
     }
@@ -113,35 +149,43 @@ public class KeyboardInputHandler {
         final StringBuilder helpMessage = new StringBuilder("List of commands: ");
         helpMessage.append("\r\n\t!h - Display this help.");
         helpMessage.append("\r\n\t!c - Display current loaded configuration.");
-        helpMessage.append("\r\n\t!p - List of ports that are being listened.");
+        helpMessage.append("\r\n\t!p - List of ports that are being listened and accepts of each shard of sharded ports.");
         helpMessage.append("\r\n\t!s - Shutdown an open port. For example:\r\n\t\t!s 36478");
         helpMessage.append("\r\n\t!w - List of whitelisted IP addresses.");
-        helpMessage.append("\r\n\t!b - List of banned IP addresses.");
+        helpMessage.append("\r\n\t!b - List of banned IP addresses and state of their firewall rules (pending, active or failed).");
+        helpMessage.append("\r\n\t!f - Display firewall backend and batch statistics.");
+        helpMessage.append("\r\n\t!t - Display connection handler statistics, including connections waiting to be disconnected.");
+        helpMessage.append("\r\n\t!m - Display metrics, including detections per port and firewall and accept to ban latency percentiles.");
         helpMessage.append("\r\n\t!u - Unban a banned IP address. For example:\r\n\t\t!u 192.168.126.75");
-        helpMessage.append("\r\n\t!r - Reload the application. This will reset everything.");
+        helpMessage.append("\r\n\t!l - Search recorded detections by ip, port, time (from/to as yyyy-MM-dd or yyyy-MM-ddTHH:mm, last as minutes/hours/days) and limit. For example:\r\n\t\t!l ip=192.168.126.75 last=7d\r\n\t\t!l port=22 from=2020-04-01 to=2020-04-12 limit=50");
+        helpMessage.append("\r\n\t!r - Reload configuration. Everything is reset only if settings that cannot be changed at runtime are changed.");
         helpMessage.append("\r\n\t!s - Shutdown the application.");
         printMessage((byte) 0x00, helpMessage.toString());
     }
 
     private void printCurrentConfiguration() {
-        printMessage((byte) 0x00, "Current Configuration: \r\n\t" + SharedRuntimeVariables.getCurrentCachedConfiguration().toString());
+        printMessage((byte) 0x00, "Current Configuration: \r\n\t{}", SharedRuntimeVariables.getCurrentCachedConfiguration());
     }
 
     private void listListeningPorts() {
         final StringBuilder listPortsMessage = new StringBuilder("Ports that are being listened: ");
-        final Integer[] ports = socketManager.getListOfListeningPorts();
+        final PortPlan ports = socketManager.getListeningPorts();
+        final String[] portRanges = ports.toRanges();
         int index = 0;
-        for (final Integer port : ports) {
+        for (final String portRange : portRanges) {
             if (index % 10 == 0) {
                 listPortsMessage.append("\r\n\t");
             }
-            listPortsMessage.append(port);
-            if (index < ports.length - 1) {
+            listPortsMessage.append(portRange);
+            if (index < portRanges.length - 1) {
                 listPortsMessage.append(",");
             }
             index++;
         }
-        listPortsMessage.append("\r\n\t").append("Total listening ports: " + ports.length);
+        listPortsMessage.append("\r\n\t").append("Total listening ports: " + ports.size());
+        for (final Map.Entry<Integer, long[]> shardAcceptCounts : socketManager.getShardAcceptCounts().entrySet()) {
+            listPortsMessage.append("\r\n\tPort ").append(shardAcceptCounts.getKey()).append(" shard accepts: ").append(Arrays.toString(shardAcceptCounts.getValue()));
+        }
         printMessage((byte) 0x00, listPortsMessage.toString());
     }
 
@@ -155,11 +199,11 @@ public class KeyboardInputHandler {
 
     private void listWhitelistedIps() {
         final StringBuilder whitelistedIPsMessage = new StringBuilder("Currently whitelisted IPs: ");
-        final InetAddress[] ips = SharedRuntimeVariables.getCurrentCachedConfiguration().getIpWhiteList().toArray(new InetAddress[0]);
+        final String[] ips = SharedRuntimeVariables.getCurrentCachedConfiguration().getIpWhiteList().getEntries();
         if (ips.length > 0) {
             int index = 1;
-            for (final InetAddress ip : ips) {
-                whitelistedIPsMessage.append("\r\n\t").append(index++).append(". ").append(ip.getHostAddress());
+            for (final String ip : ips) {
+                whitelistedIPsMessage.append("\r\n\t").append(index++).append(". ").append(ip);
             }
         } else {
             whitelistedIPsMessage.append("None.");
@@ -170,21 +214,176 @@ public class KeyboardInputHandler {
 
     private void listBannedIpAddresses() {
         final StringBuilder bannedIPsMessage = new StringBuilder("Currently banned IPs: ");
-        final String[] listOfBannedIps = banList.getIpList();
+        final IPAddressData[] listOfBannedIps = banList.getBannedIpData();
         if (listOfBannedIps.length > 0) {
             int index = 1;
-            for (final String ip : listOfBannedIps) {
-                bannedIPsMessage.append("\r\n\t").append(index++).append(". ").append(ip);
+            for (final IPAddressData ipData : listOfBannedIps) {
+                bannedIPsMessage.append("\r\n\t").append(index++).append(". ").append(ipData.getInetAddress().getHostAddress()).append(" (").append(ipData.getState().name().toLowerCase()).append(")");
             }
         } else {
             bannedIPsMessage.append("None.");
         }
         bannedIPsMessage.append("\r\n\t").append("Total currently banned IPs: " + listOfBannedIps.length);
-        bannedIPsMessage.append("\r\n\t").append("Total connections made to honey port: " + SharedRuntimeVariables.getDetectionCount());
+        bannedIPsMessage.append("\r\n\t").append("Ban table memory usage: " + banList.getBanTableUsage()[1] / 1024 + " KB");
+        bannedIPsMessage.append("\r\n\t").append("Total connections made to honey port: " + MetricsRegistry.DETECTIONS.sum());
         printMessage((byte) 0x00, bannedIPsMessage.toString());
     }
 
+    private void printFirewallStatistics() {
+        final StringBuilder statisticsMessage = new StringBuilder("Firewall statistics: ");
+        for (final String firewallStatistics : banList.getFirewallStatistics()) {
+            statisticsMessage.append("\r\n\t").append(firewallStatistics);
+        }
+        printMessage((byte) 0x00, statisticsMessage.toString());
+    }
+
+    private void printConnectionStatistics() {
+        final ConnectionExecutor connectionExecutor = socketManager.getConnectionExecutor();
+        if (connectionExecutor == null) {
+            printMessage((byte) 0x01, "Connection handlers are not initialized.");
+            return;
+        }
+        final StringBuilder statisticsMessage = new StringBuilder("Connection handler statistics: ");
+        statisticsMessage.append("\r\n\t").append("Execution mode: ").append(connectionExecutor.getActiveMode().name().toLowerCase());
+        statisticsMessage.append("\r\n\t").append("Connections in flight: ").append(connectionExecutor.getConnectionsInFlight());
+        statisticsMessage.append("\r\n\t").append("Maximum connections: ").append(connectionExecutor.getMaxConnections() > 0 ? String.valueOf(connectionExecutor.getMaxConnections()) : "Unlimited");
+        if (socketManager.getDisconnectScheduler() != null) {
+            statisticsMessage.append("\r\n\t").append("Connections waiting to be disconnected: ").append(socketManager.getDisconnectScheduler().getParkedConnectionCount());
+        }
+        statisticsMessage.append("\r\n\t").append("Rejected connections (overloaded): ").append(connectionExecutor.getRejectedCount());
+        statisticsMessage.append("\r\n\t").append("Shed connections (closed without detection): ").append(connectionExecutor.getShedCount());
+        statisticsMessage.append("\r\n\t").append("Whitelisted connections (closed without detection): ").append(socketManager.getWhitelistedConnectionCount());
+        statisticsMessage.append("\r\n\t").append("Banned connections (reset without detection): ").append(socketManager.getBannedConnectionCount());
+        if (socketManager.getConnectionCoalescer() != null) {
+            statisticsMessage.append("\r\n\t").append("Coalesced connections (counted to a burst from the same IP): ").append(socketManager.getConnectionCoalescer().getCoalescedCount());
+            statisticsMessage.append("\r\n\t").append("IPs with a burst in progress: ").append(socketManager.getConnectionCoalescer().getActiveCount());
+        }
+        statisticsMessage.append("\r\n\t").append("Log messages dropped (log writer queue full): ").append(LoggingHandler.getDroppedCount());
+        statisticsMessage.append("\r\n\t").append("Log messages waited for log writer: ").append(LoggingHandler.getBlockedCount());
+        printMessage((byte) 0x00, statisticsMessage.toString());
+    }
+
+    private void printMetrics() {
+        final StringBuilder metricsMessage = new StringBuilder("Metrics: ");
+        for (final String line : MetricsRegistry.toSummary()) {
+            metricsMessage.append("\r\n\t").append(line);
+        }
+        printMessage((byte) 0x00, metricsMessage.toString());
+    }
+
     private void unbanIpAddress(final String ipAddress) {
         banList.removeBan(ipAddress);
     }
+
+    /**
+     * Parses filters of '!l' and prints newest matching detections with a summary of ports
+     */
+    private void queryDetections(final String arguments) throws UnknownHostException {
+        if (!detectionStore.isEnabled()) {
+            printMessage((byte) 0x01, "Detections are not recorded. Set 'General.DetectionStore' to enable.");
+            return;
+        }
+        final DetectionQuery.DetectionQueryBuilder queryBuilder = DetectionQuery.builder();
+        for (final String argument : arguments.split("\\s+")) {
+            if (argument.isEmpty()) {
+                continue;
+            }
+            final int separator = argument.indexOf('=');
+            final String name = argument.substring(0, separator).toLowerCase();
+            final String value = argument.substring(separator + 1);
+            switch (name) {
+                case "ip":
+                    queryBuilder.address(InetAddress.getByName(value));
+                    break;
+                case "port":
+                    final int port = Integer.parseInt(value);
+                    if (!ConfigurationFileReader.validatePortNum(port)) {
+                        throw new IllegalArgumentException("Invalid port: " + value);
+                    }
+                    queryBuilder.port(port);
+                    break;
+                case "from":
+                    queryBuilder.fromTime(parseQueryTime(value, false));
+                    break;
+                case "to":
+                    queryBuilder.toTime(parseQueryTime(value, true));
+                    break;
+                case "last":
+                    queryBuilder.fromTime(System.currentTimeMillis() - parseQueryDuration(value));
+                    break;
+                case "limit":
+                    queryBuilder.limit(Math.max(0, Integer.parseInt(value)));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: " + name);
+            }
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final DetectionQueryResult result = detectionStore.query(queryBuilder.build());
+        final long queryTime = System.currentTimeMillis() - startTime;
+        final StringBuilder detectionsMessage = new StringBuilder("Recorded detections: ");
+        for (final DetectionRecord record : result.getRecords()) {
+            detectionsMessage.append("\r\n\t").append(DETECTION_TIME_FORMAT.format(Instant.ofEpochMilli(record.getTime())))
+                    .append(" ").append(record.getSourceAddress().getHostAddress()).append(":").append(record.getSourcePort())
+                    .append(" -> port ").append(record.getLocalPort())
+                    .append(" (").append(record.getAction() != null ? record.getAction().name().toLowerCase().replace('_', ' ') : "unknown");
+            if (record.getWelcomeMessageId() != -1) {
+                detectionsMessage.append(", welcome message ").append(record.getWelcomeMessageId());
+            }
+            detectionsMessage.append(")");
+        }
+        if (result.getMatchCount() == 0) {
+            detectionsMessage.append("None.");
+        }
+        detectionsMessage.append("\r\n\t").append("Matching detections: ").append(result.getMatchCount()).append(", showing the newest ").append(result.getRecords().size());
+        detectionsMessage.append("\r\n\t").append("Ports: ").append(listPorts(result.getLocalPorts()));
+        detectionsMessage.append("\r\n\t").append("Searched ").append(result.getSearchedBlocks()).append(" of ").append(result.getTotalBlocks()).append(" blocks in ").append(queryTime).append(" ms");
+        printMessage((byte) 0x00, detectionsMessage.toString());
+    }
+
+    /**
+     * Date or date and time in local time zone. A date in 'to' includes the whole day.
+     */
+    private static long parseQueryTime(final String value, final boolean endOfRange) {
+        try {
+            final LocalDateTime time = LocalDateTime.parse(value);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + (endOfRange ? TimeUnit.MINUTES.toMillis(1) - 1 : 0);
+        } catch (final DateTimeParseException e) {
+            final LocalDate date = LocalDate.parse(value);
+            return (endOfRange ? date.plusDays(1) : date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - (endOfRange ? 1 : 0);
+        }
+    }
+
+    /**
+     * Duration such as 30m, 12h or 7d
+     */
+    private static long parseQueryDuration(final String value) {
+        final long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(amount);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(amount);
+            case 'd':
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+    }
+
+    private static String listPorts(final BitSet ports) {
+        if (ports.isEmpty()) {
+            return "None.";
+        }
+        final StringBuilder portList = new StringBuilder();
+        int listedCount = 0;
+        for (int port = ports.nextSetBit(0); port >= 0 && listedCount < MAX_LISTED_PORTS; port = ports.nextSetBit(port + 1)) {
+            portList.append(listedCount++ > 0 ? ", " : "").append(port);
+        }
+        if (ports.cardinality() > MAX_LISTED_PORTS) {
+            portList.append(" and ").append(ports.cardinality() - MAX_LISTED_PORTS).append(" more");
+        }
+        return portList.toString();
+    }
 }
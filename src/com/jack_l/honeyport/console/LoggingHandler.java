@@ -17,32 +17,306 @@
 
 package com.jack_l.honeyport.console;
 
-import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues.LogOverflowPolicy;
+import lombok.AllArgsConstructor;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
-
-import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Log file handler
+ * Log writer, messages are queued by any thread and written to console and log file by one writer thread.
+ * Log file of the day is kept open and flushed in batches, a new file is opened by the writer when the day changes.
  */
 public class LoggingHandler {
+    private static final int QUEUE_SIZE = 8192;
+    private static final int BATCH_SIZE = 512;
+    // Log file is flushed when this much is written, or after flush interval
+    private static final int FLUSH_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+    // How long a blocked thread waits before trying the queue again
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final MessageRingBuffer queue = new MessageRingBuffer(QUEUE_SIZE);
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong blockedCount = new AtomicLong();
+    private static final Object writerLock = new Object();
+    private static volatile Thread writerThread;
+    private static volatile boolean writerWaiting = false;
+    private static volatile boolean shuttingDown = false;
+    // Set once the writer thread is gone, messages are written by the caller afterwards
+    private static volatile boolean writerStopped = false;
+
+    // Only used by the writer
+    private static final SimpleDateFormat logFileDateFormat = new SimpleDateFormat("yyyy_MM_dd");
+    private static final StringBuilder consoleBatch = new StringBuilder();
+    private static Writer logFileWriter;
+    private static long logFileDayStart;
+    private static long logFileDayEnd;
+    private static long lastFlushTime;
+    private static int unflushedSize;
+    private static boolean logFileErrorReported = false;
+
+    /**
+     * A message waiting to be written. Color is null if not used.
+     */
+    @AllArgsConstructor
+    static final class LogEntry {
+        private final long time;
+        private final String label;
+        private final String message;
+        private final String color;
+        private final boolean writeToFile;
+    }
+
+    private LoggingHandler() {
+    }
+
+    /**
+     * Queues a message, writer thread is started with first message. When queue is full, message is dropped or caller waits for space.
+     */
+    static void writeMessage(final LogEntry entry, final LogOverflowPolicy overflowPolicy) {
+        if (writerStopped) {
+            writeDirectly(entry);
+            return;
+        }
+        if (writerThread == null) {
+            startWriter();
+        }
+        if (!queue.offer(entry)) {
+            if (overflowPolicy == LogOverflowPolicy.DROP) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            blockedCount.incrementAndGet();
+            do {
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+                if (writerStopped) {
+                    writeDirectly(entry);
+                    return;
+                }
+            } while (!queue.offer(entry));
+        }
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+        if (writerStopped) {
+            // Writer stopped while the message was queued
+            drainDirectly();
+        }
+    }
+
+    private static void startWriter() {
+        synchronized (writerLock) {
+            if (writerThread != null) {
+                return;
+            }
+            final Thread thread = new Thread(LoggingHandler::runWriter, "HoneyPort-LogWriter");
+            thread.setDaemon(true);
+            thread.start();
+            writerThread = thread;
+            // Messages queued before exit are written out before the application exits
+            Runtime.getRuntime().addShutdownHook(new Thread(LoggingHandler::shutdown, "HoneyPort-LogShutdown"));
+        }
+    }
+
+    private static void runWriter() {
+        while (true) {
+            int writtenCount = 0;
+            LogEntry entry;
+            while (writtenCount < BATCH_SIZE && (entry = queue.poll()) != null) {
+                write(entry);
+                writtenCount++;
+            }
+            flushConsole();
+            final long currentTime = System.currentTimeMillis();
+            if (writtenCount == 0 || unflushedSize >= FLUSH_SIZE || currentTime - lastFlushTime >= FLUSH_INTERVAL) {
+                // Queue is drained or batch is big enough
+                flushLogFile(currentTime);
+            }
+            if (writtenCount > 0) {
+                continue;
+            }
+            if (shuttingDown) {
+                break;
+            }
+            writerWaiting = true;
+            if (queue.isEmpty() && !shuttingDown) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+            }
+            writerWaiting = false;
+        }
+        closeLogFile();
+    }
+
+    /**
+     * Stops the writer after it wrote all queued messages, later messages are written by their callers
+     */
+    public static void shutdown() {
+        final Thread thread;
+        synchronized (writerLock) {
+            thread = writerThread;
+        }
+        if (thread == null || writerStopped) {
+            return;
+        }
+        shuttingDown = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (final InterruptedException e) {
+            // Does not care about exception
+        }
+        if (!thread.isAlive()) {
+            writerStopped = true;
+            drainDirectly();
+        }
+    }
+
+    private static void writeDirectly(final LogEntry entry) {
+        synchronized (writerLock) {
+            write(entry);
+            flushConsole();
+            flushLogFile(System.currentTimeMillis());
+            closeLogFile();
+        }
+    }
+
+    private static void drainDirectly() {
+        synchronized (writerLock) {
+            LogEntry entry;
+            while ((entry = queue.poll()) != null) {
+                write(entry);
+            }
+            flushConsole();
+            flushLogFile(System.currentTimeMillis());
+            closeLogFile();
+        }
+    }
+
+    private static void write(final LogEntry entry) {
+        final String formattedMessage = "[" + TimestampFormatter.format(entry.time) + " " + entry.label + "]: " + entry.message;
+        if (entry.writeToFile) {
+            writeLog(formattedMessage, entry.time);
+        }
+        if (entry.color != null) {
+            consoleBatch.append(entry.color).append(formattedMessage).append(ConsoleHandler.C_RESET);
+        } else {
+            consoleBatch.append(formattedMessage);
+        }
+        consoleBatch.append(System.lineSeparator());
+    }
+
+    private static void flushConsole() {
+        if (consoleBatch.length() > 0) {
+            System.out.print(consoleBatch);
+            System.out.flush();
+            consoleBatch.setLength(0);
+        }
+    }
+
+    /**
+     * Writes log to the file of the day of the message, file is opened when the first message of a day is written
+     */
+    private static void writeLog(final String formattedMessage, final long time) {
+        if (logFileWriter == null || time < logFileDayStart || time >= logFileDayEnd) {
+            closeLogFile();
+            openLogFile(time);
+            if (logFileWriter == null) {
+                return;
+            }
+        }
+        try {
+            logFileWriter.write(formattedMessage);
+            logFileWriter.write(System.lineSeparator());
+            unflushedSize += formattedMessage.length() + 1;
+        } catch (final IOException e) {
+            reportLogFileError("Failed to write log message. (Exception: " + e + ")");
+            closeLogFile();
+        }
+    }
+
+    private static void openLogFile(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        final long dayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        try {
+            logFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("./Logs/Log_" + logFileDateFormat.format(new Date(time)) + ".log", true), StandardCharsets.UTF_8), FLUSH_SIZE);
+            logFileDayStart = dayStart;
+            logFileDayEnd = calendar.getTimeInMillis();
+            logFileErrorReported = false;
+        } catch (final IOException e) {
+            reportLogFileError("Failed to write log message. File does not exist.");
+        }
+    }
+
+    private static void flushLogFile(final long currentTime) {
+        lastFlushTime = currentTime;
+        if (logFileWriter != null && unflushedSize > 0) {
+            try {
+                logFileWriter.flush();
+            } catch (final IOException e) {
+                reportLogFileError("Failed to write log message. (Exception: " + e + ")");
+                closeLogFile();
+            }
+        }
+        unflushedSize = 0;
+    }
+
+    private static void closeLogFile() {
+        if (logFileWriter != null) {
+            try {
+                logFileWriter.close();
+            } catch (final IOException e) {
+                // Does not care about exception
+            }
+            logFileWriter = null;
+        }
+    }
 
     /**
-     * Writes log to file, does not check log setting
+     * Log file errors are reported once until the file is written again, they are not written to log file
      */
-    public static void writeLog(String formattedMessage, final CachedConfigurationValues.ConsoleConfigurationValues consoleConfiguration) {
-        final SimpleDateFormat formatCurrentDate = new SimpleDateFormat("yyyy_MM_dd");
-        try (final PrintWriter logFileWriter = new PrintWriter(new FileOutputStream(new File("./Logs/Log_" + formatCurrentDate.format(new Date()) + ".log"), true), true)) {
-            logFileWriter.println(formattedMessage);
-        } catch (final FileNotFoundException e) {
-            final CachedConfigurationValues.ConsoleConfigurationValues printErrorMessageConfiguration = CachedConfigurationValues.ConsoleConfigurationValues.builder().debugLevel(consoleConfiguration.getDebugLevel()).logLevel((byte) 0x0).useColorCode(consoleConfiguration.isUseColorCode()).build();
-            printMessage((byte) 0x01, "Failed to write log message. File does not exist.", printErrorMessageConfiguration);
+    private static void reportLogFileError(final String message) {
+        if (!logFileErrorReported) {
+            logFileErrorReported = true;
+            write(new LogEntry(System.currentTimeMillis(), "WARNING   ", message, null, false));
         }
     }
+
+    /**
+     * Number of messages waiting to be written
+     */
+    public static long getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Number of messages dropped because queue was full
+     */
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Number of messages that waited for space in queue
+     */
+    public static long getBlockedCount() {
+        return blockedCount.get();
+    }
 }
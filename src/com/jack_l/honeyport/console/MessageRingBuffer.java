@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.console;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock free queue of log messages, any thread can offer but only one thread can poll.
+ * Each slot has a sequence number telling whether it is free for the producer of a position or filled for the consumer.
+ */
+final class MessageRingBuffer {
+    private final LoggingHandler.LogEntry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the consumer, read by others for the size
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Capacity is rounded up to a power of two
+     */
+    MessageRingBuffer(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        entries = new LoggingHandler.LogEntry[size];
+        sequences = new AtomicLongArray(size);
+        for (int index = 0; index < size; index++) {
+            sequences.set(index, index);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a message, returns false if the buffer is full
+     */
+    boolean offer(final LoggingHandler.LogEntry entry) {
+        long position = tail.get();
+        while (true) {
+            final long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Slot still holds the message from one lap ago
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        final int slot = (int) position & mask;
+        entries[slot] = entry;
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest message, returns null if there is none. Consumer only.
+     */
+    LoggingHandler.LogEntry poll() {
+        final long position = head.get();
+        final int slot = (int) position & mask;
+        if (sequences.get(slot) != position + 1) {
+            return null;
+        }
+        final LoggingHandler.LogEntry entry = entries[slot];
+        entries[slot] = null;
+        sequences.lazySet(slot, position + entries.length);
+        head.lazySet(position + 1);
+        return entry;
+    }
+
+    /**
+     * Checks if there is no message ready to poll. Consumer only.
+     */
+    boolean isEmpty() {
+        final long position = head.get();
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    /**
+     * Number of messages offered and not polled yet, might be off by messages being offered or polled right now
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(entries.length, tail.get() - head.get()));
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.console;
+
+import lombok.AllArgsConstructor;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats message times. Messages of the same second share the formatted text, so a time is only formatted once a second.
+ * Thread safe, the cached second is replaced as a whole.
+ */
+final class TimestampFormatter {
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss").withZone(ZoneId.systemDefault());
+
+    @AllArgsConstructor
+    private static final class CachedSecond {
+        private final long second;
+        private final String text;
+    }
+
+    private static volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, "");
+
+    private TimestampFormatter() {
+    }
+
+    static String format(final long timeMillis) {
+        final long second = Math.floorDiv(timeMillis, 1000L);
+        CachedSecond cached = cachedSecond;
+        if (cached.second != second) {
+            cached = new CachedSecond(second, DATE_TIME_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedSecond = cached;
+        }
+        return cached.text;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.detections;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.net.InetAddress;
+
+/**
+ * Filters of a detection query, unset filters match everything
+ */
+@Builder
+@Getter
+public class DetectionQuery {
+    /**
+     * Variable: Address - Source IP to match, null matches any IP
+     */
+    private final InetAddress address;
+
+    /**
+     * Variable: Port - Local port to match, -1 matches any port
+     */
+    @Builder.Default
+    private final int port = -1;
+
+    /**
+     * Variable: FromTime and ToTime - Time range to match in milliseconds, both are included
+     */
+    @Builder.Default
+    private final long fromTime = 0;
+    @Builder.Default
+    private final long toTime = Long.MAX_VALUE;
+
+    /**
+     * Variable: Limit - Number of newest matching detections to return, all matches are still counted
+     */
+    @Builder.Default
+    private final int limit = 20;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.detections;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.net.InetAddress;
+
+/**
+ * A detection read from the detection store
+ */
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@Getter
+public class DetectionRecord {
+    private final long time;
+    private final InetAddress sourceAddress;
+    private final int sourcePort;
+    private final int localPort;
+    // -1 if no welcome message was sent
+    private final int welcomeMessageId;
+    private final DetectionStore.Action action;
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.detections;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file of fixed size detection records, memory mapped and filled from the start.
+ * Every record is 32 bytes: time, source IP key high and low, source port, local port, welcome message id and action.
+ * Time is written last and 0 marks the end, so a record cut off by a crash is not read.
+ * <p>
+ * Several threads append at once, each reserves a record number with an atomic counter and writes its own record.
+ */
+final class DetectionSegment {
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final int BLOCK_RECORDS = 8192;
+    static final int BLOCK_COUNT = 32;
+    static final int SEGMENT_RECORDS = BLOCK_RECORDS * BLOCK_COUNT;
+    private static final int MAGIC = 0x48504431;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+    static final long FILE_SIZE = HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+    private final long sequence;
+    private final MappedByteBuffer buffer;
+    private final SegmentIndex index;
+    // Reserved record numbers, goes past SEGMENT_RECORDS once the segment is full or closed
+    private final AtomicInteger reservedCount;
+    private final AtomicInteger writtenCount;
+
+    private DetectionSegment(final long sequence, final MappedByteBuffer buffer, final SegmentIndex index, final int recordCount) {
+        this.sequence = sequence;
+        this.buffer = buffer;
+        this.index = index;
+        this.reservedCount = new AtomicInteger(recordCount);
+        this.writtenCount = new AtomicInteger(recordCount);
+    }
+
+    /**
+     * Creates a new segment file for writing
+     */
+    static DetectionSegment create(final Path file, final long sequence) throws IOException {
+        final MappedByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        }
+        buffer.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, sequence);
+        return new DetectionSegment(sequence, buffer, SegmentIndex.create(BLOCK_COUNT), 0);
+    }
+
+    /**
+     * Opens an existing segment, its index is built from the records. Segment is writable if it is not full.
+     * Returns null if the file is not a segment.
+     */
+    static DetectionSegment open(final Path file, final long sequence, final boolean writable) throws IOException {
+        final MappedByteBuffer buffer = map(file, writable);
+        if (buffer == null) {
+            return null;
+        }
+        final SegmentIndex index = SegmentIndex.create(BLOCK_COUNT);
+        int recordCount = 0;
+        while (recordCount < SEGMENT_RECORDS && getTime(buffer, recordCount) != 0) {
+            index.add(recordCount, getTime(buffer, recordCount), getKeyHigh(buffer, recordCount), getKeyLow(buffer, recordCount), getLocalPort(buffer, recordCount));
+            recordCount++;
+        }
+        return new DetectionSegment(sequence, buffer, index, recordCount);
+    }
+
+    /**
+     * Maps a segment file, returns null if it is not a segment
+     */
+    static MappedByteBuffer map(final Path file, final boolean writable) throws IOException {
+        final MappedByteBuffer buffer;
+        try (final FileChannel channel = writable ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != FILE_SIZE) {
+                return null;
+            }
+            buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Reserves the next record, the segment is full if the returned record number is SEGMENT_RECORDS or more
+     */
+    int reserve() {
+        return reservedCount.getAndIncrement();
+    }
+
+    /**
+     * Writes a record reserved with reserve()
+     */
+    void write(final int recordNumber, final long time, final long keyHigh, final long keyLow, final int sourcePort, final int localPort, final byte welcomeMessageId, final byte action) {
+        final int position = HEADER_SIZE + recordNumber * RECORD_SIZE;
+        buffer.putLong(position + 8, keyHigh);
+        buffer.putLong(position + 16, keyLow);
+        buffer.putShort(position + 24, (short) sourcePort);
+        buffer.putShort(position + 26, (short) localPort);
+        buffer.put(position + 28, welcomeMessageId);
+        buffer.put(position + 29, action);
+        buffer.putLong(position, time);
+        index.add(recordNumber, time, keyHigh, keyLow, localPort);
+        writtenCount.incrementAndGet();
+    }
+
+    boolean isFull() {
+        return reservedCount.get() >= SEGMENT_RECORDS;
+    }
+
+    /**
+     * Stops reserving records, returns number of records reserved before
+     */
+    int close() {
+        return Math.min(reservedCount.getAndSet(SEGMENT_RECORDS), SEGMENT_RECORDS);
+    }
+
+    /**
+     * Waits for records reserved before close() to be written, so the index is complete
+     */
+    void awaitWrites(final int recordCount) {
+        while (writtenCount.get() < recordCount) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Flushes records to disk, they are otherwise written when the system decides to
+     */
+    void force() {
+        buffer.force();
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    MappedByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    SegmentIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Number of reserved records, a reserved record might not be written yet
+     */
+    int getRecordCount() {
+        return Math.min(reservedCount.get(), SEGMENT_RECORDS);
+    }
+
+    static long getTime(final MappedByteBuffer buffer, final int record) {
+        return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    static long getKeyHigh(final MappedByteBuffer buffer, final int record) {
+        return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE + 8);
+    }
+
+    static long getKeyLow(final MappedByteBuffer buffer, final int record) {
+        return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE + 16);
+    }
+
+    static int getSourcePort(final MappedByteBuffer buffer, final int record) {
+        return buffer.getShort(HEADER_SIZE + record * RECORD_SIZE + 24) & 0xFFFF;
+    }
+
+    static int getLocalPort(final MappedByteBuffer buffer, final int record) {
+        return buffer.getShort(HEADER_SIZE + record * RECORD_SIZE + 26) & 0xFFFF;
+    }
+
+    static byte getWelcomeMessageId(final MappedByteBuffer buffer, final int record) {
+        return buffer.get(HEADER_SIZE + record * RECORD_SIZE + 28);
+    }
+
+    static byte getAction(final MappedByteBuffer buffer, final int record) {
+        return buffer.get(HEADER_SIZE + record * RECORD_SIZE + 29);
+    }
+}
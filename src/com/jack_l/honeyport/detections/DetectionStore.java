@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.detections;
+
+import com.jack_l.honeyport.banlist.BanTable;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import lombok.AllArgsConstructor;
+
+import javax.security.auth.Destroyable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Records every connection as a fixed size binary record, so detections can be searched by IP, port and time.
+ * Records are appended to memory mapped segment files of 8 MB. When a segment is full its sparse index is written next to it
+ * and a new segment is started. Oldest segments are deleted when they are older than the retention or the size limit is reached.
+ * <p>
+ * Recording does not lock the store: a record is reserved in the current segment and written by the recording thread.
+ * The next segment is created ahead and full segments are sealed on the store thread, so a full segment is only swapped.
+ * Acceptors submit records to a queue instead, they are written by the writer thread.
+ */
+public class DetectionStore implements Destroyable {
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final String FILE_PREFIX = "Detections-";
+    // Retention is also checked this often, for when no segment is filled for a long time
+    private static final long RETENTION_CHECK_INTERVAL = 3600;
+    private static final int SUBMIT_QUEUE_SIZE = 65536;
+    private static final long DROPPED_REPORT_INTERVAL = 10000;
+    private static final Action[] ACTIONS = Action.values();
+
+    /**
+     * What was done with a recorded connection
+     */
+    public enum Action {
+        // Handled by a connection handler and banned
+        DETECTED,
+        // Banned without welcome message or delay, connection handlers were overloaded
+        DETECTION_ONLY,
+        // Closed because another connection from the same IP was being handled
+        COALESCED,
+        // Reset because the IP was already banned
+        BANNED,
+        // Closed without ban, connection handlers were overloaded
+        SHED
+    }
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final int maxSegmentCount;
+    // Full segments, oldest first. Lists and next segment are guarded by the store lock, recording does not take it.
+    private final List<SealedSegment> sealedSegments = new ArrayList<>();
+    // Replaced segments whose index is not written yet, they are searched like the current segment
+    private final List<DetectionSegment> sealingSegments = new ArrayList<>();
+    private volatile DetectionSegment activeSegment;
+    private DetectionSegment nextSegment;
+    private final ScheduledThreadPoolExecutor storeScheduler;
+    private final BlockingQueue<SubmittedRecord> submittedRecords = new ArrayBlockingQueue<>(SUBMIT_QUEUE_SIZE);
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread writerThread;
+
+    public DetectionStore(final CachedConfigurationValues configuration) {
+        retentionMillis = TimeUnit.DAYS.toMillis(configuration.getDetectionRetention());
+        maxSegmentCount = (int) Math.max(2, Math.min(Integer.MAX_VALUE, Math.min(configuration.getDetectionMaxSize(), Long.MAX_VALUE >> 20) * 1024 * 1024 / DetectionSegment.FILE_SIZE));
+        if (configuration.getDetectionStore().equalsIgnoreCase("OFF")) {
+            directory = null;
+            storeScheduler = null;
+            writerThread = null;
+            return;
+        }
+        directory = Paths.get(configuration.getDetectionStore());
+        try {
+            openSegments();
+        } catch (final IOException | RuntimeException e) {
+            printMessage((byte) 0x01, "Failed to open detection store, detections will not be recorded. (Exception: {})", e);
+            sealedSegments.clear();
+            activeSegment = null;
+        }
+        if (activeSegment == null) {
+            storeScheduler = null;
+            writerThread = null;
+            return;
+        }
+        storeScheduler = createStoreScheduler();
+        storeScheduler.execute(this::createNextSegment);
+        writerThread = new Thread(this::writeSubmittedRecords, "HoneyPort-DetectionWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Reads indexes of full segments and continues the last segment, indexes missing after a crash are built again
+     */
+    private void openSegments() throws IOException {
+        final long startTime = System.currentTimeMillis();
+        Files.createDirectories(directory);
+        final List<Long> sequences = new ArrayList<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (final Path file : files) {
+                final String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    // Left by an index write that did not finish
+                    Files.deleteIfExists(file);
+                } else if (fileName.endsWith(DetectionSegment.SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - DetectionSegment.SEGMENT_SUFFIX.length())));
+                    } catch (final NumberFormatException e) {
+                        printMessage((byte) 0x10, "Ignored unknown file in detection store directory: {}", fileName);
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+
+        long nextSequence = 1;
+        DetectionSegment openedSegment = null;
+        for (int index = 0; index < sequences.size(); index++) {
+            final long sequence = sequences.get(index);
+            nextSequence = sequence + 1;
+            if (index < sequences.size() - 1) {
+                SegmentIndex segmentIndex = SegmentIndex.map(indexPath(sequence));
+                if (segmentIndex == null) {
+                    final DetectionSegment segment = DetectionSegment.open(segmentPath(sequence), sequence, false);
+                    if (segment == null) {
+                        printMessage((byte) 0x01, "Ignored detection file with unknown format: {}", segmentPath(sequence));
+                        continue;
+                    }
+                    segmentIndex = segment.getIndex();
+                    segmentIndex.write(indexPath(sequence));
+                }
+                sealedSegments.add(new SealedSegment(sequence, segmentIndex.getMinTime(), segmentIndex.getMaxTime(), segmentIndex.getBlockCount()));
+                continue;
+            }
+            final DetectionSegment segment = DetectionSegment.open(segmentPath(sequence), sequence, true);
+            if (segment == null) {
+                printMessage((byte) 0x01, "Ignored detection file with unknown format: {}", segmentPath(sequence));
+            } else if (segment.isFull()) {
+                writeIndex(segment);
+            } else {
+                openedSegment = segment;
+            }
+        }
+        if (openedSegment == null) {
+            openedSegment = DetectionSegment.create(segmentPath(nextSequence), nextSequence);
+        }
+        deleteSegments(removeExpiredSegments());
+        activeSegment = openedSegment;
+        printMessage((byte) 0x10, "Detection store opened in {} ms. ({} full files, {} detections in current file)", System.currentTimeMillis() - startTime, sealedSegments.size(), openedSegment.getRecordCount());
+    }
+
+    private ScheduledThreadPoolExecutor createStoreScheduler() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "HoneyPort-DetectionStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkRetention, RETENTION_CHECK_INTERVAL, RETENTION_CHECK_INTERVAL, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Records a connection. welcomeMessageId is -1 if no welcome message was sent.
+     * Ids are stored in one byte, configuration allows at most 255 welcome messages so ids stay within 0-254.
+     */
+    public void record(final InetAddress sourceAddress, final int sourcePort, final int localPort, final int welcomeMessageId, final Action action) {
+        if (directory == null) {
+            return;
+        }
+        write(System.currentTimeMillis(), sourceAddress, sourcePort, localPort, welcomeMessageId, action);
+    }
+
+    /**
+     * Records a connection on the writer thread, for callers that must not wait such as acceptors.
+     * Dropped and counted if the writer thread is too far behind.
+     */
+    public void submit(final InetAddress sourceAddress, final int sourcePort, final int localPort, final int welcomeMessageId, final Action action) {
+        if (writerThread == null) {
+            return;
+        }
+        if (!submittedRecords.offer(new SubmittedRecord(System.currentTimeMillis(), sourceAddress, sourcePort, localPort, welcomeMessageId, action))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void writeSubmittedRecords() {
+        long reportedDroppedCount = 0;
+        long nextReportTime = 0;
+        try {
+            while (true) {
+                write(submittedRecords.take());
+                if (System.currentTimeMillis() >= nextReportTime) {
+                    final long currentDroppedCount = droppedCount.get();
+                    if (currentDroppedCount != reportedDroppedCount) {
+                        printMessage((byte) 0x01, "{} detections were not recorded, detection store could not keep up.", currentDroppedCount - reportedDroppedCount);
+                        reportedDroppedCount = currentDroppedCount;
+                    }
+                    nextReportTime = System.currentTimeMillis() + DROPPED_REPORT_INTERVAL;
+                }
+            }
+        } catch (final InterruptedException e) {
+            // Destroyed, records submitted before are still written
+            SubmittedRecord record;
+            while ((record = submittedRecords.poll()) != null) {
+                write(record);
+            }
+        }
+    }
+
+    private void write(final SubmittedRecord record) {
+        write(record.time, record.sourceAddress, record.sourcePort, record.localPort, record.welcomeMessageId, record.action);
+    }
+
+    /**
+     * Reserves a record in the current segment and writes it, a full segment is replaced and the record is reserved again
+     */
+    private void write(final long time, final InetAddress sourceAddress, final int sourcePort, final int localPort, final int welcomeMessageId, final Action action) {
+        final byte[] address = sourceAddress.getAddress();
+        final long keyHigh = BanTable.keyHigh(address);
+        final long keyLow = BanTable.keyLow(address);
+        while (true) {
+            final DetectionSegment segment = activeSegment;
+            if (segment == null) {
+                return;
+            }
+            final int recordNumber = segment.reserve();
+            if (recordNumber < DetectionSegment.SEGMENT_RECORDS) {
+                segment.write(recordNumber, time, keyHigh, keyLow, sourcePort, localPort, (byte) welcomeMessageId, (byte) action.ordinal());
+                return;
+            }
+            rollSegment(segment);
+        }
+    }
+
+    /**
+     * Replaces a full or expired segment with the next one, its index is written on the store thread.
+     * Does nothing if the segment was already replaced. The next segment is normally created ahead, it is created here only if it is not ready.
+     */
+    private void rollSegment(final DetectionSegment segment) {
+        final int recordCount;
+        synchronized (this) {
+            if (activeSegment != segment) {
+                return;
+            }
+            recordCount = segment.close();
+            DetectionSegment newSegment = nextSegment;
+            nextSegment = null;
+            if (newSegment == null) {
+                try {
+                    newSegment = DetectionSegment.create(segmentPath(segment.getSequence() + 1), segment.getSequence() + 1);
+                } catch (final IOException | RuntimeException e) {
+                    printMessage((byte) 0x01, "Failed to write detection store, detections are no longer recorded. (Exception: {})", e);
+                    activeSegment = null;
+                    return;
+                }
+            }
+            sealingSegments.add(segment);
+            activeSegment = newSegment;
+        }
+        try {
+            storeScheduler.execute(() -> sealSegment(segment, recordCount));
+        } catch (final RejectedExecutionException e) {
+            // Shutting down, index is built again on next start
+        }
+    }
+
+    /**
+     * Writes the index of a replaced segment once all its records are written, then creates the next segment ahead
+     */
+    private void sealSegment(final DetectionSegment segment, final int recordCount) {
+        segment.awaitWrites(recordCount);
+        segment.force();
+        final List<SealedSegment> expiredSegments;
+        try {
+            final SegmentIndex index = segment.getIndex();
+            index.write(indexPath(segment.getSequence()));
+            synchronized (this) {
+                sealingSegments.remove(segment);
+                sealedSegments.add(new SealedSegment(segment.getSequence(), index.getMinTime(), index.getMaxTime(), index.getBlockCount()));
+                expiredSegments = removeExpiredSegments();
+            }
+            deleteSegments(expiredSegments);
+        } catch (final IOException | RuntimeException e) {
+            // Segment stays searchable from memory
+            printMessage((byte) 0x01, "Failed to write index of detection file {}, it will be built again on next start. (Exception: {})", segmentPath(segment.getSequence()), e);
+        }
+        createNextSegment();
+    }
+
+    /**
+     * Creates the segment after the current one, so a full segment is replaced without waiting for a new file
+     */
+    private synchronized void createNextSegment() {
+        final DetectionSegment segment = activeSegment;
+        if (segment == null || nextSegment != null) {
+            return;
+        }
+        try {
+            nextSegment = DetectionSegment.create(segmentPath(segment.getSequence() + 1), segment.getSequence() + 1);
+        } catch (final IOException | RuntimeException e) {
+            printMessage((byte) 0x10, "Failed to create next detection file ahead, it is created when needed. (Exception: {})", e);
+        }
+    }
+
+    private void writeIndex(final DetectionSegment segment) throws IOException {
+        final SegmentIndex index = segment.getIndex();
+        index.write(indexPath(segment.getSequence()));
+        sealedSegments.add(new SealedSegment(segment.getSequence(), index.getMinTime(), index.getMaxTime(), index.getBlockCount()));
+    }
+
+    /**
+     * Segment with records older than the retention is sealed even if it is not full, so it can be deleted once all its records expire
+     */
+    private void checkRetention() {
+        final DetectionSegment segment = activeSegment;
+        if (segment == null) {
+            return;
+        }
+        segment.force();
+        if (segment.getRecordCount() > 0 && segment.getIndex().getMinTime() < System.currentTimeMillis() - retentionMillis) {
+            rollSegment(segment);
+        } else {
+            final List<SealedSegment> expiredSegments;
+            synchronized (this) {
+                expiredSegments = removeExpiredSegments();
+            }
+            deleteSegments(expiredSegments);
+        }
+    }
+
+    /**
+     * Removes oldest segments from the list until all are within retention and size limit, called with the store locked.
+     * Files are deleted afterwards by deleteSegments(), without the lock.
+     */
+    private List<SealedSegment> removeExpiredSegments() {
+        final long expireTime = System.currentTimeMillis() - retentionMillis;
+        final List<SealedSegment> expiredSegments = new ArrayList<>();
+        while (!sealedSegments.isEmpty() && (sealedSegments.size() + sealingSegments.size() + 1 > maxSegmentCount || sealedSegments.get(0).maxTime < expireTime)) {
+            expiredSegments.add(sealedSegments.remove(0));
+        }
+        return expiredSegments;
+    }
+
+    private void deleteSegments(final List<SealedSegment> expiredSegments) {
+        for (final SealedSegment expiredSegment : expiredSegments) {
+            try {
+                Files.deleteIfExists(indexPath(expiredSegment.sequence));
+                Files.deleteIfExists(segmentPath(expiredSegment.sequence));
+            } catch (final IOException e) {
+                printMessage((byte) 0x01, "Failed to delete old detection file. (Exception: {})", e);
+            }
+        }
+    }
+
+    /**
+     * Searches newest segments first. Blocks are skipped when their index shows no record can match.
+     */
+    public DetectionQueryResult query(final DetectionQuery query) {
+        final List<SealedSegment> segments;
+        final List<DetectionSegment> unsealedSegments;
+        synchronized (this) {
+            segments = new ArrayList<>(sealedSegments);
+            unsealedSegments = new ArrayList<>(sealingSegments);
+            if (activeSegment != null) {
+                unsealedSegments.add(activeSegment);
+            }
+        }
+        final Search search = new Search(query);
+        for (int index = unsealedSegments.size() - 1; index >= 0; index--) {
+            final DetectionSegment segment = unsealedSegments.get(index);
+            search.searchSegment(segment.getIndex(), segment.getBuffer(), null, segment.getRecordCount());
+        }
+        for (int index = segments.size() - 1; index >= 0; index--) {
+            final SealedSegment sealedSegment = segments.get(index);
+            if (sealedSegment.minTime > query.getToTime() || sealedSegment.maxTime < query.getFromTime()) {
+                search.totalBlocks += sealedSegment.blockCount;
+                continue;
+            }
+            try {
+                // Index is missing if it was deleted by retention while searching
+                final SegmentIndex segmentIndex = SegmentIndex.map(indexPath(sealedSegment.sequence));
+                if (segmentIndex != null) {
+                    search.searchSegment(segmentIndex, null, segmentPath(sealedSegment.sequence), DetectionSegment.SEGMENT_RECORDS);
+                }
+            } catch (final IOException e) {
+                printMessage((byte) 0x01, "Failed to read detection file {}. (Exception: {})", segmentPath(sealedSegment.sequence), e);
+            }
+        }
+        Collections.reverse(search.records);
+        return new DetectionQueryResult(search.records, search.matchCount, search.localPorts, search.searchedBlocks, search.totalBlocks);
+    }
+
+    /**
+     * Checks if detections are being recorded
+     */
+    public boolean isEnabled() {
+        return activeSegment != null;
+    }
+
+    @Override
+    public void destroy() {
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(1000);
+            } catch (final InterruptedException e) {
+                // Does not care about exception
+            }
+        }
+        if (storeScheduler != null) {
+            // Replaced segments are still sealed
+            storeScheduler.shutdown();
+            try {
+                storeScheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                // Does not care about exception
+            }
+        }
+        synchronized (this) {
+            if (activeSegment != null) {
+                // Segment is continued on next start
+                activeSegment.force();
+                activeSegment = null;
+            }
+            if (nextSegment != null) {
+                // Created ahead and still empty, otherwise it would be continued instead of the current segment
+                try {
+                    Files.deleteIfExists(segmentPath(nextSegment.getSequence()));
+                } catch (final IOException e) {
+                    printMessage((byte) 0x10, "Failed to delete unused detection file. (Exception: {})", e);
+                }
+                nextSegment = null;
+            }
+        }
+    }
+
+    private Path segmentPath(final long sequence) {
+        return directory.resolve(FILE_PREFIX + sequence + DetectionSegment.SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(final long sequence) {
+        return directory.resolve(FILE_PREFIX + sequence + SegmentIndex.INDEX_SUFFIX);
+    }
+
+    @AllArgsConstructor
+    private static final class SubmittedRecord {
+        private final long time;
+        private final InetAddress sourceAddress;
+        private final int sourcePort;
+        private final int localPort;
+        private final int welcomeMessageId;
+        private final Action action;
+    }
+
+    @AllArgsConstructor
+    private static final class SealedSegment {
+        private final long sequence;
+        private final long minTime;
+        private final long maxTime;
+        private final int blockCount;
+    }
+
+    /**
+     * State of one query, records are visited from newest to oldest
+     */
+    private static final class Search {
+        private final DetectionQuery query;
+        private final long keyHigh;
+        private final long keyLow;
+        private final List<DetectionRecord> records = new ArrayList<>();
+        private final BitSet localPorts = new BitSet();
+        private long matchCount = 0;
+        private int searchedBlocks = 0;
+        private int totalBlocks = 0;
+
+        private Search(final DetectionQuery query) {
+            this.query = query;
+            final byte[] address = query.getAddress() != null ? query.getAddress().getAddress() : null;
+            keyHigh = address != null ? BanTable.keyHigh(address) : 0;
+            keyLow = address != null ? BanTable.keyLow(address) : 0;
+        }
+
+        /**
+         * Searches blocks of a segment, file is mapped only if a block might match
+         */
+        private void searchSegment(final SegmentIndex index, MappedByteBuffer buffer, final Path file, final int recordCount) {
+            for (int block = index.getBlockCount() - 1; block >= 0; block--) {
+                totalBlocks++;
+                if (!index.mightMatch(block, query, keyHigh, keyLow)) {
+                    continue;
+                }
+                searchedBlocks++;
+                if (buffer == null) {
+                    try {
+                        buffer = DetectionSegment.map(file, false);
+                    } catch (final NoSuchFileException e) {
+                        // Deleted by retention while searching
+                        return;
+                    } catch (final IOException e) {
+                        printMessage((byte) 0x01, "Failed to read detection file {}. (Exception: {})", file, e);
+                        return;
+                    }
+                    if (buffer == null) {
+                        return;
+                    }
+                }
+                final int blockStart = block * DetectionSegment.BLOCK_RECORDS;
+                for (int record = Math.min(recordCount, blockStart + DetectionSegment.BLOCK_RECORDS) - 1; record >= blockStart; record--) {
+                    searchRecord(buffer, record);
+                }
+            }
+        }
+
+        private void searchRecord(final MappedByteBuffer buffer, final int record) {
+            final long time = DetectionSegment.getTime(buffer, record);
+            // Time is 0 for records that were not written to disk before a crash
+            if (time == 0 || time < query.getFromTime() || time > query.getToTime()) {
+                return;
+            }
+            if (query.getAddress() != null && (DetectionSegment.getKeyHigh(buffer, record) != keyHigh || DetectionSegment.getKeyLow(buffer, record) != keyLow)) {
+                return;
+            }
+            final int localPort = DetectionSegment.getLocalPort(buffer, record);
+            if (query.getPort() != -1 && localPort != query.getPort()) {
+                return;
+            }
+            matchCount++;
+            localPorts.set(localPort);
+            if (records.size() < query.getLimit()) {
+                final byte welcomeMessageId = DetectionSegment.getWelcomeMessageId(buffer, record);
+                final byte action = DetectionSegment.getAction(buffer, record);
+                records.add(new DetectionRecord(time, BanTable.toInetAddress(DetectionSegment.getKeyHigh(buffer, record), DetectionSegment.getKeyLow(buffer, record)),
+                        DetectionSegment.getSourcePort(buffer, record), localPort, welcomeMessageId == -1 ? -1 : welcomeMessageId & 0xFF,
+                        action >= 0 && action < ACTIONS.length ? ACTIONS[action] : null));
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.detections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sparse index of a detection segment. For each block of records it keeps the time range, a bloom filter of source IPs
+ * and a bitmap of local ports, so a query only reads blocks that can match.
+ * Index of the segment being written is kept in memory and updated atomically by all writers,
+ * index of a full segment is written next to it and mapped when queried.
+ * <p>
+ * All values are longs: magic and version, block count, time range of the segment, then per block
+ * time range, IP bloom filter and port bitmap.
+ */
+final class SegmentIndex {
+    static final String INDEX_SUFFIX = ".idx";
+    private static final long MAGIC_VERSION = 0x4850444900000001L;
+    private static final int HEADER_LONGS = 4;
+    private static final int BLOOM_BITS = 32768;
+    private static final int BLOOM_LONGS = BLOOM_BITS / 64;
+    private static final int PORT_LONGS = 65536 / 64;
+    private static final int BLOCK_LONGS = 2 + BLOOM_LONGS + PORT_LONGS;
+
+    // Index being built in memory, or null if mapped
+    private final AtomicLongArray longs;
+    // Mapped index, or null if in memory
+    private final ByteBuffer buffer;
+
+    private SegmentIndex(final AtomicLongArray longs, final ByteBuffer buffer) {
+        this.longs = longs;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Empty index kept in memory, time ranges start empty so they can only be widened
+     */
+    static SegmentIndex create(final int blockCount) {
+        final SegmentIndex index = new SegmentIndex(new AtomicLongArray(HEADER_LONGS + blockCount * BLOCK_LONGS), null);
+        index.longs.set(0, MAGIC_VERSION);
+        index.longs.set(2, Long.MAX_VALUE);
+        index.longs.set(3, Long.MIN_VALUE);
+        for (int block = 0; block < blockCount; block++) {
+            index.longs.set(HEADER_LONGS + block * BLOCK_LONGS, Long.MAX_VALUE);
+            index.longs.set(HEADER_LONGS + block * BLOCK_LONGS + 1, Long.MIN_VALUE);
+        }
+        return index;
+    }
+
+    /**
+     * Maps an index written by write(), returns null if the file does not exist or is not an index
+     */
+    static SegmentIndex map(final Path file) throws IOException {
+        final MappedByteBuffer mappedBuffer;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LONGS * 8) {
+                return null;
+            }
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+        final SegmentIndex index = new SegmentIndex(null, mappedBuffer);
+        if (index.getLong(0) != MAGIC_VERSION || mappedBuffer.capacity() < (HEADER_LONGS + index.getBlockCount() * BLOCK_LONGS) * 8) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Adds a record to its block, record number decides the block. Safe to call from several threads.
+     */
+    void add(final int recordNumber, final long time, final long keyHigh, final long keyLow, final int localPort) {
+        final int block = recordNumber / DetectionSegment.BLOCK_RECORDS;
+        final int blockStart = HEADER_LONGS + block * BLOCK_LONGS;
+        updateMax(1, block + 1);
+        updateMin(blockStart, time);
+        updateMax(blockStart + 1, time);
+        updateMin(2, time);
+        updateMax(3, time);
+
+        final long hash = hash(keyHigh, keyLow);
+        setBit(blockStart + 2, (int) hash & (BLOOM_BITS - 1));
+        setBit(blockStart + 2, (int) (hash >>> 32) & (BLOOM_BITS - 1));
+        setBit(blockStart + 2 + BLOOM_LONGS, localPort);
+    }
+
+    /**
+     * Checks if a block might have records matching the query, false means it surely has none
+     */
+    boolean mightMatch(final int block, final DetectionQuery query, final long keyHigh, final long keyLow) {
+        final int blockStart = HEADER_LONGS + block * BLOCK_LONGS;
+        if (getLong(blockStart) > query.getToTime() || getLong(blockStart + 1) < query.getFromTime()) {
+            return false;
+        }
+        if (query.getAddress() != null) {
+            final long hash = hash(keyHigh, keyLow);
+            if (!isBitSet(blockStart + 2, (int) hash & (BLOOM_BITS - 1)) || !isBitSet(blockStart + 2, (int) (hash >>> 32) & (BLOOM_BITS - 1))) {
+                return false;
+            }
+        }
+        return query.getPort() == -1 || isBitSet(blockStart + 2 + BLOOM_LONGS, query.getPort());
+    }
+
+    int getBlockCount() {
+        return (int) getLong(1);
+    }
+
+    long getMinTime() {
+        return getLong(2);
+    }
+
+    long getMaxTime() {
+        return getLong(3);
+    }
+
+    /**
+     * Writes an index built in memory to a temporary file and moves it in place once it is complete
+     */
+    void write(final Path file) throws IOException {
+        final Path tempFile = file.resolveSibling(file.getFileName() + DetectionStore.TEMP_SUFFIX);
+        try (final FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer content = ByteBuffer.allocate(longs.length() * 8);
+            for (int longIndex = 0; longIndex < longs.length(); longIndex++) {
+                content.putLong(longs.get(longIndex));
+            }
+            content.flip();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long getLong(final int longIndex) {
+        return longs != null ? longs.get(longIndex) : buffer.getLong(longIndex * 8);
+    }
+
+    /**
+     * Updates only if the value changes, so writers of the same block do not compete for values already set
+     */
+    private void updateMin(final int longIndex, final long value) {
+        long current;
+        while ((current = longs.get(longIndex)) > value && !longs.compareAndSet(longIndex, current, value)) {
+            // Changed by another writer, try again
+        }
+    }
+
+    private void updateMax(final int longIndex, final long value) {
+        long current;
+        while ((current = longs.get(longIndex)) < value && !longs.compareAndSet(longIndex, current, value)) {
+            // Changed by another writer, try again
+        }
+    }
+
+    private void setBit(final int bitsStart, final int bit) {
+        final int longIndex = bitsStart + (bit >>> 6);
+        final long mask = 1L << bit;
+        long current;
+        while (((current = longs.get(longIndex)) & mask) == 0 && !longs.compareAndSet(longIndex, current, current | mask)) {
+            // Changed by another writer, try again
+        }
+    }
+
+    private boolean isBitSet(final int bitsStart, final int bit) {
+        return (getLong(bitsStart + (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    /**
+     * Mixes both halves of the key, two bloom filter positions are taken from the result
+     */
+    private static long hash(final long keyHigh, final long keyLow) {
+        long hash = keyHigh * 0x9E3779B97F4A7C15L + keyLow;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+}
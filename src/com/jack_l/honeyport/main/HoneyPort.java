@@ -17,100 +17,188 @@ package com.jack_l.honeyport.main;/*
 
 import com.jack_l.honeyport.banlist.BanListManager;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.ConfigurationDiff;
 import com.jack_l.honeyport.configuration.ConfigurationExceptions;
 import com.jack_l.honeyport.configuration.ConfigurationFileReader;
+import com.jack_l.honeyport.configuration.ConfigurationFileWatcher;
 import com.jack_l.honeyport.configuration.SharedRuntimeVariables;
 import com.jack_l.honeyport.console.ConsoleHandler;
 import com.jack_l.honeyport.console.KeyboardInputHandler;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import com.jack_l.honeyport.metrics.MetricsServer;
 import com.jack_l.honeyport.sockets.SocketManager;
 
+import java.io.IOException;
+
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
 /**
  * Main class of Honey Port project. Handles program startup/shutdown/reload
  */
 public class HoneyPort {
-    private static BanListManager banList;
-    private static SocketManager socketManager;
+    private static volatile BanListManager banList;
+    private static volatile DetectionStore detectionStore;
+    private static volatile SocketManager socketManager;
+    private static volatile MetricsServer metricsServer;
+    // Configuration the ban list and socket manager are running with
+    private static CachedConfigurationValues runningConfiguration;
+    private static ConfigurationFileWatcher configurationFileWatcher;
     private static boolean shutdownHookInitialized = false;
 
     /**
      * Main entry point to the application
      */
     public static void main(String[] args) {
+        // Load, validate and apply configuration
+        boolean configurationApplied;
+        try {
+            configurationApplied = ConfigurationFileReader.validSettingsAndSetActive(ConfigurationFileReader.loadConfigurations());
+        } catch (final ConfigurationExceptions e) {
+            configurationApplied = false;
+        }
+        if (!configurationApplied) {
+            printMessage((byte) 0x02, "Failed to load configuration. Application will now exit.", CachedConfigurationValues.ConsoleConfigurationValues.builder().build());
+            System.exit(-1);
+        }
+        start(SharedRuntimeVariables.getCurrentCachedConfiguration());
+
         boolean reload;
         do {
-            // Load, validate and apply configuration
-            boolean configurationApplied;
-            try {
-                configurationApplied = ConfigurationFileReader.validSettingsAndSetActive(ConfigurationFileReader.loadConfigurations());
-            } catch (final ConfigurationExceptions e) {
-                configurationApplied = false;
-            }
-
-            if (!configurationApplied) {
-                if (SharedRuntimeVariables.getCurrentCachedConfiguration() != null) {
-                    printMessage((byte) 0x01, "Failed to reload configuration. Using previous configuration to run the application.");
-                } else {
-                    printMessage((byte) 0x02, "Failed to load configuration. Application will now exit.", CachedConfigurationValues.ConsoleConfigurationValues.builder().build());
-                    System.exit(-1);
-                }
-            }
-            final CachedConfigurationValues configuration = SharedRuntimeVariables.getCurrentCachedConfiguration();
-
-            // Welcome message
-            printMessage((byte) 0x00, "-----------------------------------------");
-            printMessage((byte) 0x00, "Welcome use Honey Port.");
-            printMessage((byte) 0x00, "Original Author: Jack L (http://jack-l.com)");
-            printMessage((byte) 0x00, "Version: " + SharedRuntimeVariables.version);
-            printMessage((byte) 0x00, "This program is released under GNU General Public License v3");
-            printMessage((byte) 0x00, "-----------------------------------------");
-
-            // Initialize objects
-            banList = new BanListManager(configuration);
-            socketManager = new SocketManager(configuration, banList);
-            socketManager.initializePorts();
-            if (!shutdownHookInitialized) {
-                shutdownHookInitialized = true;
-                initializeShutdownHook();
-            }
-
             // Transfer control to keyboard
-            final KeyboardInputHandler keyboard = new KeyboardInputHandler(configuration, banList, socketManager);
+            final KeyboardInputHandler keyboard = new KeyboardInputHandler(banList, detectionStore, socketManager);
             reload = keyboard.keyboardControl();
 
             // Transfer out from keyboard
             if (reload) {
-                printMessage((byte) 0x00, "Reload signal received, unload current settings...");
-                socketManager.destroy();
-                socketManager = null;
-                banList.destroy();
-                banList = null;
-                printMessage((byte) 0x00, "All current setting unloaded, restarting...");
-                if (configuration.getConsoleConfigurations().isUseColorCode()) {
-                    // Clear console
-                    System.out.print("\033[H\033[2J");
-                }
+                printMessage((byte) 0x00, "Reload signal received, reading configuration...");
+                reload(true);
             }
         } while (reload);
         // Must use System.exit() here because of shutdown hooks.
         System.exit(0);
     }
 
+    private static void start(final CachedConfigurationValues configuration) {
+        // Welcome message
+        printMessage((byte) 0x00, "-----------------------------------------");
+        printMessage((byte) 0x00, "Welcome use Honey Port.");
+        printMessage((byte) 0x00, "Original Author: Jack L (http://jack-l.com)");
+        printMessage((byte) 0x00, "Version: {}", SharedRuntimeVariables.version);
+        printMessage((byte) 0x00, "This program is released under GNU General Public License v3");
+        printMessage((byte) 0x00, "-----------------------------------------");
+
+        // Initialize objects
+        runningConfiguration = configuration;
+        banList = new BanListManager(configuration);
+        detectionStore = new DetectionStore(configuration);
+        socketManager = new SocketManager(configuration, banList, detectionStore);
+        socketManager.initializePorts();
+        if (configuration.getMetricsPort() != -1) {
+            try {
+                metricsServer = new MetricsServer(configuration.getMetricsPort());
+            } catch (final IOException e) {
+                printMessage((byte) 0x01, "Failed to start metrics server on port {}. (Exception: {})", configuration.getMetricsPort(), e);
+            }
+        }
+        if (!shutdownHookInitialized) {
+            shutdownHookInitialized = true;
+            initializeShutdownHook();
+        }
+        updateConfigurationFileWatcher(configuration);
+    }
+
+    /**
+     * Reads configuration file again and applies changed settings in place, bans and unchanged ports are kept.
+     * Everything is restarted if settings that cannot be changed at runtime are changed, only when restart is allowed.
+     */
+    private static synchronized void reload(final boolean restartAllowed) {
+        final CachedConfigurationValues newConfiguration;
+        try {
+            newConfiguration = ConfigurationFileReader.loadConfigurations();
+        } catch (final ConfigurationExceptions e) {
+            printMessage((byte) 0x01, "Failed to reload configuration. Using previous configuration to run the application.");
+            return;
+        }
+        if (!ConfigurationFileReader.validateSettings(newConfiguration)) {
+            printMessage((byte) 0x01, "Failed to reload configuration. Using previous configuration to run the application.");
+            return;
+        }
+
+        final ConfigurationDiff diff = new ConfigurationDiff(runningConfiguration, newConfiguration);
+        if (diff.isRestartRequired() || !socketManager.isInitialized()) {
+            final String reason = diff.isRestartRequired() ? "Changed settings: " + String.join(", ", diff.getRestartRequiredSettings()) : "Ports were not initialized";
+            if (!restartAllowed) {
+                printMessage((byte) 0x01, "Configuration is not reloaded, it cannot be applied without restart. ({}) Use '!r' to restart.", reason);
+                return;
+            }
+            printMessage((byte) 0x00, "Configuration cannot be applied without restart, unload current settings... ({})", reason);
+            SharedRuntimeVariables.setCurrentCachedConfiguration(newConfiguration);
+            if (metricsServer != null) {
+                metricsServer.destroy();
+                metricsServer = null;
+            }
+            socketManager.destroy();
+            socketManager = null;
+            detectionStore.destroy();
+            detectionStore = null;
+            banList.destroy();
+            banList = null;
+            printMessage((byte) 0x00, "All current setting unloaded, restarting...");
+            if (newConfiguration.getConsoleConfigurations().isUseColorCode()) {
+                // Clear console
+                System.out.print("\033[H\033[2J");
+            }
+            start(newConfiguration);
+            return;
+        }
+
+        SharedRuntimeVariables.setCurrentCachedConfiguration(newConfiguration);
+        banList.applyConfiguration(newConfiguration, diff);
+        socketManager.applyConfiguration(newConfiguration, diff);
+        runningConfiguration = newConfiguration;
+        updateConfigurationFileWatcher(newConfiguration);
+        printMessage((byte) 0x00, "New configuration applied, bans are kept.");
+    }
+
+    private static void updateConfigurationFileWatcher(final CachedConfigurationValues configuration) {
+        if (configuration.isWatchSettings() && configurationFileWatcher == null) {
+            try {
+                configurationFileWatcher = new ConfigurationFileWatcher(() -> reload(false));
+            } catch (final IOException e) {
+                printMessage((byte) 0x01, "Failed to watch configuration file, use '!r' to reload configuration. (Exception: {})", e);
+            }
+        } else if (!configuration.isWatchSettings() && configurationFileWatcher != null) {
+            configurationFileWatcher.destroy();
+            configurationFileWatcher = null;
+        }
+    }
+
     private static void initializeShutdownHook() {
         printMessage((byte) 0x10, "Initializing shutdown hook...");
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             printMessage((byte) 0x00, "Shutdown signal detected. Destroying all resources...");
             KeyboardInputHandler.closeScanner();
+            if (configurationFileWatcher != null) {
+                configurationFileWatcher.destroy();
+            }
+            if (metricsServer != null) {
+                metricsServer.destroy();
+                metricsServer = null;
+            }
             if (socketManager != null) {
                 socketManager.destroy();
                 socketManager = null;
             }
+            if (detectionStore != null) {
+                detectionStore.destroy();
+                detectionStore = null;
+            }
             if (banList != null) {
                 banList.destroy();
                 banList = null;
             }
-            printMessage((byte) 0x00, "Total of " + SharedRuntimeVariables.getDetectionCount() + " connections established to Honey Port during runtime.");
+            printMessage((byte) 0x00, "Total of {} connections established to Honey Port during runtime.", MetricsRegistry.DETECTIONS.sum());
         }));
         printMessage((byte) 0x10, "Shutdown hook initialized.");
     }
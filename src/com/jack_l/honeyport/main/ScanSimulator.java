@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jack_l.honeyport.main;
+
+import com.jack_l.honeyport.banlist.BanListManager;
+import com.jack_l.honeyport.banlist.SimulatedFirewallBackend;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.ConfigurationExceptions;
+import com.jack_l.honeyport.configuration.ConfigurationFileReader;
+import com.jack_l.honeyport.console.LoggingHandler;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import com.jack_l.honeyport.sockets.ConnectionExecutor;
+import com.jack_l.honeyport.sockets.SocketManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Scan simulator, runs Honey Port with the simulated firewall backend and scans its ports from many loopback addresses.
+ * Each scanner is one source IP in 127.0.0.0/8 making full TCP connections to the configured ports, scanners are run
+ * interleaved by a fixed number of threads. Prints accepts per second, time to ban, peak connection handlers, threads,
+ * heap and file descriptors once all connections are made.
+ * <p>
+ * Usage: ScanSimulator [config=Settings.conf] [scanners=1000] [ports=100] [concurrency=256] [rate=0] [read=none|welcome|wait] [timeout=2000]
+ * <p>
+ * Ban journal, detection store and metrics port are turned off, so simulated bans are not kept. Source addresses other
+ * than 127.0.0.1 can only be used where the whole loopback network is routed to the loopback interface, like Linux.
+ */
+public class ScanSimulator {
+    // Scanner addresses start from 127.1.0.1
+    private static final int FIRST_SCANNER_ADDRESS = 0x7F010001;
+    private static final long SAMPLE_INTERVAL = 100;
+    // Longest wait for connections to be accepted and bans to be applied after the scan
+    private static final long SETTLE_TIME = 30000;
+
+    private final CachedConfigurationValues configuration;
+    private final int scannerCount;
+    private final int portsPerScanner;
+    private final int concurrency;
+    private final int connectRate;
+    private final ReadBehavior readBehavior;
+    private final int timeout;
+    private final int[] ports;
+
+    private final AtomicLong nextConnection = new AtomicLong();
+    private final AtomicLong establishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong welcomeMessageCount = new AtomicLong();
+    private volatile boolean scanning = true;
+
+    // Peaks, only written by the sampler
+    private long peakAcceptsPerSecond;
+    private int peakConnectionsInFlight;
+    private long peakHeapUsed;
+    private long peakFileDescriptors = -1;
+
+    /**
+     * What a scanner does after a connection is made
+     * NONE - Close right away
+     * WELCOME - Read the first bytes the server sends, then close
+     * WAIT - Read until the server closes the connection
+     */
+    private enum ReadBehavior {
+        NONE, WELCOME, WAIT
+    }
+
+    private ScanSimulator(final CachedConfigurationValues configuration, final Map<String, String> options) {
+        this.configuration = configuration;
+        scannerCount = Integer.parseInt(options.getOrDefault("scanners", "1000"));
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "256"));
+        connectRate = Integer.parseInt(options.getOrDefault("rate", "0"));
+        readBehavior = ReadBehavior.valueOf(options.getOrDefault("read", "none").toUpperCase());
+        timeout = Integer.parseInt(options.getOrDefault("timeout", "2000"));
+        ports = configuration.getPorts().toArray();
+        portsPerScanner = Math.min(ports.length, Integer.parseInt(options.getOrDefault("ports", "100")));
+        if (scannerCount < 1 || scannerCount > 0xFEFFFE || concurrency < 1 || connectRate < 0 || timeout < 1) {
+            throw new IllegalArgumentException("scanners must be 1-16711678, concurrency and timeout must be 1 or above and rate must be 0 or above");
+        }
+    }
+
+    public static void main(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String argument : args) {
+            final int separator = argument.indexOf('=');
+            if (separator <= 0) {
+                System.err.println("Invalid argument: " + argument + ". Arguments are given as name=value.");
+                System.exit(-1);
+            }
+            options.put(argument.substring(0, separator).toLowerCase(), argument.substring(separator + 1));
+        }
+
+        final CachedConfigurationValues configuration;
+        try {
+            configuration = simulationConfiguration(ConfigurationFileReader.loadConfigurations(options.getOrDefault("config", ConfigurationFileReader.CONFIGURATION_FILE_NAME)));
+        } catch (final ConfigurationExceptions e) {
+            System.exit(-1);
+            return;
+        }
+        if (!ConfigurationFileReader.validSettingsAndSetActive(configuration)) {
+            System.exit(-1);
+        }
+
+        final ScanSimulator simulator;
+        try {
+            simulator = new ScanSimulator(configuration, options);
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Invalid argument. (" + e.getMessage() + ")");
+            System.exit(-1);
+            return;
+        }
+        simulator.run();
+        System.exit(0);
+    }
+
+    /**
+     * Configuration with simulated firewall, nothing written to disk and log messages dropped when the log writer falls behind
+     */
+    private static CachedConfigurationValues simulationConfiguration(final CachedConfigurationValues configuration) {
+        return configuration.toBuilder()
+                .firewallBackend(CachedConfigurationValues.FirewallBackendType.SIMULATED)
+                .banJournal("OFF")
+                .keepFirewallRules(false)
+                .detectionStore("OFF")
+                .metricsPort(-1)
+                .watchSettings(false)
+                .consoleConfigurations(configuration.getConsoleConfigurations().toBuilder()
+                        .logLevel((byte) 0x0)
+                        .logOverflowPolicy(CachedConfigurationValues.LogOverflowPolicy.DROP)
+                        .build())
+                .build();
+    }
+
+    private void run() {
+        if (ports.length == 0) {
+            printMessage((byte) 0x02, "No ports are configured, nothing to scan.");
+            return;
+        }
+        if (configuration.getIpWhiteList().contains(toAddress(FIRST_SCANNER_ADDRESS).getAddress())) {
+            printMessage((byte) 0x01, "Scanner addresses are whitelisted, connections will not be detected.");
+        }
+        final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            final long maxFileDescriptors = ((com.sun.management.UnixOperatingSystemMXBean) operatingSystem).getMaxFileDescriptorCount();
+            if (maxFileDescriptors < ports.length + concurrency * 2L + 256) {
+                printMessage((byte) 0x01, "Open file limit ({}) might be too low for {} ports and {} scanner threads.", maxFileDescriptors, ports.length, concurrency);
+            }
+        }
+
+        final BanListManager banList = new BanListManager(configuration, new SimulatedFirewallBackend(configuration));
+        final DetectionStore detectionStore = new DetectionStore(configuration);
+        final SocketManager socketManager = new SocketManager(configuration, banList, detectionStore);
+        socketManager.initializePorts();
+        if (!socketManager.isInitialized()) {
+            printMessage((byte) 0x02, "Failed to listen on ports, scan simulation is cancelled.");
+            socketManager.destroy();
+            detectionStore.destroy();
+            banList.destroy();
+            return;
+        }
+        final long totalConnections = (long) scannerCount * portsPerScanner;
+        printMessage((byte) 0x00, "Simulating {} scanners on {} of {} ports with {} threads, {} connections in total. Messages are not shown until the scan is done.",
+                scannerCount, portsPerScanner, ports.length, concurrency, totalConnections);
+        waitForLogWriter();
+
+        // Detection messages of every connection would slow down the scan, they are dropped until it is done
+        final PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }));
+
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        final long acceptedAtStart = MetricsRegistry.ACCEPTED_CONNECTIONS.sum();
+        final Thread sampler = new Thread(() -> sample(socketManager), "HoneyPort-ScanSampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final long startTime = System.nanoTime();
+        final CountDownLatch scannersDone = new CountDownLatch(concurrency);
+        for (int index = 0; index < concurrency; index++) {
+            final Thread scanner = new Thread(() -> {
+                try {
+                    scan(totalConnections, startTime);
+                } finally {
+                    scannersDone.countDown();
+                }
+            }, "HoneyPort-Scanner-" + index);
+            scanner.setDaemon(true);
+            scanner.start();
+        }
+        try {
+            scannersDone.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final long scanTime = System.nanoTime() - startTime;
+
+        // Connections might still wait to be accepted and bans are applied in background, wait for both to catch up
+        final long settleEnd = System.currentTimeMillis() + SETTLE_TIME;
+        long lastAcceptedCount;
+        do {
+            lastAcceptedCount = MetricsRegistry.ACCEPTED_CONNECTIONS.sum();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL));
+        } while ((MetricsRegistry.ACCEPTED_CONNECTIONS.sum() != lastAcceptedCount
+                || MetricsRegistry.BANS_SUCCEEDED.sum() + MetricsRegistry.BANS_FAILED.sum() < MetricsRegistry.BANS_ISSUED.sum())
+                && System.currentTimeMillis() < settleEnd);
+        final long acceptedCount = MetricsRegistry.ACCEPTED_CONNECTIONS.sum() - acceptedAtStart;
+        scanning = false;
+        try {
+            sampler.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final String report = createReport(socketManager, scanTime, acceptedCount);
+        socketManager.destroy();
+        detectionStore.destroy();
+        banList.destroy();
+        waitForLogWriter();
+        System.setOut(console);
+        printMessage((byte) 0x00, report);
+    }
+
+    /**
+     * Takes connections until all are made, connection number decides the scanner and port.
+     * Scanners are interleaved, each scanner starts from a different port and goes through ports in order.
+     */
+    private void scan(final long totalConnections, final long startTime) {
+        final long connectInterval = connectRate > 0 ? TimeUnit.SECONDS.toNanos(1) / connectRate : 0;
+        final InetSocketAddress[] targets = new InetSocketAddress[ports.length];
+        final InetAddress targetAddress = InetAddress.getLoopbackAddress();
+        for (int index = 0; index < ports.length; index++) {
+            targets[index] = new InetSocketAddress(targetAddress, ports[index]);
+        }
+        final byte[] buffer = new byte[1024];
+        long connection;
+        while ((connection = nextConnection.getAndIncrement()) < totalConnections) {
+            if (connectInterval > 0) {
+                final long delay = startTime + connection * connectInterval - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+            final int scanner = (int) (connection % scannerCount);
+            final int portIndex = (int) ((connection / scannerCount + (long) scanner * ports.length / scannerCount) % ports.length);
+            try (final Socket socket = new Socket()) {
+                socket.bind(new InetSocketAddress(toAddress(FIRST_SCANNER_ADDRESS + scanner), 0));
+                socket.connect(targets[portIndex], timeout);
+                establishedCount.incrementAndGet();
+                if (readBehavior != ReadBehavior.NONE && !read(socket, buffer)) {
+                    resetCount.incrementAndGet();
+                }
+            } catch (final IOException e) {
+                // Refused, timed out or reset by Honey Port before connect returned
+                failedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Reads as told by read behavior, returns false if the connection was reset
+     */
+    private boolean read(final Socket socket, final byte[] buffer) {
+        try {
+            socket.setSoTimeout(timeout);
+            final InputStream input = socket.getInputStream();
+            int readSize;
+            boolean received = false;
+            while ((readSize = input.read(buffer)) != -1) {
+                if (!received && readSize > 0) {
+                    received = true;
+                    welcomeMessageCount.incrementAndGet();
+                    if (readBehavior == ReadBehavior.WELCOME) {
+                        break;
+                    }
+                }
+            }
+        } catch (final SocketTimeoutException e) {
+            // Server keeps the connection open longer than the timeout, close it from this side
+        } catch (final IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Samples accepts, connection handlers, heap and file descriptors until the scan is done
+     */
+    private void sample(final SocketManager socketManager) {
+        final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        final long[] acceptedHistory = new long[(int) (TimeUnit.SECONDS.toMillis(1) / SAMPLE_INTERVAL)];
+        int sampleCount = 0;
+        while (scanning) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL));
+            // Accepts per second over the last second
+            final long accepted = MetricsRegistry.ACCEPTED_CONNECTIONS.sum();
+            final int slot = sampleCount++ % acceptedHistory.length;
+            if (sampleCount > acceptedHistory.length) {
+                peakAcceptsPerSecond = Math.max(peakAcceptsPerSecond, accepted - acceptedHistory[slot]);
+            }
+            acceptedHistory[slot] = accepted;
+
+            final ConnectionExecutor connectionExecutor = socketManager.getConnectionExecutor();
+            if (connectionExecutor != null) {
+                peakConnectionsInFlight = Math.max(peakConnectionsInFlight, connectionExecutor.getConnectionsInFlight());
+            }
+            peakHeapUsed = Math.max(peakHeapUsed, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            if (operatingSystem instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                peakFileDescriptors = Math.max(peakFileDescriptors, ((com.sun.management.UnixOperatingSystemMXBean) operatingSystem).getOpenFileDescriptorCount());
+            }
+        }
+    }
+
+    private String createReport(final SocketManager socketManager, final long scanTime, final long acceptedCount) {
+        final double scanSeconds = scanTime / 1e9;
+        final StringBuilder banLatency = new StringBuilder();
+        MetricsRegistry.ACCEPT_TO_BAN_LATENCY.writeSummary(banLatency);
+        final StringBuilder report = new StringBuilder("Scan simulation finished in ").append(String.format("%.2f", scanSeconds)).append(" seconds.");
+        report.append("\r\n\t").append("Scanners: ").append(scannerCount).append(" (").append(toAddress(FIRST_SCANNER_ADDRESS).getHostAddress())
+                .append(" - ").append(toAddress(FIRST_SCANNER_ADDRESS + scannerCount - 1).getHostAddress()).append("), ")
+                .append(portsPerScanner).append(" ports each, ").append(concurrency).append(" threads, rate ")
+                .append(connectRate > 0 ? connectRate + "/s" : "unlimited").append(", read ").append(readBehavior.name().toLowerCase());
+        report.append("\r\n\t").append("Connections established: ").append(establishedCount.get()).append(", failed or reset during connect: ").append(failedCount.get())
+                .append(", reset while reading: ").append(resetCount.get()).append(", welcome messages received: ").append(welcomeMessageCount.get());
+        report.append("\r\n\t").append("Accepted by Honey Port: ").append(acceptedCount).append(" (average ")
+                .append(String.format("%.0f", acceptedCount / scanSeconds)).append("/s, peak ").append(peakAcceptsPerSecond).append("/s)");
+        report.append("\r\n\t").append("Detections: ").append(MetricsRegistry.DETECTIONS.sum())
+                .append(", reset as already banned: ").append(socketManager.getBannedConnectionCount())
+                .append(", whitelisted: ").append(socketManager.getWhitelistedConnectionCount());
+        report.append("\r\n\t").append("Bans issued: ").append(MetricsRegistry.BANS_ISSUED.sum()).append(", succeeded: ").append(MetricsRegistry.BANS_SUCCEEDED.sum())
+                .append(", failed: ").append(MetricsRegistry.BANS_FAILED.sum());
+        report.append("\r\n\t").append("Time to ban, ").append(banLatency);
+        report.append("\r\n\t").append("Connection handlers in flight peak: ").append(peakConnectionsInFlight);
+        report.append("\r\n\t").append("Threads peak: ").append(ManagementFactory.getThreadMXBean().getPeakThreadCount())
+                .append(" (including ").append(concurrency).append(" scanner threads)");
+        report.append("\r\n\t").append("Heap used peak: ").append(peakHeapUsed / (1024 * 1024)).append(" MB");
+        report.append("\r\n\t").append("File descriptors peak: ").append(peakFileDescriptors >= 0 ? String.valueOf(peakFileDescriptors) : "Not available")
+                .append(" (including scanner sockets)");
+        return report.toString();
+    }
+
+    /**
+     * Waits until queued log messages are written
+     */
+    private static void waitForLogWriter() {
+        while (LoggingHandler.getQueueDepth() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    private static InetAddress toAddress(final int address) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
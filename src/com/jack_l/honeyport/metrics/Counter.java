@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter that only goes up. Updates are striped over cells, so threads updating it at the same time do not wait for each other.
+ */
+public final class Counter implements Metric {
+    @Getter
+    private final String name;
+    private final String help;
+    private final LongAdder count = new LongAdder();
+
+    Counter(final String name, final String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(final long amount) {
+        count.add(amount);
+    }
+
+    public long sum() {
+        return count.sum();
+    }
+
+    @Override
+    public void writePrometheus(final StringBuilder output) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" counter\n");
+        output.append(name).append(' ').append(count.sum()).append('\n');
+    }
+
+    @Override
+    public void writeSummary(final StringBuilder output) {
+        output.append(help).append(": ").append(count.sum());
+    }
+}
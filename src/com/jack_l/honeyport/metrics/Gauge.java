@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.metrics;
+
+import lombok.Getter;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Current value read from its owner when metrics are collected
+ */
+final class Gauge implements Metric {
+    @Getter
+    private final String name;
+    private final String help;
+    private final LongSupplier value;
+
+    Gauge(final String name, final String help, final LongSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.value = value;
+    }
+
+    @Override
+    public void writePrometheus(final StringBuilder output) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" gauge\n");
+        output.append(name).append(' ').append(value.getAsLong()).append('\n');
+    }
+
+    @Override
+    public void writeSummary(final StringBuilder output) {
+        output.append(help).append(": ").append(value.getAsLong());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets: every power of two is split into 8 buckets,
+ * so a quantile is within 12.5% of the recorded value at any scale. Buckets are striped counters, recording never locks.
+ */
+public final class LatencyHistogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLISECOND = 1e6;
+
+    @Getter
+    private final String name;
+    private final String help;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram(final String name, final String help) {
+        this.name = name;
+        this.help = help;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            buckets[index] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets[bucketOf(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Highest value that falls in a bucket
+     */
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    /**
+     * Values at the quantiles, taken from one snapshot of the buckets
+     */
+    private long[] valuesAt(final double[] quantiles) {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            counts[index] = buckets[index].sum();
+            total += counts[index];
+        }
+        final long[] values = new long[quantiles.length];
+        final long maxValue = max.get();
+        for (int quantile = 0; quantile < quantiles.length; quantile++) {
+            final long rank = Math.max(1, (long) Math.ceil(quantiles[quantile] * total));
+            long seen = 0;
+            for (int index = 0; index < BUCKET_COUNT && total > 0; index++) {
+                seen += counts[index];
+                if (seen >= rank) {
+                    values[quantile] = Math.min(upperBoundOf(index), maxValue);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Written as a summary with quantiles in seconds
+     */
+    @Override
+    public void writePrometheus(final StringBuilder output) {
+        final long[] values = valuesAt(QUANTILES);
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" summary\n");
+        for (int quantile = 0; quantile < QUANTILES.length; quantile++) {
+            output.append(name).append("{quantile=\"").append(QUANTILES[quantile]).append("\"} ").append(values[quantile] / NANOS_PER_SECOND).append('\n');
+        }
+        output.append(name).append("_sum ").append(sum.sum() / NANOS_PER_SECOND).append('\n');
+        output.append(name).append("_count ").append(count.sum()).append('\n');
+    }
+
+    @Override
+    public void writeSummary(final StringBuilder output) {
+        final long[] values = valuesAt(QUANTILES);
+        output.append(help).append(": count ").append(count.sum());
+        for (int quantile = 0; quantile < QUANTILES.length; quantile++) {
+            output.append(", ").append(QUANTILE_LABELS[quantile]).append(' ').append(String.format("%.3f", values[quantile] / NANOS_PER_MILLISECOND)).append("ms");
+        }
+        output.append(", max ").append(String.format("%.3f", max.get() / NANOS_PER_MILLISECOND)).append("ms");
+    }
+}
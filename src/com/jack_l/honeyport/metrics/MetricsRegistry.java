@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.metrics;
+
+import com.jack_l.honeyport.console.LoggingHandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of the whole application. Counters and histograms live as long as the application and are kept across restarts,
+ * gauges are registered by their owners and replaced when the owner is created again.
+ */
+public final class MetricsRegistry {
+    private static final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    // Connections
+    public static final Counter ACCEPTED_CONNECTIONS = register(new Counter("honeyport_accepted_connections_total", "Accepted connections"));
+    public static final PortCounter DETECTIONS = register(new PortCounter("honeyport_detections_total", "Detections"));
+    public static final Counter SHED_CONNECTIONS = register(new Counter("honeyport_shed_connections_total", "Shed connections (closed without detection)"));
+    public static final Counter ACCEPT_ERRORS = register(new Counter("honeyport_accept_errors_total", "Failed accepts on open ports"));
+
+    // Firewall
+    public static final Counter BANS_ISSUED = register(new Counter("honeyport_bans_issued_total", "Bans issued"));
+    public static final Counter BANS_SUCCEEDED = register(new Counter("honeyport_bans_succeeded_total", "Bans succeeded"));
+    public static final Counter BANS_FAILED = register(new Counter("honeyport_bans_failed_total", "Bans failed"));
+    public static final Counter UNBANS_ISSUED = register(new Counter("honeyport_unbans_issued_total", "Unbans issued"));
+    public static final Counter UNBANS_SUCCEEDED = register(new Counter("honeyport_unbans_succeeded_total", "Unbans succeeded"));
+    public static final Counter UNBANS_FAILED = register(new Counter("honeyport_unbans_failed_total", "Unbans failed"));
+    public static final LatencyHistogram FIREWALL_COMMAND_LATENCY = register(new LatencyHistogram("honeyport_firewall_command_seconds", "Firewall command latency per batch"));
+    public static final LatencyHistogram ACCEPT_TO_BAN_LATENCY = register(new LatencyHistogram("honeyport_accept_to_ban_seconds", "Accept to ban latency"));
+
+    static {
+        registerGauge("honeyport_log_queue_depth", "Log messages waiting to be written", LoggingHandler::getQueueDepth);
+        registerGauge("honeyport_threads", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private MetricsRegistry() {
+    }
+
+    private static <T extends Metric> T register(final T metric) {
+        synchronized (metrics) {
+            metrics.put(metric.getName(), metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Registers a gauge, a gauge with the same name is replaced
+     */
+    public static void registerGauge(final String name, final String help, final LongSupplier value) {
+        register(new Gauge(name, help, value));
+    }
+
+    private static List<Metric> getMetrics() {
+        synchronized (metrics) {
+            return new ArrayList<>(metrics.values());
+        }
+    }
+
+    /**
+     * All metrics in Prometheus text exposition format
+     */
+    public static String toPrometheusText() {
+        final StringBuilder output = new StringBuilder();
+        for (final Metric metric : getMetrics()) {
+            metric.writePrometheus(output);
+        }
+        return output.toString();
+    }
+
+    /**
+     * All metrics as readable lines for console
+     */
+    public static String[] toSummary() {
+        final List<Metric> currentMetrics = getMetrics();
+        final String[] lines = new String[currentMetrics.size()];
+        for (int index = 0; index < lines.length; index++) {
+            final StringBuilder line = new StringBuilder();
+            currentMetrics.get(index).writeSummary(line);
+            lines[index] = line.toString();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.metrics;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter with one value per port, counter of a port is created when it is first used
+ */
+public final class PortCounter implements Metric {
+    private static final int MAX_SUMMARY_PORTS = 10;
+    @Getter
+    private final String name;
+    private final String help;
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(65536);
+    private final LongAdder total = new LongAdder();
+
+    PortCounter(final String name, final String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void increment(final int port) {
+        LongAdder count = counts.get(port);
+        if (count == null) {
+            counts.compareAndSet(port, null, new LongAdder());
+            count = counts.get(port);
+        }
+        count.increment();
+        total.increment();
+    }
+
+    /**
+     * Sum of all ports
+     */
+    public long sum() {
+        return total.sum();
+    }
+
+    @Override
+    public void writePrometheus(final StringBuilder output) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" counter\n");
+        for (int port = 0; port < counts.length(); port++) {
+            final LongAdder count = counts.get(port);
+            if (count != null) {
+                output.append(name).append("{port=\"").append(port).append("\"} ").append(count.sum()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Total and ports with highest counts
+     */
+    @Override
+    public void writeSummary(final StringBuilder output) {
+        final List<long[]> portCounts = new ArrayList<>();
+        for (int port = 0; port < counts.length(); port++) {
+            final LongAdder count = counts.get(port);
+            if (count != null) {
+                portCounts.add(new long[]{port, count.sum()});
+            }
+        }
+        portCounts.sort((first, second) -> Long.compare(second[1], first[1]));
+        output.append(help).append(": ").append(total.sum());
+        for (int index = 0; index < portCounts.size() && index < MAX_SUMMARY_PORTS; index++) {
+            output.append(index == 0 ? " (Top ports: " : ", ").append(portCounts.get(index)[0]).append('=').append(portCounts.get(index)[1]);
+        }
+        if (!portCounts.isEmpty()) {
+            output.append(')');
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.sockets;
+
+import javax.security.auth.Destroyable;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Tracks connections per source IP at accept time. The first connection from an IP is handled normally and starts a window,
+ * further connections from the same IP in the window are closed right away and counted.
+ * When the window ends, counted connections are reported as one detection with the ports they were made to.
+ */
+public class ConnectionCoalescer implements Destroyable {
+    private static final int MAX_LISTED_PORTS = 32;
+    private final long windowMillis;
+    private final ConcurrentMap<InetAddress, Burst> bursts = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public ConnectionCoalescer(final long windowMillis) {
+        this.windowMillis = windowMillis;
+        if (windowMillis > 0) {
+            scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "HoneyPort-Coalesce");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns true if the connection should be handled, false if it was counted to the running window of its IP
+     * and should be closed by the caller
+     */
+    public boolean admit(final InetAddress remoteAddress, final int port) {
+        if (scheduler == null) {
+            return true;
+        }
+        while (true) {
+            final Burst burst = bursts.get(remoteAddress);
+            if (burst != null) {
+                if (burst.add(port)) {
+                    coalescedCount.incrementAndGet();
+                    return false;
+                }
+                // Window just ended, start a new one
+                bursts.remove(remoteAddress, burst);
+                continue;
+            }
+            final Burst newBurst = new Burst(port);
+            if (bursts.putIfAbsent(remoteAddress, newBurst) == null) {
+                try {
+                    scheduler.schedule(() -> finish(remoteAddress, newBurst), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (final RejectedExecutionException e) {
+                    // Shutting down
+                    bursts.remove(remoteAddress, newBurst);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void finish(final InetAddress remoteAddress, final Burst burst) {
+        final String summary = burst.close();
+        bursts.remove(remoteAddress, burst);
+        if (summary != null) {
+            printMessage((byte) 0x04, "Connection burst from '{}': {} connections in {}ms to port(s) {}", remoteAddress, burst.getCoalescedCount() + 1, windowMillis, summary);
+        }
+    }
+
+    /**
+     * Number of connections closed because another connection from the same IP was being handled
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Number of IPs with a running window
+     */
+    public int getActiveCount() {
+        return bursts.size();
+    }
+
+    /**
+     * Reports all running windows now
+     */
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            // Delayed finish tasks are dropped on shutdown, finish the windows left in the map directly
+            scheduler.shutdown();
+            for (final Map.Entry<InetAddress, Burst> entry : bursts.entrySet()) {
+                finish(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Connections from one IP in one window
+     */
+    private static class Burst {
+        private final int[] ports = new int[MAX_LISTED_PORTS];
+        private int portCount = 0;
+        private int unlistedPortCount = 0;
+        private int coalescedCount = 0;
+        private boolean closed = false;
+
+        private Burst(final int firstPort) {
+            ports[portCount++] = firstPort;
+        }
+
+        private synchronized boolean add(final int port) {
+            if (closed) {
+                return false;
+            }
+            coalescedCount++;
+            for (int index = 0; index < portCount; index++) {
+                if (ports[index] == port) {
+                    return true;
+                }
+            }
+            if (portCount < ports.length) {
+                ports[portCount++] = port;
+            } else {
+                unlistedPortCount++;
+            }
+            return true;
+        }
+
+        private synchronized int getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * Closes the window, returns list of ports or null if there was only the first connection or it was already closed
+         */
+        private synchronized String close() {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            if (coalescedCount == 0) {
+                return null;
+            }
+            final StringBuilder summary = new StringBuilder();
+            for (int index = 0; index < portCount; index++) {
+                summary.append(index > 0 ? ", " : "").append(ports[index]);
+            }
+            if (unlistedPortCount > 0) {
+                summary.append(" and ").append(unlistedPortCount).append(" more");
+            }
+            return summary.toString();
+        }
+    }
+}
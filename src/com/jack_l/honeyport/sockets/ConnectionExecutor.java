@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.sockets;
+
+import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues.ExecutionMode;
+import com.jack_l.honeyport.configuration.CachedConfigurationValues.OverloadPolicy;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import lombok.Getter;
+
+import javax.security.auth.Destroyable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Runs connection handlers with the execution mode set in configuration.
+ * Number of handlers is bounded, connections over the limit are handled by the overload policy.
+ */
+public class ConnectionExecutor implements Destroyable {
+    // Overloaded connections waiting for detection only, connections over this are shed
+    private static final int DETECTION_ONLY_QUEUE_SIZE = 1024;
+    @Getter
+    private final ExecutionMode activeMode;
+    private final ExecutorService executor;
+    private final OverloadPolicy overloadPolicy;
+    private final ThreadPoolExecutor detectionOnlyExecutor;
+    private final Semaphore connectionPermits;
+    private final int maxConnections;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    public ConnectionExecutor(final CachedConfigurationValues configuration) {
+        overloadPolicy = configuration.getOverloadPolicy();
+        // Detection only is run on its own thread, so an overloaded acceptor does not wait on detection and ban
+        if (overloadPolicy == OverloadPolicy.DETECT) {
+            detectionOnlyExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(DETECTION_ONLY_QUEUE_SIZE), new NamedThreadFactory("HoneyPort-DetectionOnly-"), new ThreadPoolExecutor.AbortPolicy());
+        } else {
+            detectionOnlyExecutor = null;
+        }
+        ExecutorService createdExecutor = null;
+        ExecutionMode mode = configuration.getExecutionMode();
+        if (mode == ExecutionMode.VIRTUAL) {
+            createdExecutor = createVirtualThreadExecutor();
+            if (createdExecutor == null) {
+                printMessage((byte) 0x01, "Virtual threads are not supported by this Java runtime ({}), falling back to platform threads.", System.getProperty("java.version"));
+                mode = ExecutionMode.PLATFORM;
+            }
+        }
+        if (mode == ExecutionMode.POOL) {
+            // Pool is bounded by its queue, abort policy lets us handle rejected connections ourselves
+            createdExecutor = new ThreadPoolExecutor(configuration.getConnectionWorkerCount(), configuration.getConnectionWorkerCount(), 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(configuration.getConnectionQueueSize()), new NamedThreadFactory("HoneyPort-Connection-"), new ThreadPoolExecutor.AbortPolicy());
+            maxConnections = configuration.getConnectionWorkerCount() + configuration.getConnectionQueueSize();
+            connectionPermits = null;
+        } else {
+            // Thread per connection modes are bounded by number of handlers in flight
+            maxConnections = configuration.getMaxConnections();
+            connectionPermits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+        }
+        activeMode = mode;
+        executor = createdExecutor;
+
+        if (activeMode == ExecutionMode.POOL) {
+            printMessage((byte) 0x00, "Connection handlers are running on a pool of {} threads with a queue of {}.", configuration.getConnectionWorkerCount(), configuration.getConnectionQueueSize());
+        } else {
+            printMessage((byte) 0x00, "Connection handlers are running on {} threads{}", activeMode.name().toLowerCase(), (maxConnections > 0 ? ", up to " + maxConnections + " at a time." : "."));
+        }
+        printMessage((byte) 0x10, "Overload policy is set to: {}", overloadPolicy.name().toLowerCase());
+    }
+
+    /**
+     * Virtual threads need Java 21, look them up by reflection so the application still runs on older runtimes
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            printMessage((byte) 0x10, "Unable to create virtual thread executor. (Exception: {})", e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs a connection handler, applies overload policy if there are too many connections
+     */
+    public void execute(final ConnectionHandler connectionHandler) {
+        if (executor instanceof ThreadPoolExecutor) {
+            try {
+                executor.execute(connectionHandler);
+            } catch (final RejectedExecutionException e) {
+                handleOverload(connectionHandler);
+            }
+            return;
+        }
+
+        if (connectionPermits != null && !connectionPermits.tryAcquire()) {
+            handleOverload(connectionHandler);
+            return;
+        }
+        final Runnable task = connectionPermits == null ? connectionHandler : () -> {
+            try {
+                connectionHandler.run();
+            } finally {
+                connectionPermits.release();
+            }
+        };
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                new Thread(task).start();
+            }
+        } catch (final RejectedExecutionException | OutOfMemoryError e) {
+            // OutOfMemoryError is thrown when the system is not able to create more native threads
+            if (connectionPermits != null) {
+                connectionPermits.release();
+            }
+            handleOverload(connectionHandler);
+        }
+    }
+
+    private void handleOverload(final ConnectionHandler connectionHandler) {
+        rejectedCount.incrementAndGet();
+        if (detectionOnlyExecutor != null) {
+            try {
+                detectionOnlyExecutor.execute(new DetectionOnlyTask(connectionHandler));
+                return;
+            } catch (final RejectedExecutionException e) {
+                // Detection only queue is full too, shed
+            }
+        }
+        shedCount.incrementAndGet();
+        MetricsRegistry.SHED_CONNECTIONS.increment();
+        connectionHandler.shed();
+    }
+
+    /**
+     * Number of connection handlers currently running or waiting to run
+     */
+    public int getConnectionsInFlight() {
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return pool.getActiveCount() + pool.getQueue().size();
+        } else if (connectionPermits != null) {
+            return maxConnections - connectionPermits.availablePermits();
+        }
+        return -1;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Number of connections that could not be handled normally due to overload
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Number of rejected connections that were closed without detection
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    @Override
+    public void destroy() {
+        if (detectionOnlyExecutor != null) {
+            // Connections still waiting for detection are only closed
+            for (final Runnable pendingTask : detectionOnlyExecutor.shutdownNow()) {
+                ((DetectionOnlyTask) pendingTask).connectionHandler.closeWithReset();
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                // Does not care about exception
+            }
+        }
+    }
+
+    private static final class DetectionOnlyTask implements Runnable {
+        private final ConnectionHandler connectionHandler;
+
+        private DetectionOnlyTask(final ConnectionHandler connectionHandler) {
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public void run() {
+            connectionHandler.runDetectionOnly();
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(runnable, prefix + counter.incrementAndGet());
+        }
+    }
+}
@@ -19,15 +19,17 @@ package com.jack_l.honeyport.sockets;
 
 import com.jack_l.honeyport.banlist.BanListManager;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
 import lombok.AllArgsConstructor;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
-import static com.jack_l.honeyport.configuration.SharedRuntimeVariables.addDetection;
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
 /**
@@ -38,61 +40,99 @@ public class ConnectionHandler implements Runnable {
 
     private final CachedConfigurationValues configuration;
     private final BanListManager banList;
+    private final DetectionStore detectionStore;
+    private final DisconnectScheduler disconnectScheduler;
     private final Socket acceptedConnection;
     private final int delayDisconnectTime;
     private final int welcomeMessageId;
+    // From System.nanoTime() when the connection was accepted
+    private final long acceptTime;
 
     @Override
     public void run() {
         // Record remote IP
         final InetAddress inetRemoteAddress = ((InetSocketAddress) acceptedConnection.getRemoteSocketAddress()).getAddress();
-        final String remoteIp = inetRemoteAddress.getHostAddress();
-        int RemotePort = ((InetSocketAddress) acceptedConnection.getRemoteSocketAddress()).getPort();
-        final String localIp = acceptedConnection.getInetAddress().getHostAddress();
-        int LocalPort = acceptedConnection.getLocalPort();
+        final int remotePort = ((InetSocketAddress) acceptedConnection.getRemoteSocketAddress()).getPort();
+        boolean parked = false;
 
         try {
             // Add to counter and display message to log
-            addDetection();
-            printMessage((byte) 0x04, "Connection detected from '" + remoteIp + ":" + RemotePort + "' to '" + localIp + ":" + LocalPort + "'");
+            MetricsRegistry.DETECTIONS.increment(acceptedConnection.getLocalPort());
+            printMessage((byte) 0x04, "Connection detected from '{}:{}' to '{}:{}'", inetRemoteAddress, remotePort, acceptedConnection.getLocalAddress(), acceptedConnection.getLocalPort());
+            final boolean sendWelcomeMessage = welcomeMessageId != -1 && welcomeMessageId != configuration.getRandomWelcomeMessageCount();
+            detectionStore.record(inetRemoteAddress, remotePort, acceptedConnection.getLocalPort(), sendWelcomeMessage ? welcomeMessageId : -1, DetectionStore.Action.DETECTED);
 
-            // Respond welcome message if enabled
-            if (welcomeMessageId != -1 && welcomeMessageId != configuration.getRandomWelcomeMessageCount()) {
+            // Respond welcome message if enabled, message is already encoded when configuration is loaded
+            if (sendWelcomeMessage) {
                 try {
-                    if (configuration.getRandomWelcomeMessageType()[welcomeMessageId].equalsIgnoreCase("Base64")) { // Check message is base64 format
-                        printMessage((byte) 0x10, "Sending decoded base64 welcome message to IP: " + remoteIp + "...");
-                        acceptedConnection.getOutputStream().write(Base64.getDecoder().decode(configuration.getRandomWelcomeMessage()[welcomeMessageId]));
-                    } else {
-                        // Using non-ascii encoding might cause some problem here...
-                        // Depends on file encoding, Java charset etc. etc. Use base64 encoding if needed
-                        printMessage((byte) 0x10, "Sending " + configuration.getRandomWelcomeMessageType()[welcomeMessageId] + " welcome message to IP: " + remoteIp + "...");
-                        acceptedConnection.getOutputStream().write(configuration.getRandomWelcomeMessage()[welcomeMessageId].getBytes(configuration.getRandomWelcomeMessageType()[welcomeMessageId]));
+                    printMessage((byte) 0x10, "Sending {} welcome message to IP: {}...", configuration.getRandomWelcomeMessageType()[welcomeMessageId], inetRemoteAddress);
+                    final ByteBuffer welcomeMessage = configuration.getWelcomeMessageBuffers()[welcomeMessageId].duplicate();
+                    final SocketChannel channel = acceptedConnection.getChannel();
+                    while (welcomeMessage.hasRemaining()) {
+                        channel.write(welcomeMessage);
                     }
-                } catch (UnsupportedEncodingException e) {
-                    printMessage((byte) 0x01, "Failed to send welcome message to client. Unknown encoding name: " + configuration.getRandomWelcomeMessageType()[welcomeMessageId] + ".");
                 } catch (Exception e) {
-                    printMessage((byte) 0x01, "Failed to send welcome message to IP: " + remoteIp + ". (Exception: " + e + ")");
+                    printMessage((byte) 0x01, "Failed to send welcome message to IP: {}. (Exception: {})", inetRemoteAddress, e);
                 }
             }
 
             // Add IP to firewall (execute cmd)
-            banList.addBan(inetRemoteAddress);
+            banList.addDetectedBan(inetRemoteAddress, acceptTime);
 
-            // Disconnecting the client
+            // Disconnecting the client, delayed disconnect is handed over to the scheduler
             if (delayDisconnectTime > 1) {
+                printMessage((byte) 0x20, "Wait for {} seconds before closing connection {} (Firewall might still cuts off the connection)...", delayDisconnectTime, inetRemoteAddress);
+                disconnectScheduler.park(acceptedConnection, delayDisconnectTime);
+                parked = true;
+            }
+        } finally {
+            if (!parked) {
                 try {
-                    printMessage((byte) 0x20, "Wait for " + delayDisconnectTime + " seconds before closing connection " + remoteIp + " (Firewall might still cuts off the connection)...");
-                    Thread.sleep(delayDisconnectTime * 1000);
+                    acceptedConnection.close();
                 } catch (Exception e) {
-                    printMessage((byte) 0x01, "Delay timer to close connection failed on remote IP: " + remoteIp + ". (Exception " + e + ")");
+                    printMessage((byte) 0x01, "Failed to close remote connection for IP: {}. (Exception: {})", inetRemoteAddress, e);
                 }
             }
+        }
+    }
+
+    /**
+     * Used when connection handlers are overloaded, records detection and ban without welcome message or delay
+     */
+    public void runDetectionOnly() {
+        final InetAddress inetRemoteAddress = ((InetSocketAddress) acceptedConnection.getRemoteSocketAddress()).getAddress();
+        try {
+            MetricsRegistry.DETECTIONS.increment(acceptedConnection.getLocalPort());
+            printMessage((byte) 0x04, "Connection detected from '{}:{}' to '{}:{}' (Overloaded, detection only)", inetRemoteAddress, acceptedConnection.getPort(), acceptedConnection.getLocalAddress(), acceptedConnection.getLocalPort());
+            detectionStore.record(inetRemoteAddress, acceptedConnection.getPort(), acceptedConnection.getLocalPort(), -1, DetectionStore.Action.DETECTION_ONLY);
+            banList.addDetectedBan(inetRemoteAddress, acceptTime);
         } finally {
-            try {
-                acceptedConnection.close();
-            } catch (Exception e) {
-                printMessage((byte) 0x01, "Failed to close remote connection for IP: " + remoteIp + ". (Exception: " + e + ")");
-            }
+            closeWithReset();
+        }
+    }
+
+    /**
+     * Used when connection handlers are overloaded, connection is reset without detection or ban.
+     * Called on the acceptor thread, so the record is written by the detection store writer thread.
+     */
+    public void shed() {
+        detectionStore.submit(acceptedConnection.getInetAddress(), acceptedConnection.getPort(), acceptedConnection.getLocalPort(), -1, DetectionStore.Action.SHED);
+        closeWithReset();
+    }
+
+    /**
+     * Closes the connection with RST instead of FIN, no TIME_WAIT is left on our side
+     */
+    public void closeWithReset() {
+        try {
+            acceptedConnection.setSoLinger(true, 0);
+        } catch (final IOException e) {
+            // Connection might be reset by client already, close anyway
+        }
+        try {
+            acceptedConnection.close();
+        } catch (final IOException e) {
+            printMessage((byte) 0x20, "Failed to reset remote connection. (Exception: {})", e);
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.sockets;
+
+import javax.security.auth.Destroyable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * Keeps accepted connections open until their disconnect time, so connection handlers do not have to sleep.
+ * All parked connections share one timer thread.
+ */
+public class DisconnectScheduler implements Destroyable {
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Set<Socket> parkedSockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger parkedConnections = new AtomicInteger();
+
+    public DisconnectScheduler() {
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "HoneyPort-Disconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Takes ownership of the connection and closes it after the delay, the caller must not close it
+     */
+    public void park(final Socket connection, final int delaySeconds) {
+        parkedSockets.add(connection);
+        parkedConnections.incrementAndGet();
+        try {
+            scheduler.schedule(() -> close(connection), delaySeconds, TimeUnit.SECONDS);
+        } catch (final RejectedExecutionException e) {
+            // Scheduler is shutting down, close now
+            close(connection);
+        }
+    }
+
+    private void close(final Socket connection) {
+        // Whoever removes the connection closes it, so a close task racing destroy() does not close it twice
+        if (!parkedSockets.remove(connection)) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (final IOException e) {
+            printMessage((byte) 0x01, "Failed to close remote connection for IP: {}. (Exception: {})", connection.getInetAddress(), e);
+        } finally {
+            parkedConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of connections waiting to be disconnected
+     */
+    public int getParkedConnectionCount() {
+        return parkedConnections.get();
+    }
+
+    /**
+     * Closes all parked connections immediately
+     */
+    @Override
+    public void destroy() {
+        // Cancelled close tasks are dropped by the scheduler, so close what they would have closed from the tracked set
+        scheduler.shutdown();
+        for (final Socket connection : parkedSockets) {
+            close(connection);
+        }
+    }
+}
@@ -19,37 +19,69 @@ package com.jack_l.honeyport.sockets;
 
 import com.jack_l.honeyport.banlist.BanListManager;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 
 import java.io.IOException;
-import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
 /**
- * Handles port listening
+ * Handles port listening, accepting is done by the selector acceptors the shards of this listener are registered to.
+ * A sharded port has several sockets bound with SO_REUSEPORT, the kernel spreads connections between them.
  */
-public class ListenerHandler implements Runnable {
-    private final CachedConfigurationValues configuration;
+public class ListenerHandler {
+    // Only in Java 9 and above, looked up at runtime so Java 8 can still run without shards
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+    private static final long ACCEPT_ERROR_LOG_INTERVAL_MILLIS = 10_000;
+
     private final SocketManager socketManager;
     private final BanListManager banList;
-    private int port;
-    private int delayDisconnectTime = -1;
-    private int rndWelcomeMsgID = -1;
-    private ServerSocket socket;
-    private boolean shutdown = false;
-
-    public ListenerHandler(final CachedConfigurationValues configuration, final SocketManager socketManager, final BanListManager banList, final int port) {
-        this.configuration = configuration;
+    private final DetectionStore detectionStore;
+    private final ConnectionExecutor connectionExecutor;
+    private final DisconnectScheduler disconnectScheduler;
+    private final ConnectionCoalescer connectionCoalescer;
+    @Getter
+    private final int port;
+    // Replaced as a whole when configuration is reloaded, so a connection never mixes old and new settings
+    private volatile PortSettings settings;
+    @Getter(AccessLevel.PACKAGE)
+    private volatile Shard[] shards;
+    private volatile boolean shutdown = false;
+    private final AtomicLong acceptErrorCount = new AtomicLong();
+    private final AtomicLong nextAcceptErrorLogTime = new AtomicLong();
+
+    public ListenerHandler(final CachedConfigurationValues configuration, final SocketManager socketManager, final BanListManager banList, final DetectionStore detectionStore, final ConnectionExecutor connectionExecutor, final DisconnectScheduler disconnectScheduler, final ConnectionCoalescer connectionCoalescer, final int port) {
         this.socketManager = socketManager;
         this.banList = banList;
-        printMessage((byte) 0x20, "Initializing port " + port + "...");
+        this.detectionStore = detectionStore;
+        this.connectionExecutor = connectionExecutor;
+        this.disconnectScheduler = disconnectScheduler;
+        this.connectionCoalescer = connectionCoalescer;
+        printMessage((byte) 0x20, "Initializing port {}...", port);
         this.port = port;
+        settings = createPortSettings(configuration);
+    }
 
+    /**
+     * Picks random delay time and welcome message of this port
+     */
+    private static PortSettings createPortSettings(final CachedConfigurationValues configuration) {
         //Random Number Generator
         final Random randomNumberGenerator = new Random();
+        int delayDisconnectTime = -1;
+        int rndWelcomeMsgID = -1;
 
         // Generate random delay time
         if (configuration.getFakeServerRandomDelayDisconnectingTime() > 0) {
@@ -60,43 +92,216 @@ public class ListenerHandler implements Runnable {
         if (configuration.getRandomWelcomeMessageCount() > 0) {
             rndWelcomeMsgID = randomNumberGenerator.nextInt(configuration.getRandomWelcomeMessageCount() + 1);
         }
+        return new PortSettings(configuration, delayDisconnectTime, rndWelcomeMsgID);
     }
 
-    //Create port listener
-    @Override
-    public void run() {
-        // Start listening
-        try (final ServerSocket listenerSocket = new ServerSocket(port)) {
-            socket = listenerSocket;
-            printMessage((byte) 0x20, "Listening on port " + port + ". Param: WelcomeMsgCount=" + configuration.getRandomWelcomeMessageCount() + ", WelcomeMsgID=" + rndWelcomeMsgID + ", DelayDisconnectTimer=" + delayDisconnectTime + ".");
-            while (!shutdown) {
-                final Socket acceptedConnection = listenerSocket.accept();
-                new Thread(new ConnectionHandler(configuration, banList, acceptedConnection, delayDisconnectTime, rndWelcomeMsgID)).start();
+    /**
+     * Uses a reloaded configuration for next connections. Delay time and welcome message are picked again only if fake server settings changed.
+     */
+    void applyConfiguration(final CachedConfigurationValues newConfiguration, final boolean fakeServerChanged) {
+        final PortSettings currentSettings = settings;
+        settings = fakeServerChanged ? createPortSettings(newConfiguration) : new PortSettings(newConfiguration, currentSettings.delayDisconnectTime, currentSettings.welcomeMessageId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Binds the port, must be called before registering the shards to acceptors.
+     * Port is bound with one socket if SO_REUSEPORT is not supported.
+     */
+    public void bind() throws IOException {
+        final PortSettings currentSettings = settings;
+        final int backlog = currentSettings.configuration.getListenBacklog(port);
+        int shardCount = currentSettings.configuration.getShardCount(port);
+        final Shard[] boundShards = new Shard[shardCount];
+        try {
+            for (int index = 0; index < shardCount; index++) {
+                final ServerSocketChannel listenerChannel = ServerSocketChannel.open();
+                boundShards[index] = new Shard(index, listenerChannel);
+                if (shardCount > 1) {
+                    if (SO_REUSEPORT == null || !listenerChannel.supportedOptions().contains(SO_REUSEPORT)) {
+                        printMessage((byte) 0x01, "Port {} is listened with one socket instead of {} shards. SO_REUSEPORT is not supported.", port, shardCount);
+                        shardCount = 1;
+                    } else {
+                        listenerChannel.setOption(SO_REUSEPORT, true);
+                    }
+                }
+                listenerChannel.bind(new InetSocketAddress(port), backlog);
+                listenerChannel.configureBlocking(false);
             }
-        } catch (final BindException e) {
-            printMessage((byte) 0x01, "Failed to bind on port " + port + ". Thread shutting down.");
-            socketManager.removePortFromSocketList(port, e);
-        } catch (final Exception e) {
-            if (!shutdown) {
-                printMessage((byte) 0x01, "Port:" + port + " is shutting down due to error. (Exception:" + e + ")");
-                socketManager.removePortFromSocketList(port, e);
-            } else {
-                printMessage((byte) 0x20, "Shutdown command detected. Closing port: " + port);
+        } catch (final IOException e) {
+            closeChannels(boundShards);
+            throw e;
+        }
+        shards = shardCount < boundShards.length ? new Shard[]{boundShards[0]} : boundShards;
+        printMessage((byte) 0x20, "Listening on port {}. Param: Shards={}, Backlog={}, WelcomeMsgCount={}, WelcomeMsgID={}, DelayDisconnectTimer={}.", port, shards.length, backlog, currentSettings.configuration.getRandomWelcomeMessageCount(), currentSettings.welcomeMessageId, currentSettings.delayDisconnectTime);
+    }
+
+    private static void closeChannels(final Shard[] shardsToClose) throws IOException {
+        IOException closeException = null;
+        for (final Shard shard : shardsToClose) {
+            if (shard != null) {
+                try {
+                    shard.channel.close();
+                } catch (final IOException e) {
+                    closeException = e;
+                }
             }
         }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    /**
+     * Connections accepted by each shard
+     */
+    public long[] getShardAcceptCounts() {
+        final Shard[] currentShards = shards;
+        if (currentShards == null) {
+            return new long[0];
+        }
+        final long[] acceptCounts = new long[currentShards.length];
+        for (int index = 0; index < currentShards.length; index++) {
+            acceptCounts[index] = currentShards[index].acceptCount.get();
+        }
+        return acceptCounts;
+    }
+
+    /**
+     * Called by the acceptor for every accepted connection
+     */
+    protected void handleAcceptedConnection(final SocketChannel acceptedConnection) {
+        final long acceptTime = System.nanoTime();
+        MetricsRegistry.ACCEPTED_CONNECTIONS.increment();
+
+        // Whitelisted IPs are closed right away, no detection, ban or welcome message
+        final PortSettings currentSettings = settings;
+        final InetAddress remoteAddress = acceptedConnection.socket().getInetAddress();
+        if (currentSettings.configuration.getIpWhiteList().contains(remoteAddress)) {
+            socketManager.recordWhitelistedConnection();
+            printMessage((byte) 0x20, "Connection from whitelisted IP '{}' to port {} is closed.", remoteAddress, port);
+            try {
+                acceptedConnection.close();
+            } catch (final IOException e) {
+                printMessage((byte) 0x20, "Failed to close whitelisted connection. (Exception: {})", e);
+            }
+            return;
+        }
+
+        // IPs already banned are reset right away, firewall rule might not be in effect yet
+        if (banList.isBanned(remoteAddress)) {
+            socketManager.recordBannedConnection();
+            detectionStore.submit(remoteAddress, acceptedConnection.socket().getPort(), port, -1, DetectionStore.Action.BANNED);
+            closeWithReset(acceptedConnection);
+            return;
+        }
+
+        // Only the first connection of a burst from one IP is handled, others are closed with RST and counted
+        if (!connectionCoalescer.admit(remoteAddress, port)) {
+            MetricsRegistry.DETECTIONS.increment(port);
+            detectionStore.submit(remoteAddress, acceptedConnection.socket().getPort(), port, -1, DetectionStore.Action.COALESCED);
+            closeWithReset(acceptedConnection);
+            return;
+        }
+        connectionExecutor.execute(new ConnectionHandler(currentSettings.configuration, banList, detectionStore, disconnectScheduler, acceptedConnection.socket(), currentSettings.delayDisconnectTime, currentSettings.welcomeMessageId, acceptTime));
+    }
+
+    /**
+     * Closes with RST instead of FIN, so no TIME_WAIT is left on our side
+     */
+    private static void closeWithReset(final SocketChannel acceptedConnection) {
+        try {
+            acceptedConnection.socket().setSoLinger(true, 0);
+        } catch (final IOException e) {
+            // Connection might be reset by client already, close anyway
+        }
+        try {
+            acceptedConnection.close();
+        } catch (final IOException e) {
+            printMessage((byte) 0x20, "Failed to reset remote connection. (Exception: {})", e);
+        }
+    }
+
+    /**
+     * Called by the acceptor when accept failed but the port is still open, the acceptor retries after a short pause.
+     * Logged at most once every 10 seconds, as an error usually repeats for every waiting connection.
+     */
+    protected void acceptError(final IOException e) {
+        MetricsRegistry.ACCEPT_ERRORS.increment();
+        final long errorCount = acceptErrorCount.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        final long nextLogTime = nextAcceptErrorLogTime.get();
+        if (now >= nextLogTime && nextAcceptErrorLogTime.compareAndSet(nextLogTime, now + ACCEPT_ERROR_LOG_INTERVAL_MILLIS)) {
+            printMessage((byte) 0x01, "Failed to accept connection on port {}, retrying. {} failed accept(s) so far. (Exception: {})", port, errorCount, e);
+        }
+    }
+
+    /**
+     * Called by the acceptor when accept failed because the socket of this port was closed
+     */
+    protected void acceptFailed(final IOException e) {
+        if (!shutdown) {
+            printMessage((byte) 0x01, "Port:{} is shutting down due to error. (Exception:{})", port, e);
+            shutdownListener();
+            socketManager.removePortFromSocketList(port, e);
+        }
     }
 
     public void shutdownListener() {
-        if (socket != null) {
+        if (shards != null) {
             try {
                 shutdown = true;
-                socket.close();
-                socket = null;
+                closeChannels(shards);
+                printMessage((byte) 0x20, "Shutdown command detected. Closing port: {}", port);
             } catch (IOException e) {
-                printMessage((byte) 0x01, "Failed to shutdown port: " + port + ". (Exception:" + e + ")");
+                printMessage((byte) 0x01, "Failed to shutdown port: {}. (Exception:{})", port, e);
             }
         } else {
-            printMessage((byte) 0x01, "Failed to shutdown port: " + port + ". (Socket is not initialized)");
+            printMessage((byte) 0x01, "Failed to shutdown port: {}. (Socket is not initialized)", port);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * One bound socket of this port, registered to an acceptor as the key attachment
+     */
+    final class Shard {
+        @Getter
+        private final int index;
+        @Getter
+        private final ServerSocketChannel channel;
+        private final AtomicLong acceptCount = new AtomicLong();
+
+        private Shard(final int index, final ServerSocketChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+
+        void handleAcceptedConnection(final SocketChannel acceptedConnection) {
+            acceptCount.incrementAndGet();
+            ListenerHandler.this.handleAcceptedConnection(acceptedConnection);
+        }
+
+        void acceptError(final IOException e) {
+            ListenerHandler.this.acceptError(e);
+        }
+
+        void acceptFailed(final IOException e) {
+            ListenerHandler.this.acceptFailed(e);
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class PortSettings {
+        private final CachedConfigurationValues configuration;
+        private final int delayDisconnectTime;
+        private final int welcomeMessageId;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 Jack L (http://jack-l.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jack_l.honeyport.sockets;
+
+import lombok.AllArgsConstructor;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
+
+/**
+ * One selector loop that accepts connections for many listener sockets.
+ * Listeners are registered from other threads, the registration itself is done by the loop thread.
+ */
+public class SelectorAcceptor implements Runnable {
+    // Pause of a listener after a failed accept, so an error left in the accept queue does not spin the loop
+    private static final long ACCEPT_BACKOFF_MILLIS = 10;
+    private final int acceptorId;
+    private final Selector selector;
+    private final Queue<PendingRegistration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    // Keys paused after a failed accept and when to resume them, only used by the loop thread
+    private final Map<SelectionKey, Long> pausedKeys = new HashMap<>();
+    private volatile boolean shutdown = false;
+
+    public SelectorAcceptor(final int acceptorId) throws IOException {
+        this.acceptorId = acceptorId;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "HoneyPort-Acceptor-" + acceptorId);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a bound listener shard to be registered by the selector thread, callback is run once it accepts connections
+     */
+    public void register(final ListenerHandler.Shard shard, final Runnable registeredCallback) {
+        pendingRegistrations.add(new PendingRegistration(shard, registeredCallback));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        printMessage((byte) 0x10, "Acceptor {} started.", acceptorId);
+        try {
+            while (!shutdown) {
+                if (pausedKeys.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(ACCEPT_BACKOFF_MILLIS);
+                }
+                registerPendingListeners();
+                resumePausedKeys();
+
+                final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    final SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    final ListenerHandler.Shard shard = (ListenerHandler.Shard) key.attachment();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            acceptAll(key, shard);
+                        }
+                    } catch (final CancelledKeyException e) {
+                        // Listener was closed while we are processing it, ignore
+                    }
+                }
+            }
+        } catch (final ClosedSelectorException e) {
+            // Closed by shutdown()
+        } catch (final Exception e) {
+            printMessage((byte) 0x02, "Acceptor {} failed, listeners on this acceptor will no longer accept connections. (Exception: {})", acceptorId, e);
+        }
+        printMessage((byte) 0x10, "Acceptor {} is shutting down.", acceptorId);
+    }
+
+    private void registerPendingListeners() {
+        PendingRegistration registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            try {
+                registration.shard.getChannel().register(selector, SelectionKey.OP_ACCEPT, registration.shard);
+            } catch (final ClosedChannelException e) {
+                // Port was closed before it is registered, nothing to do
+            }
+            registration.registeredCallback.run();
+        }
+    }
+
+    /**
+     * Drains the accept queue of a listener socket.
+     * Failed accepts on an open socket (out of file descriptors, connection aborted) pause the listener briefly,
+     * the listener is closed only if its socket was closed.
+     */
+    private void acceptAll(final SelectionKey key, final ListenerHandler.Shard shard) {
+        final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+        try {
+            SocketChannel acceptedConnection;
+            while ((acceptedConnection = channel.accept()) != null) {
+                shard.handleAcceptedConnection(acceptedConnection);
+            }
+        } catch (final IOException e) {
+            if (!channel.isOpen()) {
+                shard.acceptFailed(e);
+                return;
+            }
+            key.interestOps(0);
+            pausedKeys.put(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_BACKOFF_MILLIS));
+            shard.acceptError(e);
+        }
+    }
+
+    /**
+     * Accepts again on listeners whose pause is over
+     */
+    private void resumePausedKeys() {
+        if (pausedKeys.isEmpty()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<SelectionKey, Long>> pausedEntries = pausedKeys.entrySet().iterator();
+        while (pausedEntries.hasNext()) {
+            final Map.Entry<SelectionKey, Long> pausedEntry = pausedEntries.next();
+            if (now - pausedEntry.getValue() < 0) {
+                continue;
+            }
+            pausedEntries.remove();
+            try {
+                if (pausedEntry.getKey().isValid()) {
+                    pausedEntry.getKey().interestOps(SelectionKey.OP_ACCEPT);
+                }
+            } catch (final CancelledKeyException e) {
+                // Listener was closed while paused, ignore
+            }
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            printMessage((byte) 0x01, "Failed to close acceptor {}. (Exception: {})", acceptorId, e);
+        }
+    }
+
+    /**
+     * Waits for the selector thread to exit after shutdown, returns false if it is still running after the timeout
+     */
+    public boolean awaitTermination(final long timeoutMillis) throws InterruptedException {
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    @AllArgsConstructor
+    private static final class PendingRegistration {
+        private final ListenerHandler.Shard shard;
+        private final Runnable registeredCallback;
+    }
+}
@@ -19,12 +19,28 @@ package com.jack_l.honeyport.sockets;
 
 import com.jack_l.honeyport.banlist.BanListManager;
 import com.jack_l.honeyport.configuration.CachedConfigurationValues;
-import lombok.AllArgsConstructor;
+import com.jack_l.honeyport.configuration.ConfigurationDiff;
+import com.jack_l.honeyport.configuration.PortPlan;
+import com.jack_l.honeyport.detections.DetectionStore;
+import com.jack_l.honeyport.metrics.MetricsRegistry;
 import lombok.Getter;
 
 import javax.security.auth.Destroyable;
-import java.util.LinkedHashMap;
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
 
@@ -32,103 +48,278 @@ import static com.jack_l.honeyport.console.ConsoleHandler.printMessage;
  * Socket manager - Manages socket initialization/shutdown(close)
  */
 public class SocketManager implements Destroyable {
-    private final CachedConfigurationValues configuration;
+    // Ports bound by one binder thread at a time
+    private static final int BIND_BATCH_SIZE = 1024;
+    private static final int MAX_BINDER_THREADS = 8;
+    // Longest wait for bound ports to be registered to acceptors, and for acceptors to exit on shutdown
+    private static final long READY_TIMEOUT = 30000;
+    // Failed ports listed per reason in the startup report
+    private static final int REPORTED_FAILED_PORTS = 20;
+    private volatile CachedConfigurationValues configuration;
     private final BanListManager banList;
-    private int totalPortsCountWithoutExcludedPorts = 0;
-    private Map<Integer, ThreadAndHandler> sockets = new LinkedHashMap<>();
-
-    @AllArgsConstructor
+    private final DetectionStore detectionStore;
+    // Listeners indexed by port
+    private final AtomicReferenceArray<ListenerHandler> listeners = new AtomicReferenceArray<>(PortPlan.MAX_PORT + 1);
+    private final AtomicInteger listenerCount = new AtomicInteger();
+    private SelectorAcceptor[] acceptors = new SelectorAcceptor[0];
     @Getter
-    private static class ThreadAndHandler {
-        private final ListenerHandler runnable;
-        private final Thread thread;
-    }
+    private ConnectionExecutor connectionExecutor;
+    @Getter
+    private DisconnectScheduler disconnectScheduler;
+    @Getter
+    private ConnectionCoalescer connectionCoalescer;
+    private final AtomicLong whitelistedConnectionCount = new AtomicLong();
+    private final AtomicLong bannedConnectionCount = new AtomicLong();
+    // Milliseconds from start of initialization until every port accepted connections or failed, -1 before that
+    private volatile long coverageTime = -1;
+    private volatile int failedPortCount = 0;
 
-    public SocketManager(final CachedConfigurationValues configuration, final BanListManager banList) {
+    public SocketManager(final CachedConfigurationValues configuration, final BanListManager banList, final DetectionStore detectionStore) {
         this.configuration = configuration;
         this.banList = banList;
+        this.detectionStore = detectionStore;
+    }
+
+    private void registerGauges(final ConnectionExecutor executor, final DisconnectScheduler scheduler) {
+        MetricsRegistry.registerGauge("honeyport_listening_sockets", "Listening sockets", listenerCount::get);
+        MetricsRegistry.registerGauge("honeyport_connections_in_flight", "Connection handlers running or waiting to run", executor::getConnectionsInFlight);
+        MetricsRegistry.registerGauge("honeyport_parked_connections", "Connections waiting to be disconnected", scheduler::getParkedConnectionCount);
+        MetricsRegistry.registerGauge("honeyport_port_coverage_milliseconds", "Time until every port accepted connections or failed at start", () -> coverageTime);
+        MetricsRegistry.registerGauge("honeyport_failed_ports", "Ports that failed to bind at start", () -> failedPortCount);
     }
 
     /**
-     * Must initialize ports before they are active
+     * Must initialize ports before they are active. Returns once every port accepts connections or failed to bind.
      */
     public void initializePorts() {
+        final long startTime = System.nanoTime();
         printMessage((byte) 0x00, "Initializing listening ports...");
 
-        // Check port range specification
-        if (configuration.getPortRangeStart() == -1 || configuration.getPortRangeEnd() - configuration.getPortRangeStart() + 1 < 1) {
-            printMessage((byte) 0x00, "Port range specification is disabled.");
+        // Check if there is some task we need to do
+        final PortPlan ports = configuration.getPorts();
+        if (ports.isEmpty()) {
+            printMessage((byte) 0x02, "No ports to listen on, port range, specific ports and port list are disabled or excluded. Nothing to do.");
+            return;
+        }
+
+        printMessage((byte) 0x10, "Total ports calculated (excluding ignored ports): {}. Ports: {}", ports.size(), ports);
+
+        // Start connection executor and acceptors, all ports are multiplexed on acceptors
+        connectionExecutor = new ConnectionExecutor(configuration);
+        disconnectScheduler = new DisconnectScheduler();
+        connectionCoalescer = new ConnectionCoalescer(configuration.getCoalesceWindow());
+        registerGauges(connectionExecutor, disconnectScheduler);
+        if (!initializeAcceptors()) {
+            return;
+        }
+
+        // Create listening ports for range specification and specific ports, excluded ports are left out
+        final int failedCount = openPorts(ports);
+        failedPortCount = failedCount;
+        coverageTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        if (failedCount == 0) {
+            printMessage((byte) 0x00, "Listener ports successfully initialized in {} ms. Total {} ports.", coverageTime, listenerCount.get());
         } else {
-            totalPortsCountWithoutExcludedPorts += configuration.getPortRangeEnd() - configuration.getPortRangeStart() + 1;
+            printMessage((byte) 0x01, "Listener ports initialized in {} ms. Total {} ports, {} ports failed.", coverageTime, listenerCount.get(), failedCount);
+        }
+    }
+
+    /**
+     * Creates selector acceptors, count is taken from configuration or number of cores if not set
+     */
+    private boolean initializeAcceptors() {
+        final int acceptorCount = configuration.getAcceptorThreadCount() > 0 ? configuration.getAcceptorThreadCount() : Runtime.getRuntime().availableProcessors();
+        acceptors = new SelectorAcceptor[acceptorCount];
+        try {
+            for (int index = 0; index < acceptorCount; index++) {
+                acceptors[index] = new SelectorAcceptor(index);
+                acceptors[index].start();
+            }
+        } catch (final IOException e) {
+            printMessage((byte) 0x02, "Failed to initialize acceptors. (Exception: {})", e);
+            shutdownAcceptors();
+            return false;
         }
+        printMessage((byte) 0x10, "Initialized {} acceptor(s).", acceptorCount);
+        return true;
+    }
+
+    /**
+     * Binds ports in parallel batches and hands them over to the acceptors.
+     * Returns once every port accepts connections or failed, failed ports are reported by reason. Returns number of failed ports.
+     */
+    private int openPorts(final PortPlan ports) {
+        final int[] portList = ports.toArray();
+        final CountDownLatch readyLatch = new CountDownLatch(portList.length);
+        final Map<String, List<Integer>> failedPorts = new ConcurrentHashMap<>();
+        final int batchCount = (portList.length + BIND_BATCH_SIZE - 1) / BIND_BATCH_SIZE;
+        final int binderCount = Math.min(batchCount, Math.min(MAX_BINDER_THREADS, Runtime.getRuntime().availableProcessors()));
 
-        // Check specified ports
-        if (configuration.getSpecificPorts().length <= 0) {
-            printMessage((byte) 0x00, "Specific ports are disabled.");
+        if (binderCount <= 1) {
+            openPorts(portList, 0, portList.length, readyLatch, failedPorts);
         } else {
-            totalPortsCountWithoutExcludedPorts += configuration.getSpecificPorts().length;
+            final AtomicInteger binderId = new AtomicInteger();
+            final ExecutorService binders = Executors.newFixedThreadPool(binderCount, runnable -> {
+                final Thread thread = new Thread(runnable, "HoneyPort-PortBinder-" + binderId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int batch = 0; batch < batchCount; batch++) {
+                final int from = batch * BIND_BATCH_SIZE;
+                final int to = Math.min(portList.length, from + BIND_BATCH_SIZE);
+                binders.execute(() -> openPorts(portList, from, to, readyLatch, failedPorts));
+            }
+            binders.shutdown();
         }
 
-        // Check for excluded ports
-        if (configuration.getExcludedPorts().size() <= 0) {
-            printMessage((byte) 0x00, "Excluded ports are disabled.");
+        try {
+            if (!readyLatch.await(READY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                printMessage((byte) 0x01, "{} ports are still not accepting connections after {} ms.", readyLatch.getCount(), READY_TIMEOUT);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        // Check if there is some task we need to do
-        if (totalPortsCountWithoutExcludedPorts == 0) {
-            printMessage((byte) 0x02, "All methods are disabled, nothing to do.");
-            return;
+        int failedCount = 0;
+        for (final Map.Entry<String, List<Integer>> failure : failedPorts.entrySet()) {
+            final List<Integer> failedPortList = new ArrayList<>(failure.getValue());
+            Collections.sort(failedPortList);
+            failedCount += failedPortList.size();
+            final String listedPorts = failedPortList.subList(0, Math.min(REPORTED_FAILED_PORTS, failedPortList.size())).toString();
+            printMessage((byte) 0x01, "Failed to open {} ports. ({}) Ports: {}", failedPortList.size(), failure.getKey(),
+                    failedPortList.size() > REPORTED_FAILED_PORTS ? listedPorts + " and " + (failedPortList.size() - REPORTED_FAILED_PORTS) + " more" : listedPorts);
         }
+        return failedCount;
+    }
 
-        printMessage((byte) 0x10, "Total ports calculated (excluding ignored ports): " + totalPortsCountWithoutExcludedPorts);
+    private void openPorts(final int[] portList, final int from, final int to, final CountDownLatch readyLatch, final Map<String, List<Integer>> failedPorts) {
+        for (int index = from; index < to; index++) {
+            final String failure = openPort(portList[index], readyLatch);
+            if (failure != null) {
+                failedPorts.computeIfAbsent(failure, reason -> Collections.synchronizedList(new ArrayList<>())).add(portList[index]);
+                readyLatch.countDown();
+            }
+        }
+    }
 
-        // Create listening ports for range specification
-        if (configuration.getPortRangeStart() != -1 && configuration.getPortRangeEnd() - configuration.getPortRangeStart() + 1 > 0) {
-            for (int count = configuration.getPortRangeStart(); count <= configuration.getPortRangeEnd(); count++) {
-                boolean excluded = false;
-                if (configuration.getExcludedPorts().contains(count)) {
-                    excluded = true;
+    /**
+     * Binds a port and hands its shards over to the acceptors, latch is counted down once it accepts connections.
+     * Returns reason if the port failed to bind, otherwise null.
+     */
+    private String openPort(final int port, final CountDownLatch readyLatch) {
+        final ListenerHandler handler = new ListenerHandler(configuration, this, banList, detectionStore, connectionExecutor, disconnectScheduler, connectionCoalescer, port);
+        try {
+            handler.bind();
+        } catch (final BindException e) {
+            printMessage((byte) 0x10, "Failed to bind on port {}. (Exception: {})", port, e);
+            return "Bind failed: " + e.getMessage();
+        } catch (final IOException e) {
+            printMessage((byte) 0x10, "Failed to open port {}. (Exception: {})", port, e);
+            return e.toString();
+        }
+        putListener(port, handler);
+        // Shards of a port go to different acceptors, port is ready once all of them are registered
+        final ListenerHandler.Shard[] shards = handler.getShards();
+        final AtomicInteger pendingShards = new AtomicInteger(shards.length);
+        for (final ListenerHandler.Shard shard : shards) {
+            acceptors[(port + shard.getIndex()) % acceptors.length].register(shard, () -> {
+                if (pendingShards.decrementAndGet() == 0) {
+                    readyLatch.countDown();
                 }
+            });
+        }
+        return null;
+    }
 
-                // Added to thread if not excluded
-                if (!excluded) {
-                    final ListenerHandler handler = new ListenerHandler(configuration, this, banList, count);
-                    final Thread thread = new Thread(handler);
-                    final ThreadAndHandler threadAndHandler = new ThreadAndHandler(handler, thread);
-                    sockets.put(count, threadAndHandler);
-                    thread.start();
-                }
+    /**
+     * Checks if ports are initialized, a configuration can only be applied in place after that
+     */
+    public boolean isInitialized() {
+        return connectionExecutor != null && acceptors.length > 0;
+    }
+
+    /**
+     * Applies a reloaded configuration in place, only added and removed ports are opened or closed.
+     * Ports that are kept pick up new whitelist and welcome messages for next connections.
+     */
+    public void applyConfiguration(final CachedConfigurationValues newConfiguration, final ConfigurationDiff diff) {
+        configuration = newConfiguration;
+        final PortPlan removedPorts = diff.getRemovedPorts();
+        for (int port = removedPorts.nextPort(0); port != -1; port = removedPorts.nextPort(port + 1)) {
+            final ListenerHandler handler = removeListener(port);
+            if (handler != null) {
+                handler.shutdownListener();
             }
         }
-
-        // Create listening ports for specific ports
-        for (final int port : configuration.getSpecificPorts()) {
-            boolean excluded = false;
-            if (configuration.getExcludedPorts().contains(port)) {
-                printMessage((byte) 0x10, "Excluding port: " + port);
-                excluded = true;
+        for (int port = 1; port <= PortPlan.MAX_PORT; port++) {
+            final ListenerHandler handler = listeners.get(port);
+            if (handler != null) {
+                handler.applyConfiguration(newConfiguration, diff.isFakeServerChanged());
             }
-            // Added to thread if not excluded
-            if (!excluded) {
-                final ListenerHandler handler = new ListenerHandler(configuration, this, banList, port);
-                final Thread thread = new Thread(handler);
-                final ThreadAndHandler threadAndHandler = new ThreadAndHandler(handler, thread);
-                sockets.put(port, threadAndHandler);
-                thread.start();
+        }
+        openPorts(diff.getAddedPorts());
+        printMessage((byte) 0x00, "Listener ports updated. {} ports added, {} ports removed, total {} ports.", diff.getAddedPorts().size(), removedPorts.size(), listenerCount.get());
+    }
+
+    /**
+     * Called when a connection from a whitelisted IP is closed at accept time
+     */
+    void recordWhitelistedConnection() {
+        whitelistedConnectionCount.incrementAndGet();
+    }
+
+    public long getWhitelistedConnectionCount() {
+        return whitelistedConnectionCount.get();
+    }
+
+    /**
+     * Called when a connection from a banned IP is reset at accept time
+     */
+    void recordBannedConnection() {
+        bannedConnectionCount.incrementAndGet();
+    }
+
+    public long getBannedConnectionCount() {
+        return bannedConnectionCount.get();
+    }
+
+    public PortPlan getListeningPorts() {
+        final PortPlan.Builder listeningPorts = PortPlan.builder();
+        for (int port = 1; port <= PortPlan.MAX_PORT; port++) {
+            if (listeners.get(port) != null) {
+                listeningPorts.add(port);
             }
         }
+        return listeningPorts.build();
+    }
 
-        try {
-            Thread.sleep(1000);
-        } catch (Exception e) {
-            // Ignore
+    private void putListener(final int port, final ListenerHandler handler) {
+        if (listeners.getAndSet(port, handler) == null) {
+            listenerCount.incrementAndGet();
         }
+    }
 
-        printMessage((byte) 0x00, "Listener ports successfully initialized. Total " + sockets.size() + " ports.");
+    private ListenerHandler removeListener(final int port) {
+        final ListenerHandler handler = listeners.getAndSet(port, null);
+        if (handler != null) {
+            listenerCount.decrementAndGet();
+        }
+        return handler;
     }
 
-    public Integer[] getListOfListeningPorts() {
-        return sockets.keySet().toArray(new Integer[0]);
+    /**
+     * Connections accepted by each shard of ports listened with more than one socket
+     */
+    public Map<Integer, long[]> getShardAcceptCounts() {
+        final Map<Integer, long[]> shardAcceptCounts = new TreeMap<>();
+        for (final int port : configuration.getShardedPorts().keySet()) {
+            final ListenerHandler handler = listeners.get(port);
+            final long[] acceptCounts = handler == null ? null : handler.getShardAcceptCounts();
+            if (acceptCounts != null && acceptCounts.length > 1) {
+                shardAcceptCounts.put(port, acceptCounts);
+            }
+        }
+        return shardAcceptCounts;
     }
 
     @Override
@@ -137,28 +328,53 @@ public class SocketManager implements Destroyable {
     }
 
     private void closeAll() {
-        for (final Map.Entry<Integer, ThreadAndHandler> entry : sockets.entrySet()) {
-            entry.getValue().getRunnable().shutdownListener();
-            entry.getValue().getThread().interrupt();
+        for (int port = 1; port <= PortPlan.MAX_PORT; port++) {
+            final ListenerHandler handler = removeListener(port);
+            if (handler != null) {
+                handler.shutdownListener();
+            }
+        }
+        shutdownAcceptors();
+        if (connectionExecutor != null) {
+            connectionExecutor.destroy();
         }
-        sockets.clear();
+        if (disconnectScheduler != null) {
+            disconnectScheduler.destroy();
+        }
+        if (connectionCoalescer != null) {
+            connectionCoalescer.destroy();
+        }
+        printMessage((byte) 0x00, "All acceptors and listener sockets are closed.");
+    }
+
+    /**
+     * Closes all acceptors and waits for their threads to exit
+     */
+    private void shutdownAcceptors() {
+        for (final SelectorAcceptor acceptor : acceptors) {
+            if (acceptor != null) {
+                acceptor.shutdown();
+            }
+        }
+        final long waitEnd = System.currentTimeMillis() + READY_TIMEOUT;
         try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            // Does not care about exception
+            for (final SelectorAcceptor acceptor : acceptors) {
+                if (acceptor != null && !acceptor.awaitTermination(Math.max(1, waitEnd - System.currentTimeMillis()))) {
+                    printMessage((byte) 0x01, "Acceptor is still running after {} ms.", READY_TIMEOUT);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        printMessage((byte) 0x00, "Shutdown signal sent to all threads and listener sockets.");
     }
 
     public void close(final int port) {
-        final ThreadAndHandler threadAndHandler = sockets.get(port);
-        if (threadAndHandler != null) {
-            threadAndHandler.getRunnable().shutdownListener();
-            threadAndHandler.getThread().interrupt();
-            sockets.remove(port);
-            printMessage((byte) 0x00, "Shutdown signal sent to listener socket on port: " + port);
+        final ListenerHandler handler = removeListener(port);
+        if (handler != null) {
+            handler.shutdownListener();
+            printMessage((byte) 0x00, "Shutdown signal sent to listener socket on port: {}", port);
         } else {
-            printMessage((byte) 0x01, "Failed to shutdown port: " + port + ". (Listener does not exist)");
+            printMessage((byte) 0x01, "Failed to shutdown port: {}. (Listener does not exist)", port);
         }
     }
 
@@ -166,6 +382,6 @@ public class SocketManager implements Destroyable {
      * Unexpected shutdown of a port, force Exception as an argument to ensure this function being abused.
      */
     protected void removePortFromSocketList(final int port, final Exception e) {
-        sockets.remove(port);
+        removeListener(port);
     }
 }